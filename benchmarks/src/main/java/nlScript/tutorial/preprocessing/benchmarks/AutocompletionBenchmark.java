@@ -0,0 +1,119 @@
+package nlScript.tutorial.preprocessing.benchmarks;
+
+import ij.ImagePlus;
+import nlScript.Autocompleter;
+import nlScript.ParseException;
+import nlScript.Parser;
+import nlScript.core.Autocompletion;
+import nlScript.tutorial.preprocessing.LiteralCompleter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Autocompletion latency for the language of Tutorial07 (a custom 'units' autocompleter, which
+ * vetoes further completion once the user started typing), at the cursor positions discussed in
+ * Tutorial06 and Tutorial07.
+ *
+ * The 'units' autocompleter is either the one of Tutorial07, or a LiteralCompleter, which also
+ * filters the units by what was typed already. With more candidates (i.e. more units to offer
+ * besides 'pixel(s)' and the image's units), the latter shows how completion scales with the
+ * number of literals.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AutocompletionBenchmark {
+
+	private static final String[] TEXTS = {
+			// empty editor: complete the beginning of the sentence
+			"",
+			// within the literal part of the sentence
+			"Apply Gaussian ",
+			// at the standard deviation: complete the 'filter-size' placeholder
+			"Apply Gaussian blurring with a standard deviation of ",
+			// at the units: offer 'pixel(s)' and the image's units
+			"Apply Gaussian blurring with a standard deviation of 5 ",
+			// the user started typing the units: veto (Tutorial07), or filter (LiteralCompleter)
+			"Apply Gaussian blurring with a standard deviation of 5 p",
+			// nothing starts with what was typed: veto
+			"Apply Gaussian blurring with a standard deviation of 5 q",
+	};
+
+	@Param({"0", "1", "2", "3", "4", "5"})
+	public int cursor;
+
+	@Param({"tutorial07", "literal-completer"})
+	public String completer;
+
+	@Param({"2", "64"})
+	public int candidates;
+
+	private Parser parser;
+
+	@Setup
+	public void setup() {
+		ImagePlus image = Fixtures.calibratedImage();
+		parser = new Parser();
+
+		// 'pixel(s)', the image's units, and made-up ones
+		CharSequence[] unitLiterals = new CharSequence[candidates];
+		unitLiterals[0] = "pixel(s)";
+		unitLiterals[1] = image.getCalibration().getUnits();
+		for(int i = 2; i < candidates; i++)
+			unitLiterals[i] = "unit" + i;
+
+		Autocompleter autocompleter;
+		if(completer.equals("tutorial07")) {
+			autocompleter = (pn, justCheck) -> pn.getParsedString().isEmpty()
+					? Autocompletion.literal(pn, unitLiterals)
+					: Autocompletion.veto(pn);
+		}
+		else {
+			LiteralCompleter literalCompleter = new LiteralCompleter(unitLiterals);
+			parser.addParseStartListener(() -> literalCompleter.setLiterals(unitLiterals));
+			autocompleter = literalCompleter;
+		}
+
+		parser.defineType("units", "{unitstring:[a-zA-Z()]:+}",
+				pn -> !pn.getParsedString().equals("pixel(s)"),
+				autocompleter);
+
+		parser.defineType("filter-size", "{stddev:float} {units:units}", pn -> {
+			double stddev = (Double) pn.evaluate("stddev");
+			boolean units = (Boolean) pn.evaluate("units");
+			if(units)
+				stddev /= image.getCalibration().pixelWidth;
+			return stddev;
+		}, true);
+
+		parser.defineSentence(
+				"Apply Gaussian blurring with a standard deviation of {stddev:filter-size}.",
+				pn -> null);
+	}
+
+	@Benchmark
+	public ArrayList<Autocompletion> autocomplete() {
+		ArrayList<Autocompletion> autocompletions = new ArrayList<>();
+		try {
+			parser.parse(TEXTS[cursor], autocompletions);
+		} catch(ParseException e) {
+			throw new RuntimeException(e);
+		}
+		return autocompletions;
+	}
+}
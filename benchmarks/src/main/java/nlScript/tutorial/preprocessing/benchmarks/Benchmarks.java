@@ -0,0 +1,29 @@
+package nlScript.tutorial.preprocessing.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of target/benchmarks.jar.
+ *
+ * Accepts the usual JMH command line options, e.g. a regular expression to select benchmarks, but
+ * writes the results as JSON by default, to jmh-result.json (or the file given with -rff), so that
+ * they can be tracked over time:
+ *
+ *   java -jar target/benchmarks.jar ParseBenchmark -rff parse-0.3.0.json
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+		if(!cmd.getResultFormat().hasValue())
+			options.resultFormat(ResultFormatType.JSON);
+		if(!cmd.getResult().hasValue())
+			options.result("jmh-result.json");
+		new Runner(options.build()).run();
+	}
+}
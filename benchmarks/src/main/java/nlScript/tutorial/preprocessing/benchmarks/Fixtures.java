@@ -0,0 +1,79 @@
+package nlScript.tutorial.preprocessing.benchmarks;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+/**
+ * Synthetic inputs shared by the benchmarks.
+ */
+class Fixtures {
+
+	static final String[] SENTENCES = {
+			"Apply Gaussian blurring with a standard deviation of 2 pixel(s).",
+			"Apply Median filtering with a window of radius 0.75 mm.",
+			"Subtract the background with a standard deviation of 5 mm.",
+			"Normalize intensities.",
+	};
+
+	private Fixtures() {
+	}
+
+	/**
+	 * A script with <code>nSentences</code> sentences, cycling through all sentence types.
+	 */
+	static String script(int nSentences) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < nSentences; i++)
+			sb.append(SENTENCES[i % SENTENCES.length]).append('\n');
+		return sb.toString();
+	}
+
+	static Calibration calibration() {
+		Calibration cal = new Calibration();
+		cal.pixelWidth = cal.pixelHeight = 0.25;
+		cal.setUnit("mm");
+		return cal;
+	}
+
+	/**
+	 * A small image with the calibration used in the tutorials, for parsing.
+	 */
+	static ImagePlus calibratedImage() {
+		ImagePlus image = new ImagePlus("calibrated", new ByteProcessor(1, 1));
+		image.setCalibration(calibration());
+		return image;
+	}
+
+	/**
+	 * A square image with smooth structures on a gradient background, plus noise.
+	 */
+	static ImagePlus image(int bitDepth, int size) {
+		ImageProcessor ip;
+		switch(bitDepth) {
+			case 8:  ip = new ByteProcessor(size, size); break;
+			case 16: ip = new ShortProcessor(size, size); break;
+			case 32: ip = new FloatProcessor(size, size); break;
+			default: throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+		}
+		double max = bitDepth == 8 ? 255 : 4095;
+		Random random = new Random(42);
+		for(int y = 0; y < size; y++) {
+			for(int x = 0; x < size; x++) {
+				double background = 0.3 * (x + y) / (2.0 * size);
+				double blobs = 0.4 * Math.max(0, Math.sin(x / 17.0) * Math.cos(y / 23.0));
+				double noise = 0.1 * random.nextDouble();
+				ip.setf(x, y, (float) Math.round(max * (background + blobs + noise)));
+			}
+		}
+		ip.resetMinAndMax();
+		ImagePlus image = new ImagePlus("synthetic", ip);
+		image.setCalibration(calibration());
+		return image;
+	}
+}
@@ -0,0 +1,61 @@
+package nlScript.tutorial.preprocessing.benchmarks;
+
+import nlScript.ParseException;
+import nlScript.ParsedNode;
+import nlScript.Parser;
+import nlScript.tutorial.preprocessing.Plan;
+import nlScript.tutorial.preprocessing.Preprocessing;
+import nlScript.tutorial.preprocessing.PreprocessingLanguage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse throughput for the language of Tutorial09/Tutorial10 (see PreprocessingLanguage), for
+ * scripts of increasing length.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+	@Param({"1", "10", "100", "1000"})
+	public int sentences;
+
+	private Parser parser;
+
+	private String script;
+
+	@Setup
+	public void setup() {
+		parser = PreprocessingLanguage.create(new Preprocessing(Fixtures.calibratedImage()));
+		script = Fixtures.script(sentences);
+	}
+
+	@Benchmark
+	public ParsedNode parse() throws ParseException {
+		return parser.parse(script, new ArrayList<>());
+	}
+
+	/**
+	 * Parsing plus evaluation into a Plan, with a new parser each time (i.e. without PlanCache).
+	 */
+	@Benchmark
+	public Plan compile() throws ParseException {
+		return Plan.compile(script, Fixtures.calibration());
+	}
+}
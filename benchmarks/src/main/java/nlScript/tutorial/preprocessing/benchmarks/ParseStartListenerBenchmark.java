@@ -0,0 +1,89 @@
+package nlScript.tutorial.preprocessing.benchmarks;
+
+import ij.ImagePlus;
+import nlScript.ParseException;
+import nlScript.ParsedNode;
+import nlScript.Parser;
+import nlScript.tutorial.preprocessing.DynamicType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The overhead of re-defining the 'units' type at the start of every parse.
+ *
+ * <ul>
+ *   <li>none: 'units' is defined once, statically (baseline)</li>
+ *   <li>redefine: undefined and re-defined in every ParseStartListener call, as in Tutorial08</li>
+ *   <li>versioned: re-defined only when the units string changes, using DynamicType</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseStartListenerBenchmark {
+
+	@Param({"none", "redefine", "versioned"})
+	public String units;
+
+	@Param({"1", "100"})
+	public int sentences;
+
+	private Parser parser;
+
+	private String script;
+
+	@Setup
+	public void setup() {
+		ImagePlus image = Fixtures.calibratedImage();
+		parser = new Parser();
+
+		switch(units) {
+			case "none":
+				parser.defineType("units", "pixel(s)", pn -> false);
+				parser.defineType("units", "mm", pn -> true);
+				break;
+			case "redefine":
+				parser.addParseStartListener(() -> {
+					String unitsString = image.getCalibration().getUnits();
+					parser.undefineType("units");
+					parser.defineType("units", "pixel(s)", pn -> false);
+					parser.defineType("units", unitsString, pn -> true);
+				});
+				parser.defineType("units", "pixel(s)", pn -> false);
+				break;
+			case "versioned":
+				DynamicType.defineUnits(parser, () -> image.getCalibration());
+				break;
+			default:
+				throw new IllegalArgumentException(units);
+		}
+
+		parser.defineType("filter-size", "{stddev:float} {units:units}", pn -> pn.evaluate("stddev"), true);
+		parser.defineSentence("Apply Gaussian blurring with a standard deviation of {stddev:filter-size}.", pn -> null);
+
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < sentences; i++)
+			sb.append("Apply Gaussian blurring with a standard deviation of 1.5 mm.\n");
+		script = sb.toString();
+	}
+
+	@Benchmark
+	public ParsedNode parse() throws ParseException {
+		return parser.parse(script, new ArrayList<>());
+	}
+}
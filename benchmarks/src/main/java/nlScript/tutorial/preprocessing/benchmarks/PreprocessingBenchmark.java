@@ -0,0 +1,75 @@
+package nlScript.tutorial.preprocessing.benchmarks;
+
+import ij.ImagePlus;
+import nlScript.tutorial.preprocessing.Preprocessing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each Preprocessing operation, on synthetic 8-, 16- and 32-bit images of increasing size.
+ *
+ * Operations work in place, so every invocation starts from a fresh copy of the input (which is
+ * not part of the measured time).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PreprocessingBenchmark {
+
+	@Param({"8", "16", "32"})
+	public int bitDepth;
+
+	@Param({"256", "1024", "2048"})
+	public int size;
+
+	@Param({"gaussianBlur", "medianFilter", "subtractBackground", "intensityNormalization"})
+	public String operation;
+
+	@Param({"0"})
+	public int parallelism;
+
+	private ImagePlus input;
+
+	private Preprocessing preprocessing;
+
+	@Setup(Level.Trial)
+	public void createInput() {
+		input = Fixtures.image(bitDepth, size);
+		preprocessing = new Preprocessing();
+		if(parallelism > 0)
+			preprocessing.setParallelism(parallelism);
+	}
+
+	@Setup(Level.Invocation)
+	public void copyInput() {
+		preprocessing.setImage(input.duplicate());
+	}
+
+	@Benchmark
+	public ImagePlus run() {
+		switch(operation) {
+			case "gaussianBlur":           preprocessing.gaussianBlur(2f); break;
+			case "medianFilter":           preprocessing.medianFilter(3); break;
+			case "subtractBackground":     preprocessing.subtractBackground(20f); break;
+			case "intensityNormalization": preprocessing.intensityNormalization(); break;
+			default: throw new IllegalArgumentException(operation);
+		}
+		// point-wise operations are only applied on flush
+		return preprocessing.getImage();
+	}
+}
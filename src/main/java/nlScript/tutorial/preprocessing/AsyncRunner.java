@@ -0,0 +1,249 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+
+/**
+ * Runs Plans on a worker thread, so that the thread which submits them (e.g. the event dispatch
+ * thread, after the editor's 'Run' button was clicked) isn't blocked while the image is processed.
+ *
+ * All plans are run one after the other by the same Preprocessing, which therefore must not be
+ * used elsewhere at the same time. Submitting a plan cancels the one that is still running, if any:
+ * Cancellation is cooperative, the running operation stops at the next plane or tile (see
+ * Preprocessing.Monitor). The image it worked on is left partially processed, so plans should be
+ * run on a CopyOnWriteImage.
+ *
+ * ImageGraphs are run the same way, with the engines and parallelism of the same Preprocessing.
+ *
+ * A ProgressListener is notified before each operation, after each plane, and, with a downsampled
+ * preview of the image, after each operation. If it asks for a preview region, that region of the
+ * current plane is computed first (see RegionPreview) and passed as the first preview, unless that
+ * doesn't save any time. It is called on the worker thread (or the pool's threads for planes) and
+ * must hand anything that touches the user interface over to the event dispatch thread, without
+ * waiting for it (see StatusBarProgress).
+ */
+public class AsyncRunner {
+
+	/** Previews are scaled down to at most this many pixels in width and height. */
+	public static final int PREVIEW_SIZE = 256;
+
+	/**
+	 * Receives the progress of a plan. All methods do nothing by default.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called before the operation with the given (0-based) index is run.
+		 */
+		default void operationStarted(int index, int nOperations, Operation operation) {}
+
+		/**
+		 * Called whenever another plane of the running operation is done.
+		 */
+		default void planeDone(int done, int nPlanes) {}
+
+		/**
+		 * Called after each operation, with a downsampled copy of the current plane.
+		 */
+		default void preview(ImageProcessor preview) {}
+
+		/**
+		 * Called when the plan is done, with either the result or the error; a CancellationException
+		 * if it was cancelled.
+		 */
+		default void finished(ImagePlus result, Throwable error) {}
+
+		/**
+		 * Whether to cancel the plan; checked together with Execution.isCancelled().
+		 */
+		default boolean isCancelled() {
+			return false;
+		}
+
+		/**
+		 * The region of the current plane to compute before the whole image, as a first preview;
+		 * null for none.
+		 */
+		default Rectangle getPreviewRegion() {
+			return null;
+		}
+	}
+
+	/**
+	 * What is run for a submitted plan or graph, with the monitor installed in the Preprocessing.
+	 */
+	private interface Job {
+		ImagePlus run(Preprocessing preprocessing, ProgressListener listener);
+	}
+
+	/**
+	 * A submitted plan (or graph).
+	 */
+	public static final class Execution {
+		private final FutureTask<ImagePlus> task;
+
+		private volatile boolean cancelled = false;
+
+		private Execution(Job job, Preprocessing preprocessing, ProgressListener listener) {
+			this.task = new FutureTask<>(() -> run(job, preprocessing, listener));
+		}
+
+		/**
+		 * Requests the plan to stop; returns immediately.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public boolean isDone() {
+			return task.isDone();
+		}
+
+		/**
+		 * Waits for the plan to finish, and returns the processed image (null for a graph).
+		 *
+		 * @throws ExecutionException if it failed, with a CancellationException as cause if it was
+		 *                            cancelled.
+		 */
+		public ImagePlus get() throws InterruptedException, ExecutionException {
+			return task.get();
+		}
+
+		private ImagePlus run(Job job, Preprocessing preprocessing, ProgressListener listener) {
+			Preprocessing.Monitor monitor = new Preprocessing.Monitor() {
+				@Override
+				public boolean isCancelled() {
+					return cancelled || listener.isCancelled();
+				}
+
+				@Override
+				public void planeDone(int done, int nPlanes) {
+					listener.planeDone(done, nPlanes);
+				}
+			};
+			try {
+				// skip plans which were cancelled while they were waiting
+				if(monitor.isCancelled())
+					throw new CancellationException("Cancelled before it started");
+				preprocessing.setMonitor(monitor);
+				ImagePlus result = job.run(preprocessing, listener);
+				listener.finished(result, null);
+				return result;
+			} catch(RuntimeException | Error e) {
+				listener.finished(null, e);
+				throw e;
+			} finally {
+				preprocessing.setMonitor(null);
+				// after an error, the transform pending for this image must not be flushed into the next
+				preprocessing.reset();
+			}
+		}
+	}
+
+	private static ImagePlus run(Plan plan, Consumer<Preprocessing> setImage, Preprocessing preprocessing, ProgressListener listener) {
+		setImage.accept(preprocessing);
+		Rectangle region = listener.getPreviewRegion();
+		if(region != null) {
+			ImagePlus input = preprocessing.getImage();
+			RegionPreview preview = new RegionPreview(preprocessing);
+			if(preview.isWorthwhile(input, region, plan))
+				listener.preview(preview.compute(input, input.getCurrentSlice(), region, plan));
+		}
+		List<Operation> operations = plan.getOperations();
+		for(int i = 0; i < operations.size(); i++) {
+			listener.operationStarted(i, operations.size(), operations.get(i));
+			preprocessing.execute(operations.get(i));
+			listener.preview(preprocessing.preview(PREVIEW_SIZE));
+		}
+		// the pending transform is applied in any case, so that the result is complete
+		preprocessing.setMonitor(null);
+		return preprocessing.getImage();
+	}
+
+	private final Preprocessing preprocessing;
+
+	private final ExecutorService worker;
+
+	private Execution current = null;
+
+	public AsyncRunner(Preprocessing preprocessing) {
+		this.preprocessing = preprocessing;
+		this.worker = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "Preprocessing");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Cancels the running plan, if any, and runs <code>plan</code> on the view of
+	 * <code>input</code> once it stopped.
+	 */
+	public Execution submit(CopyOnWriteImage input, Plan plan, ProgressListener listener) {
+		return submit(p -> p.setImage(input), plan, listener);
+	}
+
+	/**
+	 * Cancels the running plan, if any, and runs <code>plan</code> on <code>input</code>, in place,
+	 * once it stopped.
+	 */
+	public Execution submit(ImagePlus input, Plan plan, ProgressListener listener) {
+		return submit(p -> p.setImage(input), plan, listener);
+	}
+
+	/**
+	 * Cancels the running plan, if any, and runs <code>graph</code> on <code>input</code>, which is
+	 * left untouched, once it stopped (see ImageGraph.run()), with the engines and parallelism of
+	 * this runner's Preprocessing. The final images of all variables are passed to
+	 * <code>results</code>, on the worker thread. The listener is notified about planes, but not
+	 * about operations, since independent ones run at the same time, and its finished() gets no
+	 * result image.
+	 */
+	public Execution submit(ImagePlus input, ImageGraph graph, ProgressListener listener, Consumer<Map<String, ImagePlus>> results) {
+		return submit((p, l) -> {
+			results.accept(graph.run(input, p));
+			return null;
+		}, listener);
+	}
+
+	private Execution submit(Consumer<Preprocessing> setImage, Plan plan, ProgressListener listener) {
+		return submit((p, l) -> run(plan, setImage, p, l), listener);
+	}
+
+	private synchronized Execution submit(Job job, ProgressListener listener) {
+		if(current != null)
+			current.cancel();
+		current = new Execution(job, preprocessing, listener);
+		worker.execute(current.task);
+		return current;
+	}
+
+	/**
+	 * Cancels the running plan, if any.
+	 */
+	public synchronized void cancel() {
+		if(current != null)
+			current.cancel();
+	}
+
+	/**
+	 * Cancels the running plan and stops the worker thread.
+	 */
+	public void shutdown() {
+		cancel();
+		worker.shutdown();
+	}
+}
@@ -0,0 +1,442 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Background subtraction for dark backgrounds, like ImageJ's "Subtract Background..." with its
+ * default options, but with rows (and columns) processed in parallel.
+ *
+ * The rolling ball follows ImageJ's BackgroundSubtracter: the image is smoothed with a 3x3 mean,
+ * shrunk by taking the minimum of blocks of shrink factor x shrink factor pixels, opened with the
+ * ball (the ball's top surface is raised as far as the pixels below it allow), interpolated back to
+ * full size and subtracted. With the same shrink factor, the result is the same as ImageJ's. The
+ * opening costs (radius / shrink factor)^2 per pixel of the shrunk image, so for large radii, the
+ * shrink factor is chosen from an accuracy bound instead of ImageJ's fixed table: the pixels of the
+ * shrunk image may be at most <code>accuracy * radius</code> wide. This bounds the cost per pixel
+ * independently of the radius. The opening is computed row by row, so that its inner loops run over
+ * contiguous rows of pixels with a fixed ball height.
+ *
+ * The sliding paraboloid replaces the ball by a paraboloid with the same curvature at its top (like
+ * ImageJ's sliding paraboloid), which isn't shrunk: its opening is separable, and is computed exactly
+ * with the lower envelope of parabolas (Felzenszwalb and Huttenlocher, "Distance Transforms of Sampled
+ * Functions", 2012), at a cost per pixel which doesn't depend on the radius. Unlike ImageJ's sliding
+ * paraboloid, which slides the paraboloid in 4 directions iteratively, it is an exact opening.
+ */
+final class BackgroundSubtraction {
+
+	/** The default accuracy: the shrunk pixels are at most radius / 16 wide. */
+	static final double DEFAULT_ACCURACY = 1.0 / 16;
+
+	private static final int ROWS_PER_TASK = 32;
+
+	private BackgroundSubtraction() {
+	}
+
+	/**
+	 * The factor by which the image is shrunk for the rolling ball: ImageJ's, or larger if
+	 * <code>accuracy * radius</code> allows. Always a power of two.
+	 */
+	static int shrinkFactor(double radius, double accuracy) {
+		int shrinkFactor = radius <= 10 ? 1 : radius <= 30 ? 2 : radius <= 100 ? 4 : 8;
+		while(2 * shrinkFactor <= accuracy * radius)
+			shrinkFactor *= 2;
+		return shrinkFactor;
+	}
+
+	/**
+	 * Subtracts the background determined by rolling a ball of the given radius below the image,
+	 * in place. RGB images are processed in their brightness channel, like in ImageJ.
+	 */
+	static void rollingBall(ImageProcessor ip, double radius, double accuracy, TiledExecutor te) {
+		subtract(ip, te, fp -> rollingBallBackground(fp, radius, shrinkFactor(radius, accuracy), te));
+	}
+
+	/**
+	 * Subtracts the background determined by sliding a paraboloid, whose curvature at the top is
+	 * that of a ball of the given radius, below the image, in place.
+	 */
+	static void slidingParaboloid(ImageProcessor ip, double radius, TiledExecutor te) {
+		subtract(ip, te, fp -> slidingParaboloidBackground(fp, radius, te));
+	}
+
+	private interface Background {
+		/** Replaces the pixels of <code>fp</code> by their background. */
+		void compute(FloatProcessor fp);
+	}
+
+	private static void subtract(ImageProcessor ip, TiledExecutor te, Background background) {
+		if(ip instanceof ColorProcessor) {
+			ColorProcessor cp = (ColorProcessor) ip;
+			int n = cp.getPixelCount();
+			byte[] hue = new byte[n], saturation = new byte[n], brightness = new byte[n];
+			cp.getHSB(hue, saturation, brightness);
+			ByteProcessor bp = new ByteProcessor(cp.getWidth(), cp.getHeight(), brightness);
+			subtract(bp, te, background);
+			cp.setHSB(hue, saturation, brightness);
+			return;
+		}
+
+		// like ImageJ, treat an inverted LUT as a light background
+		boolean invert = ip.isInvertedLut();
+		FloatProcessor fp = ip.toFloat(0, null);
+		if(fp.getPixels() == ip.getPixels())
+			fp = (FloatProcessor) fp.duplicate();
+		float[] bg = (float[]) fp.getPixels();
+		int w = fp.getWidth(), h = fp.getHeight();
+		if(invert)
+			forEachRow(te, h, y -> negate(bg, y * w, w));
+		background.compute(fp);
+		if(invert)
+			forEachRow(te, h, y -> negate(bg, y * w, w));
+
+		Object pixels = ip.getPixels();
+		if(pixels instanceof float[]) {
+			float[] out = (float[]) pixels;
+			forEachRow(te, h, y -> {
+				for(int i = y * w; i < (y + 1) * w; i++)
+					out[i] = out[i] - bg[i];
+			});
+		}
+		else if(pixels instanceof short[]) {
+			short[] out = (short[]) pixels;
+			float offset = invert ? 65535.5f : 0.5f;
+			forEachRow(te, h, y -> {
+				for(int i = y * w; i < (y + 1) * w; i++)
+					out[i] = (short) clip((out[i] & 0xffff) - bg[i] + offset, 65535f);
+			});
+		}
+		else if(pixels instanceof byte[]) {
+			byte[] out = (byte[]) pixels;
+			float offset = invert ? 255.5f : 0.5f;
+			forEachRow(te, h, y -> {
+				for(int i = y * w; i < (y + 1) * w; i++)
+					out[i] = (byte) clip((out[i] & 0xff) - bg[i] + offset, 255f);
+			});
+		}
+		else {
+			throw new IllegalArgumentException("Unsupported image type: " + ip.getClass().getName());
+		}
+	}
+
+	private static int clip(float v, float max) {
+		return (int) (v < 0 ? 0 : v > max ? max : v);
+	}
+
+	private static void negate(float[] pixels, int offset, int length) {
+		for(int i = offset; i < offset + length; i++)
+			pixels[i] = -pixels[i];
+	}
+
+	private interface Band {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Runs <code>row</code> for each row (or column) index in [0, n), in bands of ROWS_PER_TASK.
+	 */
+	private static void forEachRow(TiledExecutor te, int n, IntConsumer row) {
+		forEachBand(te, n, (from, to) -> {
+			for(int y = from; y < to; y++)
+				row.accept(y);
+		});
+	}
+
+	private static void forEachBand(TiledExecutor te, int n, Band band) {
+		int nTasks = (n + ROWS_PER_TASK - 1) / ROWS_PER_TASK;
+		IntConsumer task = t -> band.run(t * ROWS_PER_TASK, Math.min(n, (t + 1) * ROWS_PER_TASK));
+		if(te == null || nTasks == 1) {
+			for(int t = 0; t < nTasks; t++)
+				task.accept(t);
+		}
+		else {
+			te.forEach(nTasks, task);
+		}
+	}
+
+	private static void rollingBallBackground(FloatProcessor fp, double radius, int shrinkFactor, TiledExecutor te) {
+		int w = fp.getWidth(), h = fp.getHeight();
+		float[] pixels = (float[]) fp.getPixels();
+		smooth3x3(pixels, w, h, te);
+		if(shrinkFactor == 1) {
+			rollBall(pixels, w, h, ball(radius, 1), te);
+			return;
+		}
+		int sw = (w + shrinkFactor - 1) / shrinkFactor;
+		int sh = (h + shrinkFactor - 1) / shrinkFactor;
+		float[] small = shrink(pixels, w, h, shrinkFactor, sw, sh, te);
+		rollBall(small, sw, sh, ball(radius, shrinkFactor), te);
+		enlarge(small, sw, sh, pixels, w, h, shrinkFactor, te);
+	}
+
+	/**
+	 * The 3x3 mean, as a horizontal and a vertical 3-point mean, with the edge pixels repeated (like
+	 * ImageJ's BackgroundSubtracter.filter3x3()).
+	 */
+	private static void smooth3x3(float[] pixels, int w, int h, TiledExecutor te) {
+		forEachRow(te, h, y -> mean3(pixels, w, y * w, 1));
+		forEachRow(te, w, x -> mean3(pixels, h, x, w));
+	}
+
+	private static void mean3(float[] pixels, int length, int offset, int inc) {
+		float v3 = pixels[offset];
+		float v2 = v3;
+		float v1;
+		for(int i = 0, p = offset; i < length; i++, p += inc) {
+			v1 = v2;
+			v2 = v3;
+			if(i < length - 1)
+				v3 = pixels[p + inc];
+			pixels[p] = (v1 + v2 + v3) * 0.33333333f;
+		}
+	}
+
+	/**
+	 * The minimum over blocks of shrinkFactor x shrinkFactor pixels.
+	 */
+	private static float[] shrink(float[] pixels, int w, int h, int shrinkFactor, int sw, int sh, TiledExecutor te) {
+		float[] small = new float[sw * sh];
+		forEachRow(te, sh, sy -> {
+			int row = sy * sw;
+			Arrays.fill(small, row, row + sw, Float.MAX_VALUE);
+			for(int y = sy * shrinkFactor; y < Math.min(h, (sy + 1) * shrinkFactor); y++) {
+				for(int x = 0; x < w; x++) {
+					int i = row + x / shrinkFactor;
+					float v = pixels[y * w + x];
+					if(v < small[i])
+						small[i] = v;
+				}
+			}
+		});
+		return small;
+	}
+
+	/**
+	 * The ball's heights, on a square grid of (2 * halfWidth + 1)^2 pixels of the shrunk image.
+	 *
+	 * ImageJ's RollingBall measures both the radius and the ball's heights in pixels of the image
+	 * shrunk by ImageJ's shrink factor, and trims the outer part of the ball's arc (depending on that
+	 * shrink factor). The ball built here has the same shape, sampled on the grid of the given
+	 * (possibly larger) shrink factor, so that it is identical to ImageJ's if both shrink factors are
+	 * equal.
+	 */
+	static float[][] ball(double radius, int shrinkFactor) {
+		int imagejShrinkFactor = shrinkFactor(radius, 0);
+		int arcTrimPercent = imagejShrinkFactor <= 2 ? 24 : imagejShrinkFactor == 4 ? 32 : 40;
+		double smallRadius = Math.max(1, radius / imagejShrinkFactor);
+		double rsquare = smallRadius * smallRadius;
+		int xtrim = (int) (arcTrimPercent * smallRadius) / 100;
+		double scale = (double) shrinkFactor / imagejShrinkFactor;
+		int halfWidth = (int) Math.round(Math.round(smallRadius - xtrim) / scale);
+		int width = 2 * halfWidth + 1;
+		float[][] ball = new float[width][width];
+		for(int y = 0; y < width; y++) {
+			for(int x = 0; x < width; x++) {
+				int dx = x - halfWidth, dy = y - halfWidth;
+				double temp = rsquare - (dx * dx + dy * dy) * scale * scale;
+				ball[y][x] = temp > 0 ? (float) Math.sqrt(temp) : 0f;
+			}
+		}
+		return ball;
+	}
+
+	/**
+	 * Replaces <code>pixels</code> by their opening with the ball: for each position of the ball's
+	 * center (also up to half the ball's width outside the image), the ball is raised as far as the
+	 * pixels below it allow (erosion), and each pixel becomes the highest ball surface above it
+	 * (dilation). Pixels outside the image don't restrict the ball.
+	 */
+	private static void rollBall(float[] pixels, int w, int h, float[][] ball, TiledExecutor te) {
+		int r = ball.length / 2;
+		int cw = w + 2 * r, ch = h + 2 * r;
+
+		// The rows, padded by 2r pixels on both sides which don't restrict the ball
+		int pw = w + 4 * r;
+		float[] padded = new float[h * pw];
+		forEachRow(te, h, y -> {
+			Arrays.fill(padded, y * pw, (y + 1) * pw, Float.MAX_VALUE);
+			System.arraycopy(pixels, y * w, padded, y * pw + 2 * r, w);
+		});
+
+		// Erosion: the height of the ball with its center at (cx - r, cy - r)
+		float[] centers = new float[cw * ch];
+		forEachRow(te, ch, cy -> {
+			int row = cy * cw;
+			Arrays.fill(centers, row, row + cw, Float.MAX_VALUE);
+			for(int by = 0; by < ball.length; by++) {
+				int y = cy - 2 * r + by;
+				if(y < 0 || y >= h)
+					continue;
+				float[] ballRow = ball[by];
+				for(int bx = 0; bx < ballRow.length; bx++) {
+					float b = ballRow[bx];
+					// the ball centered at cx covers padded pixels cx + bx
+					int p = y * pw + bx;
+					for(int cx = 0; cx < cw; cx++) {
+						float z = padded[p + cx] - b;
+						float c = centers[row + cx];
+						centers[row + cx] = z < c ? z : c;
+					}
+				}
+			}
+		});
+
+		// Dilation: the highest ball surface above each pixel
+		forEachRow(te, h, y -> {
+			int row = y * w;
+			Arrays.fill(pixels, row, row + w, -Float.MAX_VALUE);
+			for(int by = 0; by < ball.length; by++) {
+				// pixel y is covered by balls centered at cy = y + 2r - by
+				int c = (y + 2 * r - by) * cw;
+				float[] ballRow = ball[by];
+				for(int bx = 0; bx < ballRow.length; bx++) {
+					float b = ballRow[bx];
+					// pixel x is covered by balls centered at cx = x + 2r - bx
+					int p = c + 2 * r - bx;
+					for(int x = 0; x < w; x++) {
+						float z = centers[p + x] + b;
+						float v = pixels[row + x];
+						pixels[row + x] = z > v ? z : v;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Bilinear interpolation of the shrunk image back to full size, like ImageJ's
+	 * BackgroundSubtracter.enlargeImage().
+	 */
+	private static void enlarge(float[] small, int sw, int sh, float[] pixels, int w, int h, int shrinkFactor, TiledExecutor te) {
+		int[] xIndices = new int[w];
+		float[] xWeights = new float[w];
+		interpolationArrays(xIndices, xWeights, w, sw, shrinkFactor);
+		int[] yIndices = new int[h];
+		float[] yWeights = new float[h];
+		interpolationArrays(yIndices, yWeights, h, sh, shrinkFactor);
+		forEachRow(te, h, y -> {
+			int row0 = yIndices[y] * sw;
+			int row1 = Math.min(yIndices[y] + 1, sh - 1) * sw;
+			float wy = yWeights[y];
+			for(int x = 0; x < w; x++) {
+				int x0 = xIndices[x];
+				int x1 = Math.min(x0 + 1, sw - 1);
+				float wx = xWeights[x];
+				float line0 = small[row0 + x0] * wx + small[row0 + x1] * (1f - wx);
+				float line1 = small[row1 + x0] * wx + small[row1 + x1] * (1f - wx);
+				pixels[y * w + x] = line0 * wy + line1 * (1f - wy);
+			}
+		});
+	}
+
+	private static void interpolationArrays(int[] indices, float[] weights, int length, int smallLength, int shrinkFactor) {
+		for(int i = 0; i < length; i++) {
+			int smallIndex = (i - shrinkFactor / 2) / shrinkFactor;
+			if(smallIndex >= smallLength - 1)
+				smallIndex = Math.max(0, smallLength - 2);
+			indices[i] = smallIndex;
+			// distance of the pixel centers, in pixels of the shrunk image
+			float distance = (i + 0.5f) / shrinkFactor - (smallIndex + 0.5f);
+			weights[i] = 1f - distance;
+		}
+	}
+
+	/**
+	 * The opening with the paraboloid z = -(dx^2 + dy^2) / (2 * radius), as an erosion along rows,
+	 * then an erosion and a dilation along each column, then a dilation along rows. Like the ball,
+	 * the paraboloid's center may lie outside the image, by up to the radius (and at most the image
+	 * size).
+	 */
+	private static void slidingParaboloidBackground(FloatProcessor fp, double radius, TiledExecutor te) {
+		int w = fp.getWidth(), h = fp.getHeight();
+		float[] pixels = (float[]) fp.getPixels();
+		smooth3x3(pixels, w, h, te);
+
+		double k = 0.5 / radius;
+		int mx = (int) Math.min(Math.ceil(radius), w);
+		int my = (int) Math.min(Math.ceil(radius), h);
+		int cw = w + 2 * mx;
+		float[] eroded = new float[cw * h];
+
+		forEachBand(te, h, (from, to) -> {
+			Envelope envelope = new Envelope(w);
+			for(int y = from; y < to; y++)
+				envelope.compute(pixels, y * w, 1, w, k, -mx, eroded, y * cw, 1, cw, false);
+		});
+		forEachBand(te, cw, (from, to) -> {
+			int ch = h + 2 * my;
+			float[] column = new float[ch];
+			Envelope envelope = new Envelope(ch);
+			for(int x = from; x < to; x++) {
+				envelope.compute(eroded, x, cw, h, k, -my, column, 0, 1, ch, false);
+				envelope.compute(column, 0, 1, ch, k, my, eroded, x, cw, h, true);
+			}
+		});
+		forEachBand(te, h, (from, to) -> {
+			Envelope envelope = new Envelope(cw);
+			for(int y = from; y < to; y++)
+				envelope.compute(eroded, y * cw, 1, cw, k, mx, pixels, y * w, 1, w, true);
+		});
+	}
+
+	/**
+	 * The lower (or upper) envelope of the parabolas f(p) + k (q - p)^2 (or f(p) - k (q - p)^2),
+	 * sampled at integer positions q.
+	 */
+	private static final class Envelope {
+		// the positions of the parabolas in the envelope, and where each of them starts
+		private final int[] v;
+		private final double[] z;
+
+		Envelope(int capacity) {
+			v = new int[capacity];
+			z = new double[capacity + 1];
+		}
+
+		/**
+		 * Computes out[i] = min_p (f(p) + k (q0 + i - p)^2) for i in [0, nOut), with f(p) for p in
+		 * [0, n). With <code>upper</code>, the maximum of f(p) - k (q0 + i - p)^2 is computed instead.
+		 */
+		void compute(float[] in, int inOffset, int inStride, int n, double k, int q0,
+				float[] out, int outOffset, int outStride, int nOut, boolean upper) {
+			double sign = upper ? -1 : 1;
+			int top = 0;
+			v[0] = 0;
+			z[0] = Double.NEGATIVE_INFINITY;
+			z[1] = Double.POSITIVE_INFINITY;
+			for(int q = 1; q < n; q++) {
+				double fq = sign * in[inOffset + q * inStride] + k * q * q;
+				double s;
+				while(true) {
+					int p = v[top];
+					double fp = sign * in[inOffset + p * inStride] + k * p * p;
+					// where the parabolas at p and q intersect
+					s = (fq - fp) / (2 * k * (q - p));
+					if(s > z[top])
+						break;
+					top--;
+				}
+				top++;
+				v[top] = q;
+				z[top] = s;
+				z[top + 1] = Double.POSITIVE_INFINITY;
+			}
+
+			int j = 0;
+			for(int i = 0; i < nOut; i++) {
+				int q = q0 + i;
+				while(z[j + 1] < q)
+					j++;
+				int p = v[j];
+				double d = q - p;
+				double value = sign * in[inOffset + p * inStride] + k * d * d;
+				out[outOffset + i * outStride] = (float) (sign * value);
+			}
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import nlScript.ParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Runs a script written in the preprocessing language (see PreprocessingLanguage) headless, over
+ * many image files.
+ *
+ * The script is compiled into a Plan only once (per pixel calibration). Files then pass through
+ * three stages, each with its own fixed number of threads: They are read by a few I/O threads,
+ * processed by the worker threads, each with its own Preprocessing instance, and written by a few
+ * I/O threads again, so that reading the next files and writing the previous ones overlaps with
+ * processing. At most a fixed number of files is in flight at any time: Submission blocks until an
+ * earlier file was written, so that memory use doesn't depend on the number of files.
+ *
+ * Usage (preferably with -Djava.awt.headless=true):
+ *
+ *   BatchRunner [--threads n] [--in-flight n] [--metrics] [--plan] script.txt|plan.bin input-dir|input-glob output-dir
+ *
+ * e.g. BatchRunner --threads 4 preprocess.txt '/data/raw/*.tif' /data/preprocessed
+ *
+ * With --plan, the script is given as a PlanSnapshot instead, which isn't parsed at all. For short
+ * jobs on small images, this saves setting up the parser (and loading nlScript).
+ *
+ * Results are written as TIFF files with the same base name; inputs whose base names are the same
+ * (e.g. a.tif and a.png) are rejected before anything is processed. For each file, a line with the
+ * timings (or the error) is printed; the exit code is 1 if any file failed. With --metrics, the
+ * cost of each operation is summarized at the end (see ExecutionMetrics).
+ */
+public class BatchRunner {
+
+	/**
+	 * Timing and outcome for a single file.
+	 */
+	public static class Result {
+		public final Path input;
+		public final Path output;
+		public final long readMillis;
+		public final long processMillis;
+		public final long writeMillis;
+		public final Throwable error;
+
+		Result(Path input, Path output, long readMillis, long processMillis, long writeMillis, Throwable error) {
+			this.input = input;
+			this.output = output;
+			this.readMillis = readMillis;
+			this.processMillis = processMillis;
+			this.writeMillis = writeMillis;
+			this.error = error;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		@Override
+		public String toString() {
+			if(!isSuccess())
+				return "FAILED\t" + input + "\t" + error;
+			return "OK\t" + input + "\tread " + readMillis + " ms\tprocess " + processMillis + " ms\twrite " + writeMillis + " ms";
+		}
+	}
+
+	/**
+	 * Provides the plan for an image with the given calibration.
+	 */
+	private interface PlanProvider {
+		Plan get(Calibration calibration) throws ParseException;
+	}
+
+	/**
+	 * A file on its way through the stages. Once a stage fails, the following ones skip it.
+	 */
+	private static final class Job {
+		final Path input;
+		final Path output;
+		ImagePlus image;
+		long readMillis, processMillis, writeMillis;
+		Throwable error;
+
+		Job(Path input, Path output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		Result result() {
+			return new Result(input, output, readMillis, processMillis, writeMillis, error);
+		}
+	}
+
+	// The number of threads reading and writing files, each
+	private static final int IO_THREADS = 2;
+
+	private final PlanProvider plans;
+
+	private final int threads;
+
+	private final int maxInFlight;
+
+	private ExecutionMetrics metrics = null;
+
+	public BatchRunner(String script, int threads, int maxInFlight) {
+		// Compiled once per calibration, since 'filter-size' depends on it
+		this(calibration -> PlanCache.getDefault().get(script, calibration), threads, maxInFlight);
+	}
+
+	public BatchRunner(PlanSnapshot snapshot, int threads, int maxInFlight) {
+		this(snapshot::getPlan, threads, maxInFlight);
+	}
+
+	private BatchRunner(PlanProvider plans, int threads, int maxInFlight) {
+		if(threads < 1 || maxInFlight < 1)
+			throw new IllegalArgumentException("Need at least one thread and one file in flight");
+		this.plans = plans;
+		this.threads = threads;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Sets the metrics to which the operations of all files are recorded, or null.
+	 */
+	public void setMetrics(ExecutionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Processes all <code>inputs</code>, writing the results to <code>outputDir</code>.
+	 *
+	 * @param listener  notified (from the worker threads) whenever a file is done, may be null.
+	 * @return          the results, in the order of <code>inputs</code>.
+	 * @throws IllegalArgumentException if two inputs have the same base name (e.g. a.tif and a.png),
+	 *                  so that their results would be written to the same file; nothing is
+	 *                  processed then.
+	 */
+	public List<Result> run(List<Path> inputs, Path outputDir, Consumer<Result> listener) throws IOException, InterruptedException {
+		if(inputs.isEmpty())
+			return Collections.emptyList();
+		List<Path> outputs = outputs(inputs, outputDir);
+		Files.createDirectories(outputDir);
+
+		// The cores not used for running files in parallel are used within each file. ImageJ's
+		// filters start threads of their own on top of that (see Preprocessing.setParallelism()).
+		int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / threads);
+		List<Preprocessing> created = Collections.synchronizedList(new ArrayList<>());
+		ThreadLocal<Preprocessing> preprocessing = ThreadLocal.withInitial(() -> {
+			Preprocessing p = new Preprocessing();
+			p.setParallelism(parallelism);
+			p.setMetrics(metrics);
+			created.add(p);
+			return p;
+		});
+		ExecutorService readers = Executors.newFixedThreadPool(IO_THREADS);
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		ExecutorService writers = Executors.newFixedThreadPool(IO_THREADS);
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		List<Future<Result>> futures = new ArrayList<>(inputs.size());
+		try {
+			for(int f = 0; f < inputs.size(); f++) {
+				inFlight.acquire();
+				Job job = new Job(inputs.get(f), outputs.get(f));
+				futures.add(CompletableFuture
+						.runAsync(() -> read(job), readers)
+						.thenRunAsync(() -> process(plans, preprocessing.get(), job), workers)
+						.thenRunAsync(() -> write(job), writers)
+						.handle((v, t) -> {
+							inFlight.release();
+							Result result = job.result();
+							if(listener != null)
+								listener.accept(result);
+							return result;
+						}));
+			}
+			List<Result> results = new ArrayList<>(futures.size());
+			for(Future<Result> f : futures)
+				results.add(f.get());
+			return results;
+		} catch(ExecutionException e) {
+			// the stages catch everything, so this only happens if the listener throws
+			throw new RuntimeException(e.getCause());
+		} finally {
+			readers.shutdownNow();
+			workers.shutdownNow();
+			writers.shutdownNow();
+			for(Preprocessing p : created)
+				p.shutdown();
+		}
+	}
+
+	private static void read(Job job) {
+		long t0 = System.nanoTime();
+		try {
+			job.image = open(job.input);
+		} catch(Throwable e) {
+			job.error = e;
+		}
+		job.readMillis = millis(t0, System.nanoTime());
+	}
+
+	private static void process(PlanProvider plans, Preprocessing preprocessing, Job job) {
+		if(job.error != null)
+			return;
+		long t0 = System.nanoTime();
+		try {
+			Plan plan = plans.get(job.image.getCalibration());
+			preprocessing.setImage(job.image);
+			plan.apply(preprocessing);
+			job.image = preprocessing.getImage();
+		} catch(Throwable e) {
+			job.error = e;
+			job.image = null;
+		} finally {
+			release(preprocessing);
+		}
+		job.processMillis = millis(t0, System.nanoTime());
+	}
+
+	private static void write(Job job) {
+		if(job.error != null)
+			return;
+		long t0 = System.nanoTime();
+		try {
+			if(!IJ.saveAsTiff(job.image, job.output.toString()))
+				throw new IOException("Cannot write " + job.output);
+			job.writeMillis = millis(t0, System.nanoTime());
+		} catch(Throwable e) {
+			job.error = e;
+		} finally {
+			job.image = null;
+		}
+	}
+
+	private static void release(Preprocessing preprocessing) {
+		try {
+			preprocessing.setImage((ImagePlus) null);
+		} catch(RuntimeException e) {
+			// flushing the image of a failed file may fail again; it's dropped anyway
+		}
+	}
+
+	private static ImagePlus open(Path path) throws IOException {
+		ImagePlus image = IJ.openImage(path.toString());
+		if(image == null)
+			throw new IOException("Cannot open " + path);
+		return image;
+	}
+
+	private static long millis(long from, long to) {
+		return (to - from) / 1000000;
+	}
+
+	/**
+	 * The output file of each input: a TIFF file in <code>outputDir</code> with the same base name.
+	 */
+	private static List<Path> outputs(List<Path> inputs, Path outputDir) {
+		Map<Path, Path> inputOf = new HashMap<>();
+		List<Path> outputs = new ArrayList<>(inputs.size());
+		for(Path input : inputs) {
+			Path output = outputDir.resolve(baseName(input) + ".tif");
+			Path other = inputOf.putIfAbsent(output, input);
+			if(other != null)
+				throw new IllegalArgumentException("Both " + other + " and " + input + " would be written to " + output);
+			outputs.add(output);
+		}
+		return outputs;
+	}
+
+	private static String baseName(Path path) {
+		String name = path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * Lists the files in a directory, or the files matching a glob pattern in the
+	 * last path component (e.g. /data/raw/*.tif).
+	 */
+	public static List<Path> listInputs(String directoryOrGlob) throws IOException {
+		Path dir;
+		String glob;
+		if(new File(directoryOrGlob).isDirectory()) {
+			dir = Paths.get(directoryOrGlob);
+			glob = "*";
+		}
+		else {
+			int sep = Math.max(directoryOrGlob.lastIndexOf('/'), directoryOrGlob.lastIndexOf(File.separatorChar));
+			dir = Paths.get(sep < 0 ? "." : directoryOrGlob.substring(0, sep + 1));
+			glob = directoryOrGlob.substring(sep + 1);
+		}
+		List<Path> inputs = new ArrayList<>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+			for(Path p : stream)
+				if(Files.isRegularFile(p))
+					inputs.add(p);
+		}
+		Collections.sort(inputs);
+		return inputs;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		int inFlight = -1;
+		ExecutionMetrics metrics = null;
+		boolean snapshot = false;
+		int i = 0;
+		for(; i < args.length && args[i].startsWith("--"); i++) {
+			if(args[i].equals("--threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--in-flight"))
+				inFlight = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--metrics"))
+				metrics = new ExecutionMetrics();
+			else if(args[i].equals("--plan"))
+				snapshot = true;
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		if(args.length - i != 3) {
+			System.err.println("Usage: BatchRunner [--threads n] [--in-flight n] [--metrics] [--plan] script.txt|plan.bin input-dir|input-glob output-dir");
+			System.exit(2);
+		}
+		if(inFlight < 0)
+			inFlight = 2 * threads;
+
+		List<Path> inputs = listInputs(args[i + 1]);
+		Path outputDir = Paths.get(args[i + 2]);
+
+		long start = System.nanoTime();
+		BatchRunner runner = snapshot
+				? new BatchRunner(PlanSnapshot.read(Paths.get(args[i])), threads, inFlight)
+				: new BatchRunner(new String(Files.readAllBytes(Paths.get(args[i])), StandardCharsets.UTF_8), threads, inFlight);
+		runner.setMetrics(metrics);
+		List<Result> results = runner.run(inputs, outputDir, r -> {
+			synchronized(System.out) {
+				System.out.println(r);
+			}
+		});
+		int failed = 0;
+		for(Result r : results)
+			if(!r.isSuccess())
+				failed++;
+		System.out.println("Processed " + results.size() + " files in " + millis(start, System.nanoTime()) + " ms, " + failed + " failed");
+		if(metrics != null)
+			System.out.println(metrics.report());
+		System.exit(failed > 0 ? 1 : 0);
+	}
+}
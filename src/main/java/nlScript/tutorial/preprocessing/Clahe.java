@@ -0,0 +1,201 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Contrast limited adaptive histogram equalization (CLAHE), after Zuiderveld, "Contrast Limited
+ * Adaptive Histogram Equalization" (Graphics Gems IV, 1994).
+ *
+ * The image is divided into tiles of block size x block size pixels. For each tile, the histogram
+ * of its intensities (over the plane's range, in the given number of bins) is clipped at max slope
+ * times the mean bin count, the clipped counts are redistributed over all bins, and its cumulative
+ * histogram becomes the tile's mapping. The mapping at a pixel is interpolated bilinearly between the
+ * mappings of the four nearest tile centers, so that there are no edges between tiles. Histograms
+ * are computed in parallel, tile by tile, and the mapping in parallel, in bands of rows.
+ *
+ * With a mask, the enhanced value at a pixel is blended with the original one, weighted by the
+ * mask: 255 (or 65535 for 16-bit, 1.0 for 32-bit masks) gives the enhanced value, 0 the original.
+ *
+ * RGB images are enhanced channel by channel; results are rounded and clipped for integer types.
+ */
+final class Clahe {
+
+	private static final int ROWS_PER_TASK = 32;
+
+	// Clipping and redistributing converges within a few rounds; this is just a safeguard
+	private static final int MAX_CLIP_ROUNDS = 100;
+
+	private Clahe() {
+	}
+
+	/**
+	 * Enhances <code>ip</code> in place.
+	 *
+	 * @param slope  the maximum slope of the mappings, at least 1; the higher, the stronger the
+	 *               contrast.
+	 * @param mask   the weights of the enhanced values (of the same size as <code>ip</code>), or
+	 *               null to enhance all pixels fully.
+	 * @param te     runs tiles and bands of rows in parallel; null to run single-threaded.
+	 */
+	static void enhance(ImageProcessor ip, int blockSize, int bins, double slope, ImageProcessor mask, TiledExecutor te) {
+		float[] weights = mask == null ? null : weights(mask);
+		FloatProcessor fp = null;
+		for(int c = 0; c < ip.getNChannels(); c++) {
+			fp = ip.toFloat(c, fp);
+			enhance((float[]) fp.getPixels(), fp.getWidth(), fp.getHeight(), blockSize, bins, slope, weights, te);
+			ip.setPixels(c, fp);
+		}
+	}
+
+	static void enhance(float[] pixels, int w, int h, int blockSize, int bins, double slope, float[] weights, TiledExecutor te) {
+		float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+		for(float v : pixels) {
+			if(v < min) min = v;
+			if(v > max) max = v;
+		}
+		if(!(max > min))
+			return;
+
+		int nx = (w + blockSize - 1) / blockSize;
+		int ny = (h + blockSize - 1) / blockSize;
+		float binScale = bins / (max - min);
+		float[] maps = new float[nx * ny * bins];
+		float lo = min;
+		forEach(te, nx * ny, t -> {
+			int tx = t % nx, ty = t / nx;
+			int x0 = tx * blockSize, x1 = Math.min(w, x0 + blockSize);
+			int y0 = ty * blockSize, y1 = Math.min(h, y0 + blockSize);
+			int[] histogram = new int[bins];
+			for(int y = y0; y < y1; y++)
+				for(int x = x0; x < x1; x++)
+					histogram[bin(pixels[y * w + x], lo, binScale, bins)]++;
+			mapping(histogram, (x1 - x0) * (y1 - y0), slope, maps, t * bins);
+		});
+
+		// For each column (row), the tiles left (above) and right (below) of it, and the weight of the
+		// right (lower) one
+		int[] left = new int[w], right = new int[w];
+		float[] fx = new float[w];
+		neighbors(w, blockSize, nx, left, right, fx);
+		int[] top = new int[h], bottom = new int[h];
+		float[] fy = new float[h];
+		neighbors(h, blockSize, ny, top, bottom, fy);
+
+		float range = max - min;
+		forEach(te, (h + ROWS_PER_TASK - 1) / ROWS_PER_TASK, t -> {
+			for(int y = t * ROWS_PER_TASK; y < Math.min(h, (t + 1) * ROWS_PER_TASK); y++) {
+				int upper = top[y] * nx, lower = bottom[y] * nx;
+				float wy = fy[y];
+				for(int x = 0; x < w; x++) {
+					int i = y * w + x;
+					float v = pixels[i];
+					int b = bin(v, lo, binScale, bins);
+					float wx = fx[x];
+					float m0 = (1 - wx) * maps[(upper + left[x]) * bins + b] + wx * maps[(upper + right[x]) * bins + b];
+					float m1 = (1 - wx) * maps[(lower + left[x]) * bins + b] + wx * maps[(lower + right[x]) * bins + b];
+					float enhanced = lo + ((1 - wy) * m0 + wy * m1) * range;
+					pixels[i] = weights == null ? enhanced : (1 - weights[i]) * v + weights[i] * enhanced;
+				}
+			}
+		});
+	}
+
+	private static int bin(float v, float min, float binScale, int bins) {
+		int b = (int) ((v - min) * binScale);
+		return b < bins ? b : bins - 1;
+	}
+
+	/**
+	 * Clips <code>histogram</code> of a tile with <code>n</code> pixels, and writes its normalized
+	 * cumulative histogram to <code>maps</code>, starting at <code>offset</code>.
+	 */
+	private static void mapping(int[] histogram, int n, double slope, float[] maps, int offset) {
+		int bins = histogram.length;
+		// at least the mean, so that all pixels fit below the limit
+		int limit = Math.max((int) (slope * n / bins + 0.5), (n + bins - 1) / bins);
+		for(int round = 0; round < MAX_CLIP_ROUNDS; round++) {
+			int clipped = 0;
+			for(int b = 0; b < bins; b++) {
+				if(histogram[b] > limit) {
+					clipped += histogram[b] - limit;
+					histogram[b] = limit;
+				}
+			}
+			if(clipped == 0)
+				break;
+			int each = clipped / bins, rest = clipped % bins;
+			for(int b = 0; b < bins; b++)
+				histogram[b] += each;
+			for(int r = 0; r < rest; r++)
+				histogram[(int) ((long) r * bins / rest)]++;
+		}
+		int sum = 0;
+		for(int b = 0; b < bins; b++) {
+			sum += histogram[b];
+			maps[offset + b] = (float) sum / n;
+		}
+	}
+
+	/**
+	 * For each of the <code>length</code> pixels along one axis with <code>nTiles</code> tiles of
+	 * <code>blockSize</code>, the tiles whose centers are on either side of it, and the weight of
+	 * the second one. Before the first and after the last center, both are the same tile.
+	 */
+	private static void neighbors(int length, int blockSize, int nTiles, int[] first, int[] second, float[] weight) {
+		for(int i = 0; i < length; i++) {
+			// position relative to the tile centers, in tiles
+			float t = (i + 0.5f) / blockSize - 0.5f;
+			int t0 = (int) Math.floor(t);
+			float f = t - t0;
+			if(t0 < 0) {
+				t0 = 0;
+				f = 0;
+			}
+			if(t0 >= nTiles - 1) {
+				t0 = nTiles - 1;
+				f = 0;
+			}
+			// the last tile may be smaller, with its center closer to the one before
+			else if(t0 == nTiles - 2) {
+				float lastCenter = ((nTiles - 1) * blockSize + length) / 2f;
+				float center = t0 * blockSize + blockSize / 2f;
+				f = Math.min(1, Math.max(0, (i + 0.5f - center) / (lastCenter - center)));
+			}
+			first[i] = t0;
+			second[i] = Math.min(nTiles - 1, t0 + 1);
+			weight[i] = f;
+		}
+	}
+
+	/**
+	 * The mask as weights in [0, 1].
+	 */
+	private static float[] weights(ImageProcessor mask) {
+		if(mask instanceof ColorProcessor)
+			mask = mask.convertToByteProcessor();
+		float scale = mask instanceof ByteProcessor ? 1 / 255f
+				: mask instanceof ShortProcessor ? 1 / 65535f
+				: 1;
+		int n = mask.getPixelCount();
+		float[] weights = new float[n];
+		for(int i = 0; i < n; i++)
+			weights[i] = Math.min(1, Math.max(0, mask.getf(i) * scale));
+		return weights;
+	}
+
+	private static void forEach(TiledExecutor te, int n, IntConsumer task) {
+		if(te == null || n == 1) {
+			for(int i = 0; i < n; i++)
+				task.accept(i);
+		}
+		else {
+			te.forEach(n, task);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+
+/**
+ * A median filter whose cost per pixel doesn't depend on the radius, after Perreault and Hebert,
+ * "Median Filtering in Constant Time" (IEEE TIP, 2007).
+ *
+ * The window is a square of (2 * radius + 1) x (2 * radius + 1) pixels (unlike ImageJ's circular
+ * kernel). Pixels outside the image are replaced by the nearest edge pixel, like in ImageJ.
+ *
+ * For each column, a histogram over the 2 * radius + 1 rows of the window is kept, and moved down
+ * by one row for each image row (one pixel removed, one added). The histogram of the window is moved
+ * right along a row by adding one column histogram and subtracting another. Both histograms have two
+ * levels, coarse and fine; the fine level of the window histogram is only brought up to date for the
+ * coarse bin which contains the median.
+ *
+ * 16-bit images are first mapped to the ranks of their distinct values. If the column histograms
+ * over all distinct values would need too much memory for the whole width of the image, the image
+ * is filtered in vertical strips, each with column histograms for its own columns and the radius
+ * around them only. With many distinct values and large radii, the strips get narrow, and the cost
+ * of setting up the window histogram at the start of each row and strip grows with the radius.
+ *
+ * 8-bit, 16-bit and RGB images (channel by channel) are supported.
+ */
+final class ConstantTimeMedian {
+
+	// The column histograms of a strip have at most this many counts
+	static final long MAX_COLUMN_HISTOGRAM_SIZE = 1 << 22;
+
+	private ConstantTimeMedian() {
+	}
+
+	static boolean supports(ImageProcessor ip) {
+		return ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof ColorProcessor;
+	}
+
+	/**
+	 * Median-filters <code>ip</code> in place.
+	 */
+	static void filter(ImageProcessor ip, int radius) {
+		filter(ip, radius, MAX_COLUMN_HISTOGRAM_SIZE);
+	}
+
+	/**
+	 * Median-filters <code>ip</code> in place, in strips whose column histograms have at most
+	 * <code>maxColumnHistogramSize</code> counts.
+	 */
+	static void filter(ImageProcessor ip, int radius, long maxColumnHistogramSize) {
+		if(radius < 1)
+			return;
+		if(ip instanceof ColorProcessor) {
+			ColorProcessor cp = (ColorProcessor) ip;
+			ByteProcessor channel = null;
+			for(int c = 1; c <= 3; c++) {
+				channel = cp.getChannel(c, channel);
+				filter(channel, radius, maxColumnHistogramSize);
+				cp.setChannel(c, channel);
+			}
+			return;
+		}
+
+		int w = ip.getWidth(), h = ip.getHeight(), n = w * h;
+		char[] ranks = new char[n];
+		int[] values;
+		Object pixels = ip.getPixels();
+		if(pixels instanceof byte[]) {
+			byte[] in = (byte[]) pixels;
+			for(int i = 0; i < n; i++)
+				ranks[i] = (char) (in[i] & 0xff);
+			values = new int[256];
+			for(int v = 0; v < 256; v++)
+				values[v] = v;
+		}
+		else {
+			short[] in = (short[]) pixels;
+			int[] rankOf = new int[65536];
+			for(int i = 0; i < n; i++)
+				rankOf[in[i] & 0xffff] = 1;
+			int nValues = 0;
+			for(int v = 0; v < 65536; v++)
+				if(rankOf[v] != 0)
+					rankOf[v] = nValues++;
+			values = new int[nValues];
+			for(int i = 0; i < n; i++) {
+				int v = in[i] & 0xffff;
+				ranks[i] = (char) rankOf[v];
+				values[rankOf[v]] = v;
+			}
+		}
+
+		Histogram hist = new Histogram(values.length);
+		char[] median = new char[n];
+		int stripWidth = (int) Math.max(1, Math.min(w, maxColumnHistogramSize / hist.nBins - 2 * radius));
+		for(int x0 = 0; x0 < w; x0 += stripWidth)
+			perreaultHebert(ranks, w, h, radius, hist, median, x0, Math.min(w, x0 + stripWidth));
+
+		if(pixels instanceof byte[]) {
+			byte[] out = (byte[]) pixels;
+			for(int i = 0; i < n; i++)
+				out[i] = (byte) values[median[i]];
+		}
+		else {
+			short[] out = (short[]) pixels;
+			for(int i = 0; i < n; i++)
+				out[i] = (short) values[median[i]];
+		}
+	}
+
+	/**
+	 * A two-level histogram: nCoarse coarse bins, each covering <code>seg</code> fine bins.
+	 */
+	private static final class Histogram {
+		final int shift;
+		final int seg;
+		final int nCoarse;
+		final int nBins;
+		final int[] coarse;
+		final int[] fine;
+
+		Histogram(int nValues) {
+			int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, nValues - 1));
+			shift = (bits + 1) / 2;
+			seg = 1 << shift;
+			nCoarse = (nValues + seg - 1) >> shift;
+			nBins = nCoarse * seg;
+			coarse = new int[nCoarse];
+			fine = new int[nBins];
+		}
+	}
+
+	private static int clamp(int v, int max) {
+		return v < 0 ? 0 : v > max ? max : v;
+	}
+
+	/**
+	 * Computes the medians of the columns x0 to x1 - 1, from the histograms of the columns within
+	 * the radius around them.
+	 */
+	private static void perreaultHebert(char[] ranks, int w, int h, int r, Histogram kernel, char[] out, int x0, int x1) {
+		int nBins = kernel.nBins, nCoarse = kernel.nCoarse, seg = kernel.seg, shift = kernel.shift;
+		// the columns with histograms
+		int cLo = Math.max(0, x0 - r), cHi = Math.min(w, x1 + r);
+		char[] colFine = new char[(cHi - cLo) * nBins];
+		char[] colCoarse = new char[(cHi - cLo) * nCoarse];
+		int[] coarse = kernel.coarse;
+		int[] fine = kernel.fine;
+		// the x for which the fine bins of each coarse bin are up to date
+		int[] upToDate = new int[nCoarse];
+		int size = 2 * r + 1;
+		int target = size * size / 2 + 1;
+
+		for(int dy = -r; dy <= r; dy++) {
+			int row = clamp(dy, h - 1) * w;
+			for(int x = cLo; x < cHi; x++) {
+				int b = ranks[row + x];
+				colFine[(x - cLo) * nBins + b]++;
+				colCoarse[(x - cLo) * nCoarse + (b >> shift)]++;
+			}
+		}
+
+		for(int y = 0; y < h; y++) {
+			if(y > 0) {
+				int rowOut = clamp(y - r - 1, h - 1) * w;
+				int rowIn = clamp(y + r, h - 1) * w;
+				if(rowOut != rowIn) {
+					for(int x = cLo; x < cHi; x++) {
+						int bOut = ranks[rowOut + x];
+						int bIn = ranks[rowIn + x];
+						if(bOut == bIn)
+							continue;
+						int col = x - cLo;
+						colFine[col * nBins + bOut]--;
+						colCoarse[col * nCoarse + (bOut >> shift)]--;
+						colFine[col * nBins + bIn]++;
+						colCoarse[col * nCoarse + (bIn >> shift)]++;
+					}
+				}
+			}
+
+			Arrays.fill(coarse, 0);
+			for(int dx = -r; dx <= r; dx++) {
+				int col = (clamp(x0 + dx, w - 1) - cLo) * nCoarse;
+				for(int c = 0; c < nCoarse; c++)
+					coarse[c] += colCoarse[col + c];
+			}
+			Arrays.fill(upToDate, Integer.MIN_VALUE / 2);
+
+			for(int x = x0; x < x1; x++) {
+				if(x > x0) {
+					int colIn = (clamp(x + r, w - 1) - cLo) * nCoarse;
+					int colOut = (clamp(x - r - 1, w - 1) - cLo) * nCoarse;
+					if(colIn != colOut)
+						for(int c = 0; c < nCoarse; c++)
+							coarse[c] += colCoarse[colIn + c] - colCoarse[colOut + c];
+				}
+
+				int acc = 0;
+				int c = 0;
+				while(acc + coarse[c] < target)
+					acc += coarse[c++];
+
+				int from = c * seg;
+				// rebuild the fine bins if that is cheaper than updating them column by column
+				if(x - upToDate[c] > r) {
+					Arrays.fill(fine, from, from + seg, 0);
+					for(int dx = -r; dx <= r; dx++) {
+						int col = (clamp(x + dx, w - 1) - cLo) * nBins + from;
+						for(int b = 0; b < seg; b++)
+							fine[from + b] += colFine[col + b];
+					}
+				}
+				else {
+					for(int xx = upToDate[c] + 1; xx <= x; xx++) {
+						int colIn = (clamp(xx + r, w - 1) - cLo) * nBins + from;
+						int colOut = (clamp(xx - r - 1, w - 1) - cLo) * nBins + from;
+						if(colIn == colOut)
+							continue;
+						for(int b = 0; b < seg; b++)
+							fine[from + b] += colFine[colIn + b] - colFine[colOut + b];
+					}
+				}
+				upToDate[c] = x;
+
+				int b = from;
+				while(acc + fine[b] < target)
+					acc += fine[b++];
+				out[y * w + x] = (char) b;
+			}
+		}
+	}
+}
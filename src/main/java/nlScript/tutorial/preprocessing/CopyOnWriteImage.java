@@ -0,0 +1,132 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A cheap, writable view of an image, as a replacement for ImagePlus.duplicate().
+ *
+ * The view is a new ImagePlus with the same dimensions, calibration and lookup tables as the
+ * original, whose planes share their pixel arrays with the original's planes. Nothing is copied
+ * when the view is created. Preprocessing (see Preprocessing.setImage(CopyOnWriteImage)) copies a
+ * plane right before it would write to it in place. Planes which are never written, or only
+ * replaced (e.g. by converting them to 32-bit), are never copied, and the original stays untouched.
+ *
+ * The original must not be modified while the view is in use.
+ */
+public class CopyOnWriteImage {
+
+	private final ImagePlus original;
+
+	private final ImagePlus view;
+
+	// The pixel arrays of the original, compared by identity
+	private final Set<Object> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	public CopyOnWriteImage(ImagePlus original) {
+		this(original, pixels -> true);
+	}
+
+	/**
+	 * A view of <code>original</code> which only copies the planes whose pixels
+	 * <code>shared</code> is true for, e.g. because they are still shared with another image, and
+	 * writes to the other planes of <code>original</code> in place.
+	 */
+	CopyOnWriteImage(ImagePlus original, Predicate<Object> shared) {
+		this.original = original;
+
+		ImageProcessor ip = original.getProcessor();
+		ImageStack stack = original.getStack();
+		ImageStack planes = new ImageStack(original.getWidth(), original.getHeight(), ip.getColorModel());
+		for(int s = 1; s <= stack.getSize(); s++) {
+			Object pixels = stack.getPixels(s);
+			if(shared.test(pixels))
+				this.shared.add(pixels);
+			planes.addSlice(stack.getSliceLabel(s), pixels);
+		}
+		// for single images, getStack() may return a copy of the processor's pixels
+		if(shared.test(ip.getPixels()))
+			this.shared.add(ip.getPixels());
+
+		ImagePlus view = new ImagePlus("DUP_" + original.getTitle(), planes);
+		view.setDimensions(original.getNChannels(), original.getNSlices(), original.getNFrames());
+		view.setCalibration(original.getCalibration());
+		Object info = original.getProperty("Info");
+		if(info != null)
+			view.setProperty("Info", info);
+		if(original.isComposite()) {
+			CompositeImage composite = new CompositeImage(view, ((CompositeImage) original).getMode());
+			composite.setLuts(original.getLuts());
+			view = composite;
+		}
+		else if(original.getType() != ImagePlus.COLOR_RGB) {
+			view.setDisplayRange(ip.getMin(), ip.getMax());
+		}
+		if(original.isHyperStack())
+			view.setOpenAsHyperStack(true);
+		view.setPosition(original.getChannel(), original.getSlice(), original.getFrame());
+		this.view = view;
+	}
+
+	public ImagePlus getOriginal() {
+		return original;
+	}
+
+	public ImagePlus getView() {
+		return view;
+	}
+
+	/**
+	 * Whether <code>pixels</code> are those of a plane of the original which is copied before it is
+	 * written.
+	 */
+	boolean isShared(Object pixels) {
+		return shared.contains(pixels);
+	}
+
+	/**
+	 * Makes sure that <code>ip</code>, which is the plane with (1-based) index <code>slice</code> of
+	 * <code>image</code>, doesn't share its pixels with the original, by copying them if necessary.
+	 */
+	void materialize(ImagePlus image, ImageProcessor ip, int slice) {
+		materialize(image, ip, slice, shared::contains);
+	}
+
+	/**
+	 * Copies the pixels of <code>ip</code>, which is the plane with (1-based) index
+	 * <code>slice</code> of <code>image</code>, if <code>shared</code> is true for them.
+	 */
+	static void materialize(ImagePlus image, ImageProcessor ip, int slice, Predicate<Object> shared) {
+		Object pixels = ip.getPixels();
+		if(!shared.test(pixels))
+			return;
+		Object copy = copy(pixels);
+		ip.setPixels(copy);
+		// also for single images, since ImagePlus re-loads its processor from the stack
+		ImageStack stack = image.getStack();
+		if(stack.getPixels(slice) == pixels)
+			stack.setPixels(copy, slice);
+		ImageProcessor current = image.getProcessor();
+		if(current != ip && current.getPixels() == pixels)
+			current.setPixels(copy);
+	}
+
+	static Object copy(Object pixels) {
+		if(pixels instanceof byte[])
+			return ((byte[]) pixels).clone();
+		if(pixels instanceof short[])
+			return ((short[]) pixels).clone();
+		if(pixels instanceof float[])
+			return ((float[]) pixels).clone();
+		if(pixels instanceof int[])
+			return ((int[]) pixels).clone();
+		throw new IllegalArgumentException("Unsupported pixel type: " + pixels.getClass());
+	}
+}
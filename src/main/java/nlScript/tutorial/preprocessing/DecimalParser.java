@@ -0,0 +1,81 @@
+package nlScript.tutorial.preprocessing;
+
+/**
+ * Parses decimal numbers from a CharSequence, without copying it into a String.
+ *
+ * A number with at most 15 significant digits and a decimal exponent of at most 22 (like everything
+ * typed into a script) is computed as its digits times or divided by a power of ten. Both are exact
+ * doubles, so the single rounding of the product or quotient gives the same result as
+ * Double.parseDouble(), without allocating. Anything else is passed on to Double.parseDouble().
+ */
+final class DecimalParser {
+
+	// the most significant digits which are always exact in a double
+	private static final int MAX_EXACT_DIGITS = 15;
+
+	// the powers of ten which are exact in a double
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private DecimalParser() {
+	}
+
+	/**
+	 * Parses <code>s</code>, an optionally signed decimal number with an optional exponent, like
+	 * Double.parseDouble() does.
+	 *
+	 * @throws NumberFormatException if <code>s</code> is not a number.
+	 */
+	static double parse(CharSequence s) {
+		int n = s.length();
+		int i = 0;
+		boolean negative = false;
+		if(i < n && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+			negative = s.charAt(i++) == '-';
+
+		long digits = 0;
+		int nDigits = 0, nMantissa = 0, exponent = 0;
+		boolean dot = false;
+		for(; i < n; i++) {
+			char c = s.charAt(i);
+			if(c == '.' && !dot) {
+				dot = true;
+				continue;
+			}
+			if(c < '0' || c > '9')
+				break;
+			nMantissa++;
+			// leading zeros aren't significant
+			if(digits != 0 || c != '0')
+				nDigits++;
+			if(nDigits > MAX_EXACT_DIGITS)
+				return Double.parseDouble(s.toString());
+			digits = 10 * digits + (c - '0');
+			if(dot)
+				exponent--;
+		}
+		if(nMantissa == 0)
+			return Double.parseDouble(s.toString());
+
+		if(i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if(i < n && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+				negativeExponent = s.charAt(i++) == '-';
+			int e = 0, nExponent = 0;
+			for(; i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9' && e < 1000; i++, nExponent++)
+				e = 10 * e + (s.charAt(i) - '0');
+			if(nExponent == 0)
+				return Double.parseDouble(s.toString());
+			exponent += negativeExponent ? -e : e;
+		}
+		if(i < n || Math.abs(exponent) >= POWERS_OF_TEN.length)
+			return Double.parseDouble(s.toString());
+
+		double value = exponent < 0
+				? digits / POWERS_OF_TEN[-exponent]
+				: digits * POWERS_OF_TEN[exponent];
+		return negative ? -value : value;
+	}
+}
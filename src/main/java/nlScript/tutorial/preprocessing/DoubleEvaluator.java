@@ -0,0 +1,54 @@
+package nlScript.tutorial.preprocessing;
+
+import nlScript.Evaluator;
+import nlScript.ParsedNode;
+
+/**
+ * Evaluates a type whose value is a number, like 'filter-size', to an unboxed double.
+ *
+ * nlScript's Evaluator returns an Object, so every evaluation of such a type allocates a Double,
+ * which the sentence then casts back. Sentences which know the type of their variable can instead
+ * call the DoubleEvaluator directly on the variable's node (see NamedChild), without boxing. The
+ * parser still needs an Evaluator for the type, e.g. for pn.evaluate(name), which boxed() provides.
+ *
+ * <pre>
+ * DoubleEvaluator filterSize = pn -&gt; ...;
+ * parser.defineType("filter-size", "{stddev:float} {units:units}", filterSize.boxed(), true);
+ *
+ * NamedChild stddev = new NamedChild("stddev");
+ * parser.defineSentence("Apply Gaussian blurring with a standard deviation of {stddev:filter-size}.", pn -&gt; {
+ *     preprocessing.gaussianBlur((float) filterSize.evaluate(stddev.of(pn)));
+ *     return null;
+ * });
+ * </pre>
+ */
+@FunctionalInterface
+public interface DoubleEvaluator {
+
+	double evaluate(ParsedNode pn);
+
+	/**
+	 * This evaluator as an nlScript Evaluator, which returns the value as a Double.
+	 */
+	default Evaluator boxed() {
+		return pn -> evaluate(pn);
+	}
+
+	/**
+	 * Evaluates a node parsed by nlScript's built-in 'float' or 'int' type from its parsed text,
+	 * instead of via its (boxing) Evaluator.
+	 *
+	 * This is not free of allocation: ParsedNode only offers its text as a new String (see
+	 * getParsedString()). The number itself is parsed without allocating (see parse(CharSequence)).
+	 */
+	static double parse(ParsedNode pn) {
+		return parse(pn.getParsedString());
+	}
+
+	/**
+	 * Parses a decimal number like '-12.5' without allocating (see DecimalParser).
+	 */
+	static double parse(CharSequence s) {
+		return DecimalParser.parse(s);
+	}
+}
@@ -0,0 +1,130 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.measure.Calibration;
+import nlScript.Parser;
+
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * A type whose definitions depend on runtime state, like the 'units' type, whose options depend
+ * on the calibration of the current image.
+ *
+ * Instead of re-defining the type at the start of every parse (see Tutorial08), the state it
+ * depends on is summarized by a version key. The type is only re-defined when the key differs from
+ * the one it was last defined for, so the parser keeps its grammar as long as the key is the same.
+ *
+ * The definitions are first made when the type is registered, with a <code>null</code> key, since
+ * the runtime state is typically not known yet at that time. Example:
+ *
+ * <pre>
+ * DynamicType.define(parser, "units",
+ *         () -&gt; image.getCalibration().getUnits(),
+ *         (p, unitsString) -&gt; {
+ *             p.defineType("units", "pixel(s)", pn -&gt; false);
+ *             if(unitsString != null)
+ *                 p.defineType("units", unitsString, pn -&gt; true);
+ *         });
+ * </pre>
+ *
+ * which is what defineUnits() does.
+ *
+ * @param <K> the type of the version key, which must implement equals().
+ */
+public class DynamicType<K> {
+
+	private final Parser parser;
+
+	private final String type;
+
+	private final Supplier<K> versionKey;
+
+	private final BiConsumer<Parser, K> definitions;
+
+	private K definedFor = null;
+
+	private boolean defined = false;
+
+	private DynamicType(Parser parser, String type, Supplier<K> versionKey, BiConsumer<Parser, K> definitions) {
+		this.parser = parser;
+		this.type = type;
+		this.versionKey = versionKey;
+		this.definitions = definitions;
+	}
+
+	/**
+	 * Registers a dynamic type with <code>parser</code>.
+	 *
+	 * @param type         the type name.
+	 * @param versionKey   returns the current version key; called at the start of each parse.
+	 * @param definitions  defines all definitions of <code>type</code> on the given parser, for the given key
+	 *                     (which is <code>null</code> for the initial definitions).
+	 */
+	public static <K> DynamicType<K> define(Parser parser, String type, Supplier<K> versionKey, BiConsumer<Parser, K> definitions) {
+		DynamicType<K> dt = new DynamicType<>(parser, type, versionKey, definitions);
+		definitions.accept(parser, null);
+		dt.defined = true;
+		parser.addParseStartListener(dt::update);
+		return dt;
+	}
+
+	/**
+	 * Registers the 'units' type: 'pixel(s)', which evaluates to false, and the units of the
+	 * calibration, which evaluates to true.
+	 *
+	 * @param calibration  returns the calibration of the current image; called at the start of each
+	 *                     parse.
+	 */
+	public static DynamicType<String> defineUnits(Parser parser, Supplier<Calibration> calibration) {
+		return define(parser, "units",
+				() -> calibration.get().getUnits(),
+				(p, unitsString) -> {
+					p.defineType("units", "pixel(s)", pn -> false);
+					if(unitsString != null)
+						p.defineType("units", unitsString, pn -> true);
+				});
+	}
+
+	/**
+	 * Like defineUnits(Parser, Supplier), but autocompletes both literals with <code>completer</code>,
+	 * whose literals are set to 'pixel(s)' and the units of the calibration whenever the type is
+	 * re-defined, i.e. only when the units change.
+	 */
+	public static DynamicType<String> defineUnits(Parser parser, Supplier<Calibration> calibration, LiteralCompleter completer) {
+		return define(parser, "units",
+				() -> calibration.get().getUnits(),
+				(p, unitsString) -> {
+					if(unitsString == null)
+						completer.setLiterals("pixel(s)");
+					else
+						completer.setLiterals("pixel(s)", unitsString);
+					p.defineType("units", "pixel(s)", pn -> false, completer);
+					if(unitsString != null)
+						p.defineType("units", unitsString, pn -> true, completer);
+				});
+	}
+
+	/**
+	 * Re-defines the type if the version key changed since it was last defined.
+	 */
+	public synchronized void update() {
+		K key = versionKey.get();
+		if(defined && Objects.equals(key, definedFor))
+			return;
+		if(defined)
+			parser.undefineType(type);
+		definitions.accept(parser, key);
+		definedFor = key;
+		defined = true;
+	}
+
+	/**
+	 * Forces the type to be re-defined at the start of the next parse.
+	 */
+	public synchronized void invalidate() {
+		if(defined)
+			parser.undefineType(type);
+		defined = false;
+	}
+}
@@ -0,0 +1,333 @@
+package nlScript.tutorial.preprocessing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Records how long Preprocessing operations take, and what they cost.
+ *
+ * Every sentence of the preprocessing language evaluates to exactly one Operation, so recording in
+ * Preprocessing.execute() yields per-sentence numbers. For each operation, a Sample is recorded with
+ * <ul>
+ *   <li>the wall time,</li>
+ *   <li>the CPU time of the calling thread and of the ForkJoinPool threads it runs its tiles on,</li>
+ *   <li>the bytes allocated by these threads, and</li>
+ *   <li>the number of pixels processed.</li>
+ * </ul>
+ * CPU time and allocations are measured per thread, so operations of other Preprocessings running
+ * at the same time (e.g. in BatchRunner) aren't counted. If the pool is shared with other
+ * operations running at the same time (e.g. in ImageGraph), their costs can't be told apart; only
+ * the wall time is recorded then, and the CPU and allocation columns are reported as n/a. The same
+ * holds for operations that run ImageJ's own multi-threaded filters, i.e. gaussianBlur and
+ * unsharpMask with GaussianEngine.IMAGEJ, and medianFilter with RankFilters: most of their work is
+ * done on short-lived threads started by ImageJ, which can't be measured per thread, and measuring
+ * the whole process would count everything else running at the same time.
+ *
+ * Samples are aggregated into a Timer per operation name (e.g. "gaussianBlur"), which provides counts,
+ * totals, throughput and latency percentiles, for export to dashboards. The most recent samples are
+ * kept as well, to find out which sentence of a script was slow.
+ *
+ * Usage:
+ * <pre>
+ * ExecutionMetrics metrics = new ExecutionMetrics();
+ * preprocessing.setMetrics(metrics);
+ * ... run script ...
+ * System.out.println(metrics.report());
+ * </pre>
+ */
+public class ExecutionMetrics {
+
+	private static final int MAX_SAMPLES = 1000;
+
+	/**
+	 * The cost of a single operation.
+	 */
+	public static class Sample {
+		public final String operation;
+		public final long wallNanos;
+		// -1 if unknown
+		public final long cpuNanos;
+		// -1 if unknown
+		public final long allocatedBytes;
+		public final long pixels;
+
+		Sample(String operation, long wallNanos, long cpuNanos, long allocatedBytes, long pixels) {
+			this.operation = operation;
+			this.wallNanos = wallNanos;
+			this.cpuNanos = cpuNanos;
+			this.allocatedBytes = allocatedBytes;
+			this.pixels = pixels;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-40s %10.2f ms wall %10s ms cpu %12s bytes %12d pixels",
+					operation, wallNanos / 1e6, cpuMillis(cpuNanos), bytes(allocatedBytes), pixels);
+		}
+	}
+
+	/**
+	 * Aggregated samples of one kind of operation.
+	 */
+	public static class Timer {
+
+		// Latency histogram: bucket b counts wall times in [2^(b/4), 2^((b+1)/4)) microseconds
+		private static final int BUCKETS_PER_OCTAVE = 4;
+		private static final int N_BUCKETS = 40 * BUCKETS_PER_OCTAVE;
+
+		private final String name;
+		private final long[] histogram = new long[N_BUCKETS];
+		private long count = 0;
+		private long totalWallNanos = 0;
+		private long maxWallNanos = 0;
+		// -1 once a sample's CPU time (allocations) was unknown
+		private long totalCpuNanos = 0;
+		private long totalAllocatedBytes = 0;
+		private long totalPixels = 0;
+
+		Timer(String name) {
+			this.name = name;
+		}
+
+		synchronized void record(Sample s) {
+			count++;
+			totalWallNanos += s.wallNanos;
+			maxWallNanos = Math.max(maxWallNanos, s.wallNanos);
+			totalCpuNanos = s.cpuNanos < 0 || totalCpuNanos < 0 ? -1 : totalCpuNanos + s.cpuNanos;
+			totalAllocatedBytes = s.allocatedBytes < 0 || totalAllocatedBytes < 0 ? -1 : totalAllocatedBytes + s.allocatedBytes;
+			totalPixels += s.pixels;
+			double micros = Math.max(1, s.wallNanos / 1000.0);
+			int bucket = (int) (BUCKETS_PER_OCTAVE * Math.log(micros) / Math.log(2));
+			histogram[Math.min(N_BUCKETS - 1, bucket)]++;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public synchronized long count() {
+			return count;
+		}
+
+		public synchronized double totalMillis() {
+			return totalWallNanos / 1e6;
+		}
+
+		public synchronized double meanMillis() {
+			return count == 0 ? 0 : totalWallNanos / 1e6 / count;
+		}
+
+		public synchronized double maxMillis() {
+			return maxWallNanos / 1e6;
+		}
+
+		/**
+		 * The total CPU time, or NaN if it is unknown for any of the samples.
+		 */
+		public synchronized double totalCpuMillis() {
+			return totalCpuNanos < 0 ? Double.NaN : totalCpuNanos / 1e6;
+		}
+
+		/**
+		 * The total bytes allocated, or -1 if unknown for any of the samples.
+		 */
+		public synchronized long totalAllocatedBytes() {
+			return totalAllocatedBytes;
+		}
+
+		public synchronized long totalPixels() {
+			return totalPixels;
+		}
+
+		/**
+		 * Processed pixels per second of wall time.
+		 */
+		public synchronized double pixelsPerSecond() {
+			return totalWallNanos == 0 ? 0 : totalPixels * 1e9 / totalWallNanos;
+		}
+
+		/**
+		 * The wall time (in ms) below which the fraction <code>q</code> of all samples lie, e.g. q = 0.99
+		 * for the 99th percentile. The resolution is about 19% (the width of a histogram bucket).
+		 */
+		public synchronized double percentileMillis(double q) {
+			if(count == 0)
+				return 0;
+			long rank = (long) Math.ceil(q * count);
+			long seen = 0;
+			for(int b = 0; b < N_BUCKETS; b++) {
+				seen += histogram[b];
+				if(seen >= rank)
+					return Math.min(maxMillis(), Math.pow(2, (b + 1.0) / BUCKETS_PER_OCTAVE) / 1000);
+			}
+			return maxMillis();
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format("%-24s n=%-6d mean %10.2f ms  p99 %10.2f ms  max %10.2f ms  cpu %10s ms  %12.0f pixels/s  %14s bytes",
+					name, count, meanMillis(), percentileMillis(0.99), maxMillis(), cpuMillis(totalCpuNanos), pixelsPerSecond(), bytes(totalAllocatedBytes));
+		}
+	}
+
+	private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+	private final ArrayDeque<Sample> recent = new ArrayDeque<>();
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Runs <code>task</code> on the calling thread, and records its cost under <code>name</code>.
+	 *
+	 * @param description  a description of this particular execution, e.g. the operation with its arguments.
+	 */
+	public void record(String name, String description, long pixels, Runnable task) {
+		record(name, description, pixels, () -> new long[0], task);
+	}
+
+	/**
+	 * Runs <code>task</code>, and records its cost under <code>name</code>.
+	 *
+	 * @param helpers  the ids of the threads which <code>task</code> runs parts of its work on,
+	 *                 besides the calling thread, e.g. those of a ForkJoinPool; asked before and
+	 *                 after the task, since pools start their threads on demand. If null, the task
+	 *                 runs on threads shared with other work, and only its wall time is recorded.
+	 */
+	void record(String name, String description, long pixels, Supplier<long[]> helpers, Runnable task) {
+		long[] ids0 = helpers == null ? null : threadIds(helpers.get());
+		long[] cpu0 = ids0 == null ? null : cpuNanos(ids0);
+		long[] alloc0 = ids0 == null ? null : allocatedBytes(ids0);
+		long t0 = System.nanoTime();
+		try {
+			task.run();
+		} finally {
+			long wall = System.nanoTime() - t0;
+			long cpu = -1, alloc = -1;
+			if(ids0 != null) {
+				long[] ids1 = threadIds(helpers.get());
+				cpu = difference(ids0, cpu0, ids1, cpuNanos(ids1));
+				alloc = difference(ids0, alloc0, ids1, allocatedBytes(ids1));
+			}
+			Sample sample = new Sample(description, wall, cpu, alloc, pixels);
+			getTimer(name).record(sample);
+			synchronized(recent) {
+				if(recent.size() == MAX_SAMPLES)
+					recent.removeFirst();
+				recent.addLast(sample);
+			}
+		}
+	}
+
+	public Timer getTimer(String name) {
+		return timers.computeIfAbsent(name, Timer::new);
+	}
+
+	/**
+	 * All timers, sorted by name.
+	 */
+	public List<Timer> getTimers() {
+		return new ArrayList<>(new TreeMap<>(timers).values());
+	}
+
+	/**
+	 * The most recent samples, oldest first.
+	 */
+	public List<Sample> getSamples() {
+		synchronized(recent) {
+			return Collections.unmodifiableList(new ArrayList<>(recent));
+		}
+	}
+
+	public void reset() {
+		timers.clear();
+		synchronized(recent) {
+			recent.clear();
+		}
+	}
+
+	/**
+	 * A human-readable summary: one line per timer, followed by the most recent samples.
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		for(Timer t : getTimers())
+			sb.append(t).append('\n');
+		sb.append('\n');
+		for(Sample s : getSamples())
+			sb.append(s).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * The calling thread, followed by <code>helpers</code>.
+	 */
+	private static long[] threadIds(long[] helpers) {
+		long[] ids = new long[helpers.length + 1];
+		ids[0] = Thread.currentThread().getId();
+		System.arraycopy(helpers, 0, ids, 1, helpers.length);
+		return ids;
+	}
+
+	/**
+	 * The CPU time of each thread, or null if not supported.
+	 */
+	private long[] cpuNanos(long[] ids) {
+		if(!threads.isThreadCpuTimeSupported() || !threads.isThreadCpuTimeEnabled())
+			return null;
+		long[] nanos = new long[ids.length];
+		for(int i = 0; i < ids.length; i++)
+			nanos[i] = threads.getThreadCpuTime(ids[i]);
+		return nanos;
+	}
+
+	/**
+	 * The bytes allocated by each thread, or null if not supported.
+	 */
+	private long[] allocatedBytes(long[] ids) {
+		if(!(threads instanceof com.sun.management.ThreadMXBean))
+			return null;
+		com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+		if(!t.isThreadAllocatedMemorySupported() || !t.isThreadAllocatedMemoryEnabled())
+			return null;
+		return t.getThreadAllocatedBytes(ids);
+	}
+
+	/**
+	 * The sum over the threads alive at the end of how much their counters grew, or -1 if the
+	 * counters aren't supported. Threads started in between count from 0.
+	 */
+	private static long difference(long[] ids0, long[] values0, long[] ids1, long[] values1) {
+		if(values0 == null || values1 == null)
+			return -1;
+		long sum = 0;
+		for(int i = 0; i < ids1.length; i++) {
+			if(values1[i] < 0)
+				continue;
+			long before = 0;
+			for(int j = 0; j < ids0.length; j++) {
+				if(ids0[j] == ids1[i]) {
+					before = Math.max(0, values0[j]);
+					break;
+				}
+			}
+			sum += Math.max(0, values1[i] - before);
+		}
+		return sum;
+	}
+
+	private static String cpuMillis(long nanos) {
+		return nanos < 0 ? "n/a" : String.format("%.2f", nanos / 1e6);
+	}
+
+	private static String bytes(long bytes) {
+		return bytes < 0 ? "n/a" : Long.toString(bytes);
+	}
+}
@@ -0,0 +1,400 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A script working on several named images (image variables), compiled into a graph of the
+ * Operations and the images they depend on, so that independent branches run in parallel.
+ *
+ * Operations run on the current image variable, which starts out as 'input'. A script switches to
+ * a new variable by duplicating the current one, and back to an existing one by selecting it (see
+ * Builder). Operations may also read other variables, e.g. a mask (see Operation.inputs()). E.g.
+ *
+ * <pre>
+ * Duplicate input as mask.
+ * Apply Gaussian blurring with a standard deviation of 10 pixel(s).
+ * Continue with input.
+ * Apply a Median filter with radius of 2 pixel(s).
+ * Enhance local contrast via CLAHE ..., using mask as a mask.
+ * </pre>
+ *
+ * Each node of the graph is the result of one operation. It depends on the node it runs on, and
+ * on the nodes it reads. In the example, the Gaussian and the Median filter only depend on the
+ * input, and run at the same time; CLAHE waits for both.
+ *
+ * Nodes whose dependencies are done are run as tasks on a single ForkJoinPool, which also runs
+ * the filters' tiles and planes (see TiledExecutor), so idle threads steal work from any branch.
+ * A result which only a single node depends on is handed over to it and processed in place; a
+ * result which several nodes depend on is passed to each of them as a CopyOnWriteImage. Planes
+ * which a node didn't write are still those of its source, and are copied before a node
+ * processing its result in place writes them, just like the source's planes would be. Each
+ * result is dropped as soon as the last node depending on it is done, unless it is the final
+ * image of a variable. The input image itself is never modified.
+ *
+ * A graph is immutable, and may be run on any number of images.
+ */
+public final class ImageGraph {
+
+	/** The name of the image a graph is run on. */
+	public static final String INPUT = "input";
+
+	/**
+	 * A node of the graph: the image of <code>variable</code> after running <code>operation</code>
+	 * on <code>source</code>, while reading <code>reads</code>. The input node has neither.
+	 */
+	private static final class Node {
+		final int index;
+		final String variable;
+		final Operation operation;
+		final Node source;
+		// the nodes read by the operation, by variable name
+		final Map<String, Node> reads;
+		// source and reads, without duplicates
+		final List<Node> dependencies = new ArrayList<>();
+		// the nodes depending on this one
+		final List<Node> consumers = new ArrayList<>();
+		// whether this is the final image of a variable
+		boolean output = false;
+
+		Node(int index, String variable, Operation operation, Node source, Map<String, Node> reads) {
+			this.index = index;
+			this.variable = variable;
+			this.operation = operation;
+			this.source = source;
+			this.reads = reads;
+			if(source != null)
+				dependencies.add(source);
+			for(Node read : reads.values())
+				if(!dependencies.contains(read))
+					dependencies.add(read);
+			for(Node dependency : dependencies)
+				dependency.consumers.add(this);
+		}
+
+		/**
+		 * Whether the operation may run on the source's image itself, instead of a copy.
+		 */
+		boolean inPlace() {
+			return source.source != null
+					&& !source.output
+					&& source.consumers.size() == 1
+					&& !reads.containsValue(source);
+		}
+
+		@Override
+		public String toString() {
+			return variable + " = " + (operation == null ? "(input)" : operation);
+		}
+	}
+
+	// in the order they were added, which is a topological order
+	private final List<Node> nodes;
+
+	// the final node of each variable
+	private final Map<String, Node> outputs;
+
+	private final String current;
+
+	private ImageGraph(List<Node> nodes, Map<String, Node> outputs, String current) {
+		this.nodes = nodes;
+		this.outputs = outputs;
+		this.current = current;
+	}
+
+	/**
+	 * The names of all image variables, starting with 'input'.
+	 */
+	public List<String> getVariables() {
+		return new ArrayList<>(outputs.keySet());
+	}
+
+	/**
+	 * The variable which was current at the end of the script.
+	 */
+	public String getCurrent() {
+		return current;
+	}
+
+	/**
+	 * The number of operations.
+	 */
+	public int size() {
+		return nodes.size() - 1;
+	}
+
+	/**
+	 * Runs the graph on <code>input</code> with default settings (see run(ImagePlus, Preprocessing)).
+	 */
+	public Map<String, ImagePlus> run(ImagePlus input) {
+		return run(input, new Preprocessing());
+	}
+
+	/**
+	 * Runs the graph on <code>input</code>, which is left untouched, and returns the final image of
+	 * each variable. Variables which weren't processed are mapped to <code>input</code>.
+	 *
+	 * @param settings  the engines, accuracies and parallelism to process with, whether all planes
+	 *                  are processed, and the monitor; its image isn't used. The parallelism is the
+	 *                  number of threads shared by all nodes.
+	 */
+	public Map<String, ImagePlus> run(ImagePlus input, Preprocessing settings) {
+		TiledExecutor executor = new TiledExecutor(settings.getParallelism());
+		try {
+			return new Execution(input, settings, executor).run();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(Node node : nodes)
+			sb.append(node).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * The state of one run of the graph.
+	 */
+	private final class Execution {
+		private final ImagePlus input;
+		private final Preprocessing settings;
+		private final TiledExecutor executor;
+
+		// the result of each node, until the last node depending on it is done
+		private final ImagePlus[] results;
+		// the view each result was computed on, which knows the planes still shared with other
+		// results; null if it was computed on a private image
+		private final CopyOnWriteImage[] views;
+		// the number of dependencies of each node which are not done yet
+		private final AtomicInteger[] pending;
+		// the number of nodes depending on each node which are not done yet (+1 for outputs)
+		private final AtomicInteger[] references;
+
+		private final CountDownLatch done;
+		private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+		Execution(ImagePlus input, Preprocessing settings, TiledExecutor executor) {
+			this.input = input;
+			this.settings = settings;
+			this.executor = executor;
+			int n = nodes.size();
+			this.results = new ImagePlus[n];
+			this.views = new CopyOnWriteImage[n];
+			this.pending = new AtomicInteger[n];
+			this.references = new AtomicInteger[n];
+			for(Node node : nodes) {
+				pending[node.index] = new AtomicInteger(node.dependencies.size());
+				references[node.index] = new AtomicInteger(node.consumers.size() + (node.output ? 1 : 0));
+			}
+			this.done = new CountDownLatch(n);
+		}
+
+		Map<String, ImagePlus> run() {
+			executor.execute(() -> run(nodes.get(0)));
+			try {
+				done.await();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				error.compareAndSet(null, e);
+			}
+			Throwable t = error.get();
+			if(t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			if(t instanceof Error)
+				throw (Error) t;
+			if(t != null)
+				throw new RuntimeException(t);
+
+			Map<String, ImagePlus> images = new LinkedHashMap<>();
+			for(Map.Entry<String, Node> e : outputs.entrySet())
+				images.put(e.getKey(), results[e.getValue().index]);
+			return images;
+		}
+
+		/**
+		 * Runs <code>node</code>, and then the nodes which only waited for it, the last of them in
+		 * the same task.
+		 */
+		private void run(Node node) {
+			while(node != null) {
+				if(error.get() == null) {
+					try {
+						compute(node);
+					} catch(Throwable t) {
+						error.compareAndSet(null, t);
+					}
+				}
+				for(Node dependency : node.dependencies)
+					release(dependency);
+
+				Node next = null;
+				for(Node consumer : node.consumers) {
+					if(pending[consumer.index].decrementAndGet() == 0) {
+						if(next != null) {
+							Node ready = next;
+							executor.execute(() -> run(ready));
+						}
+						next = consumer;
+					}
+				}
+				done.countDown();
+				node = next;
+			}
+		}
+
+		private void compute(Node node) {
+			if(node.source == null) {
+				results[node.index] = input;
+				return;
+			}
+			Preprocessing preprocessing = processor();
+			ImagePlus image = results[node.source.index];
+			CopyOnWriteImage sourceView = views[node.source.index];
+			CopyOnWriteImage view = null;
+			if(!node.inPlace())
+				view = new CopyOnWriteImage(image);
+			else if(sourceView != null)
+				view = new CopyOnWriteImage(image, sourceView::isShared);
+			if(view == null)
+				preprocessing.setImage(image);
+			else
+				preprocessing.setImage(view);
+			views[node.index] = view;
+			preprocessing.setImages(name -> {
+				Node read = node.reads.get(name);
+				return read == null ? null : results[read.index];
+			});
+			preprocessing.execute(node.operation);
+			results[node.index] = preprocessing.getImage();
+		}
+
+		/**
+		 * Drops the result of <code>node</code> once nothing depends on it anymore.
+		 */
+		private void release(Node node) {
+			if(references[node.index].decrementAndGet() == 0) {
+				results[node.index] = null;
+				views[node.index] = null;
+			}
+		}
+
+		private Preprocessing processor() {
+			Preprocessing preprocessing = new Preprocessing();
+			preprocessing.setExecutor(executor);
+			preprocessing.setProcessAllPlanes(settings.isProcessAllPlanes());
+			preprocessing.setGaussianEngine(settings.getGaussianEngine());
+			preprocessing.setMedianEngine(settings.getMedianEngine());
+			preprocessing.setBackgroundEngine(settings.getBackgroundEngine());
+			preprocessing.setBackgroundAccuracy(settings.getBackgroundAccuracy());
+			// so that the graph can be cancelled (see AsyncRunner)
+			preprocessing.setMonitor(settings.getMonitor());
+			return preprocessing;
+		}
+	}
+
+	/**
+	 * A Preprocessing which records the operations passed to execute() into an ImageGraph instead
+	 * of running them, as operations on the current image variable. Its image is only used for
+	 * looking up the calibration while a script is evaluated.
+	 */
+	public static final class Builder extends Preprocessing {
+		private final List<Node> nodes = new ArrayList<>();
+		// the current node of each variable
+		private final Map<String, Node> variables = new LinkedHashMap<>();
+		private String current;
+
+		public Builder() {
+			clear();
+		}
+
+		public Builder(ImagePlus image) {
+			super(image);
+			clear();
+		}
+
+		@Override
+		public void execute(Operation op) {
+			Map<String, Node> reads = new LinkedHashMap<>();
+			for(String name : op.inputs())
+				reads.put(name, node(name));
+			add(current, op, variables.get(current), reads);
+		}
+
+		/**
+		 * Makes <code>name</code> a copy of the current variable, and the current variable.
+		 */
+		public void duplicate(String name) {
+			if(variables.containsKey(name))
+				throw new IllegalArgumentException("There is already an image named '" + name + "'");
+			variables.put(name, variables.get(current));
+			current = name;
+		}
+
+		/**
+		 * Makes <code>name</code> the current variable.
+		 */
+		public void select(String name) {
+			node(name);
+			current = name;
+		}
+
+		public String getCurrent() {
+			return current;
+		}
+
+		/**
+		 * The operations recorded since the last call to clear().
+		 */
+		public ImageGraph getGraph() {
+			// Nodes can't be shared between graphs, since they know their consumers
+			Map<Node, Node> copies = new LinkedHashMap<>();
+			List<Node> copied = new ArrayList<>(nodes.size());
+			for(Node node : nodes) {
+				Map<String, Node> reads = new LinkedHashMap<>();
+				for(Map.Entry<String, Node> e : node.reads.entrySet())
+					reads.put(e.getKey(), copies.get(e.getValue()));
+				Node copy = new Node(node.index, node.variable, node.operation, copies.get(node.source), reads);
+				copies.put(node, copy);
+				copied.add(copy);
+			}
+			Map<String, Node> outputs = new LinkedHashMap<>();
+			for(Map.Entry<String, Node> e : variables.entrySet()) {
+				Node output = copies.get(e.getValue());
+				output.output = true;
+				outputs.put(e.getKey(), output);
+			}
+			return new ImageGraph(Collections.unmodifiableList(copied), Collections.unmodifiableMap(outputs), current);
+		}
+
+		public void clear() {
+			nodes.clear();
+			variables.clear();
+			current = INPUT;
+			add(INPUT, null, null, Collections.emptyMap());
+		}
+
+		private Node node(String name) {
+			Node node = variables.get(name);
+			if(node == null)
+				throw new IllegalArgumentException("There is no image named '" + name + "'");
+			return node;
+		}
+
+		private void add(String variable, Operation op, Node source, Map<String, Node> reads) {
+			Node node = new Node(nodes.size(), variable, op, source, reads);
+			nodes.add(node);
+			variables.put(variable, node);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.process.ImageProcessor;
+
+/**
+ * A fixed-size histogram over a known intensity range, used to estimate percentiles for
+ * intensity normalization.
+ *
+ * Histograms of different planes (or of different images) over the same range can be merged with
+ * add(IntensityHistogram), so that percentiles over a whole stack can be computed plane by plane,
+ * in parallel. Percentiles are interpolated linearly within a bin, so they are accurate to about
+ * (max - min) / bins.
+ *
+ * If the range over all planes isn't known up-front, each plane's histogram is made over an
+ * aligned range instead (see alignedRange()), and they are merged with merge(), which widens the
+ * range as needed. Percentiles are then accurate to about 4 (max - min) / bins, with min and max
+ * over all planes.
+ */
+final class IntensityHistogram {
+
+	static final int DEFAULT_BINS = 4096;
+
+	private final double min;
+
+	private final double max;
+
+	private final long[] counts;
+
+	private long total = 0;
+
+	IntensityHistogram(double min, double max, int bins) {
+		this.min = min;
+		this.max = max;
+		this.counts = new long[bins];
+	}
+
+	/**
+	 * Adds all pixels of <code>ip</code>, mapped by v -> v * scale + offset.
+	 */
+	void add(ImageProcessor ip, double scale, double offset) {
+		int bins = counts.length;
+		double binScale = max > min ? bins / (max - min) : 0;
+		Object pixels = ip.getPixels();
+		int n = ip.getPixelCount();
+		if(pixels instanceof byte[] || pixels instanceof short[]) {
+			// count the raw values first, then map each distinct value only once
+			int range = pixels instanceof byte[] ? 256 : 65536;
+			int[] raw = new int[range];
+			if(pixels instanceof byte[]) {
+				byte[] in = (byte[]) pixels;
+				for(int i = 0; i < n; i++)
+					raw[in[i] & 0xff]++;
+			}
+			else {
+				short[] in = (short[]) pixels;
+				for(int i = 0; i < n; i++)
+					raw[in[i] & 0xffff]++;
+			}
+			for(int v = 0; v < range; v++)
+				if(raw[v] != 0)
+					counts[bin(v * scale + offset, binScale)] += raw[v];
+		}
+		else {
+			for(int i = 0; i < n; i++)
+				counts[bin(ip.getf(i) * scale + offset, binScale)]++;
+		}
+		total += n;
+	}
+
+	/**
+	 * A range of <code>bins</code> bins which contains [min, max], with bins whose width is a power
+	 * of two, starting at a multiple of their width. Each bin of such a range lies within a single
+	 * bin of any wider one, so histograms over different aligned ranges can be merged exactly.
+	 */
+	static double[] alignedRange(double min, double max, int bins) {
+		// at least the resolution of double at these values, so that the bin indices stay exact
+		double width = powerOfTwoAtLeast(Math.max((max - min) / bins, Math.ulp(Math.max(Math.abs(min), Math.abs(max)))));
+		while(Math.floor(max / width) - Math.floor(min / width) >= bins)
+			width *= 2;
+		double first = Math.floor(min / width) * width;
+		return new double[] {first, first + bins * width};
+	}
+
+	/**
+	 * A histogram over an aligned range (see alignedRange()) which contains the ranges of both
+	 * <code>a</code> and <code>b</code>, with the counts of both. Both must have aligned ranges
+	 * and the same number of bins; either may be null.
+	 */
+	static IntensityHistogram merge(IntensityHistogram a, IntensityHistogram b) {
+		if(a == null)
+			return b;
+		if(b == null)
+			return a;
+		int bins = a.counts.length;
+		double min = Math.min(a.min, b.min);
+		double max = Math.max(a.max, b.max);
+		double width = Math.max(a.binWidth(), b.binWidth());
+		while(Math.ceil(max / width) - Math.floor(min / width) > bins)
+			width *= 2;
+		double first = Math.floor(min / width) * width;
+		IntensityHistogram merged = new IntensityHistogram(first, first + bins * width, bins);
+		merged.addRebinned(a);
+		merged.addRebinned(b);
+		return merged;
+	}
+
+	/**
+	 * Adds the counts of <code>other</code>, whose bins each lie within one of ours.
+	 */
+	private void addRebinned(IntensityHistogram other) {
+		double width = binWidth(), otherWidth = other.binWidth();
+		double first = Math.floor(min / width);
+		for(int b = 0; b < other.counts.length; b++)
+			if(other.counts[b] != 0)
+				counts[(int) (Math.floor((other.min + b * otherWidth) / width) - first)] += other.counts[b];
+		total += other.total;
+	}
+
+	private double binWidth() {
+		return (max - min) / counts.length;
+	}
+
+	private static double powerOfTwoAtLeast(double v) {
+		double p = Math.scalb(1.0, Math.getExponent(v));
+		return p < v ? 2 * p : p;
+	}
+
+	void add(IntensityHistogram other) {
+		for(int b = 0; b < counts.length; b++)
+			counts[b] += other.counts[b];
+		total += other.total;
+	}
+
+	private int bin(double v, double binScale) {
+		int b = (int) ((v - min) * binScale);
+		return b < 0 ? 0 : b >= counts.length ? counts.length - 1 : b;
+	}
+
+	/**
+	 * The intensity below which the fraction <code>q</code> of all pixels lie.
+	 */
+	double percentile(double q) {
+		if(total == 0)
+			return min;
+		double rank = q * total;
+		long seen = 0;
+		double binWidth = (max - min) / counts.length;
+		for(int b = 0; b < counts.length; b++) {
+			if(counts[b] > 0 && seen + counts[b] >= rank)
+				return min + (b + (rank - seen) / counts[b]) * binWidth;
+			seen += counts[b];
+		}
+		return max;
+	}
+}
@@ -0,0 +1,133 @@
+package nlScript.tutorial.preprocessing;
+
+import nlScript.Autocompleter;
+import nlScript.ParsedNode;
+import nlScript.core.Autocompletion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An Autocompleter which suggests those of a set of literals that start with what the user already
+ * typed, e.g. 'pixel(s)' and the image's units for the 'units' type of Tutorial11. Once nothing
+ * matches anymore, further autocompletion is vetoed (see Tutorial07).
+ *
+ * Autocompletion runs on every key stroke, so the literals are indexed in a prefix tree when they
+ * are set, and not for each request: Each node of the tree holds the literals starting with its
+ * prefix, as a ready-made array which is passed to Autocompletion.literal() as it is. Finding the
+ * matches for the typed text walks down the tree, character by character, which costs the same no
+ * matter how many literals there are, and allocates nothing.
+ *
+ * <pre>
+ * LiteralCompleter unitsCompleter = new LiteralCompleter("pixel(s)", image.getCalibration().getUnits());
+ * parser.defineType("units", "pixel(s)", pn -&gt; false, unitsCompleter);
+ * parser.defineType("units", image.getCalibration().getUnits(), pn -&gt; true, unitsCompleter);
+ * </pre>
+ *
+ * which is what DynamicType.defineUnits(Parser, Supplier, LiteralCompleter) does, updating the
+ * literals when the units change. Setting the same literals again returns without rebuilding the
+ * tree.
+ * The completer may be used from several threads.
+ */
+public class LiteralCompleter implements Autocompleter {
+
+	private static final CharSequence[] NONE = new CharSequence[0];
+
+	/**
+	 * A node of the prefix tree: the literals starting with the characters on the path to it.
+	 */
+	private static final class Node {
+		// the literals below this node, in the order they were given
+		final CharSequence[] literals;
+		// the next characters, sorted, and the corresponding child nodes
+		final char[] keys;
+		final Node[] children;
+
+		Node(List<String> literals, int depth) {
+			this.literals = literals.toArray(new CharSequence[0]);
+			char[] next = new char[literals.size()];
+			int n = 0;
+			for(String literal : literals)
+				if(literal.length() > depth)
+					next[n++] = literal.charAt(depth);
+			Arrays.sort(next, 0, n);
+			int nKeys = 0;
+			for(int i = 0; i < n; i++)
+				if(nKeys == 0 || next[nKeys - 1] != next[i])
+					next[nKeys++] = next[i];
+			keys = Arrays.copyOf(next, nKeys);
+			children = new Node[nKeys];
+			for(int k = 0; k < nKeys; k++) {
+				List<String> below = new ArrayList<>();
+				for(String literal : literals)
+					if(literal.length() > depth && literal.charAt(depth) == keys[k])
+						below.add(literal);
+				children[k] = new Node(below, depth + 1);
+			}
+		}
+
+		/**
+		 * The node for <code>prefix</code>, or null if no literal starts with it.
+		 */
+		Node find(CharSequence prefix) {
+			Node node = this;
+			for(int i = 0; i < prefix.length() && node != null; i++) {
+				int k = Arrays.binarySearch(node.keys, prefix.charAt(i));
+				node = k < 0 ? null : node.children[k];
+			}
+			return node;
+		}
+	}
+
+	// the literals as last given to setLiterals()
+	private String[] given = null;
+
+	private volatile Node root;
+
+	public LiteralCompleter(CharSequence... literals) {
+		setLiterals(literals);
+	}
+
+	/**
+	 * Sets the literals to suggest. Duplicates are ignored.
+	 */
+	public synchronized void setLiterals(CharSequence... literals) {
+		if(isSameAsGiven(literals))
+			return;
+		String[] given = new String[literals.length];
+		List<String> list = new ArrayList<>(literals.length);
+		for(int i = 0; i < literals.length; i++) {
+			given[i] = literals[i].toString();
+			if(!list.contains(given[i]))
+				list.add(given[i]);
+		}
+		this.root = new Node(list, 0);
+		this.given = given;
+	}
+
+	private boolean isSameAsGiven(CharSequence[] literals) {
+		if(given == null || given.length != literals.length)
+			return false;
+		for(int i = 0; i < literals.length; i++)
+			if(!given[i].contentEquals(literals[i]))
+				return false;
+		return true;
+	}
+
+	/**
+	 * The literals starting with <code>prefix</code>; the returned array must not be modified.
+	 */
+	public CharSequence[] complete(CharSequence prefix) {
+		Node node = root.find(prefix);
+		return node == null ? NONE : node.literals;
+	}
+
+	@Override
+	public Autocompletion[] getAutocompletion(ParsedNode pn, boolean justCheck) {
+		CharSequence[] matches = complete(pn.getParsedString());
+		return matches.length == 0
+				? Autocompletion.veto(pn)
+				: Autocompletion.literal(pn, matches);
+	}
+}
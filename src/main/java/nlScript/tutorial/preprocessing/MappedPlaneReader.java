@@ -0,0 +1,209 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Reads single planes of an uncompressed TIFF (or raw) file through memory-mapped I/O, without
+ * opening the whole image.
+ *
+ * Only the bytes of the requested plane are mapped, and decoded into a new ImageProcessor. The
+ * mapping is released by the garbage collector, and the operating system's page cache does the
+ * buffering, so reading a plane needs no more heap than the plane itself.
+ *
+ * Supported are 8-bit, 16-bit (signed or unsigned), 32-bit float and interleaved 24-bit RGB pixel
+ * data, stored contiguously. Compressed files need to be opened with ImageJ instead.
+ *
+ * Instances are thread-safe: Planes can be read concurrently.
+ */
+public class MappedPlaneReader implements Closeable {
+
+	private final FileChannel channel;
+
+	private final FileInfo fi;
+
+	private final long[] planeOffsets;
+
+	private final int planeBytes;
+
+	/**
+	 * Reads the TIFF header of <code>path</code>.
+	 */
+	public MappedPlaneReader(Path path) throws IOException {
+		this(path, tiffInfo(path));
+	}
+
+	/**
+	 * Uses the given file infos, e.g. for raw files, as one FileInfo per plane, or a single one with
+	 * <code>nImages</code> planes separated by <code>getGap()</code> bytes.
+	 */
+	public MappedPlaneReader(Path path, FileInfo[] infos) throws IOException {
+		this.fi = infos[0];
+		if(fi.compression > FileInfo.COMPRESSION_NONE)
+			throw new IOException(path + " is compressed; only uncompressed files can be memory-mapped");
+		this.planeBytes = fi.width * fi.height * bytesPerPixel(fi);
+		checkContiguous(fi);
+
+		if(infos.length == 1) {
+			planeOffsets = new long[Math.max(1, fi.nImages)];
+			for(int p = 0; p < planeOffsets.length; p++)
+				planeOffsets[p] = fi.getOffset() + p * (planeBytes + fi.getGap());
+		}
+		else {
+			planeOffsets = new long[infos.length];
+			for(int p = 0; p < infos.length; p++) {
+				if(infos[p].width != fi.width || infos[p].height != fi.height || infos[p].fileType != fi.fileType)
+					throw new IOException("Plane " + (p + 1) + " of " + path + " differs in size or type from the first one");
+				checkContiguous(infos[p]);
+				planeOffsets[p] = infos[p].getOffset();
+			}
+		}
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		long needed = planeOffsets[planeOffsets.length - 1] + planeBytes;
+		if(channel.size() < needed) {
+			channel.close();
+			throw new IOException(path + " is truncated: " + channel.size() + " bytes, but " + needed + " needed");
+		}
+	}
+
+	private static FileInfo[] tiffInfo(Path path) throws IOException {
+		File file = path.toFile();
+		FileInfo[] infos = new TiffDecoder(file.getParent() == null ? "" : file.getParent() + File.separator, file.getName()).getTiffInfo();
+		if(infos == null || infos.length == 0)
+			throw new IOException("Cannot read TIFF header of " + path);
+		return infos;
+	}
+
+	private static int bytesPerPixel(FileInfo fi) throws IOException {
+		switch(fi.fileType) {
+			case FileInfo.GRAY8: return 1;
+			case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY16_SIGNED: return 2;
+			case FileInfo.GRAY32_FLOAT: return 4;
+			case FileInfo.RGB: return 3;
+			default: throw new IOException("Unsupported pixel type (FileInfo type " + fi.fileType + ")");
+		}
+	}
+
+	private static void checkContiguous(FileInfo fi) throws IOException {
+		if(fi.stripOffsets == null || fi.stripOffsets.length < 2)
+			return;
+		for(int s = 1; s < fi.stripOffsets.length; s++)
+			if(fi.stripOffsets[s] != fi.stripOffsets[s - 1] + fi.stripLengths[s - 1])
+				throw new IOException("Image strips are not stored contiguously");
+	}
+
+	public int getWidth() {
+		return fi.width;
+	}
+
+	public int getHeight() {
+		return fi.height;
+	}
+
+	/**
+	 * The number of planes.
+	 */
+	public int getSize() {
+		return planeOffsets.length;
+	}
+
+	public FileInfo getFileInfo() {
+		return fi;
+	}
+
+	/**
+	 * The calibration stored in the file, including what ImageJ writes into the image description.
+	 */
+	public Calibration getCalibration() {
+		Properties props = new FileOpener(fi).decodeDescriptionString(fi);
+		Calibration cal = new Calibration();
+		cal.pixelWidth = fi.pixelWidth;
+		cal.pixelHeight = fi.pixelHeight;
+		cal.pixelDepth = fi.pixelDepth;
+		if(fi.unit != null)
+			cal.setUnit(fi.unit);
+		if(props != null && props.getProperty("unit") != null)
+			cal.setUnit(props.getProperty("unit"));
+		return cal;
+	}
+
+	/**
+	 * The hyperstack dimensions stored in the image description, as channels, slices, frames, or
+	 * null if there are none or they don't match the number of planes.
+	 */
+	public int[] getDimensions() {
+		Properties props = new FileOpener(fi).decodeDescriptionString(fi);
+		if(props == null)
+			return null;
+		int c = Integer.parseInt(props.getProperty("channels", "1"));
+		int z = Integer.parseInt(props.getProperty("slices", "1"));
+		int t = Integer.parseInt(props.getProperty("frames", "1"));
+		return c * z * t == getSize() ? new int[] {c, z, t} : null;
+	}
+
+	/**
+	 * Reads the plane with the given (0-based) index.
+	 */
+	public ImageProcessor read(int plane) throws IOException {
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, planeOffsets[plane], planeBytes);
+		ByteBuffer buffer = mapped.order(fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		int w = fi.width, h = fi.height, n = w * h;
+		switch(fi.fileType) {
+			case FileInfo.GRAY8: {
+				byte[] pixels = new byte[n];
+				buffer.get(pixels);
+				return new ByteProcessor(w, h, pixels);
+			}
+			case FileInfo.GRAY16_UNSIGNED: {
+				short[] pixels = new short[n];
+				buffer.asShortBuffer().get(pixels);
+				return new ShortProcessor(w, h, pixels, null);
+			}
+			case FileInfo.GRAY16_SIGNED: {
+				// like ImageJ, shift signed data into the unsigned range
+				short[] pixels = new short[n];
+				buffer.asShortBuffer().get(pixels);
+				for(int i = 0; i < n; i++)
+					pixels[i] = (short) (pixels[i] + 32768);
+				return new ShortProcessor(w, h, pixels, null);
+			}
+			case FileInfo.GRAY32_FLOAT: {
+				float[] pixels = new float[n];
+				buffer.asFloatBuffer().get(pixels);
+				return new FloatProcessor(w, h, pixels);
+			}
+			default: {
+				int[] pixels = new int[n];
+				for(int i = 0; i < n; i++) {
+					int r = buffer.get() & 0xff, g = buffer.get() & 0xff, b = buffer.get() & 0xff;
+					pixels[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+				}
+				return new ColorProcessor(w, h, pixels);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
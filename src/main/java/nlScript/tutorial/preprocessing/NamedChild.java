@@ -0,0 +1,50 @@
+package nlScript.tutorial.preprocessing;
+
+import nlScript.ParsedNode;
+
+/**
+ * Looks up the child node of a variable, like ParsedNode.getChild(name), but remembers at which
+ * index it was found. Since all nodes of the same sentence or type have their variables at the
+ * same position, later lookups only check the name of the child at that index, instead of
+ * searching all children by name.
+ *
+ * One NamedChild is meant to be used for one variable of one sentence or type. It may be shared
+ * between threads.
+ */
+public final class NamedChild {
+
+	private final String name;
+
+	// Written by whichever thread searched last; any index found is valid, so races are harmless
+	private int index = -1;
+
+	public NamedChild(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * The child of <code>pn</code> with this name.
+	 *
+	 * @throws IllegalArgumentException if <code>pn</code> has no child with this name.
+	 */
+	public ParsedNode of(ParsedNode pn) {
+		int i = index;
+		if(i >= 0 && i < pn.numChildren()) {
+			ParsedNode child = pn.getChild(i);
+			if(name.equals(child.getName()))
+				return child;
+		}
+		ParsedNode[] children = pn.getChildren();
+		for(i = 0; i < children.length; i++) {
+			if(name.equals(children[i].getName())) {
+				index = i;
+				return children[i];
+			}
+		}
+		throw new IllegalArgumentException("'" + pn.getParsedString() + "' has no variable '" + name + "'");
+	}
+}
@@ -0,0 +1,319 @@
+package nlScript.tutorial.preprocessing;
+
+import nlScript.tutorial.preprocessing.Preprocessing.BackgroundEngine;
+import nlScript.tutorial.preprocessing.Preprocessing.GaussianEngine;
+import nlScript.tutorial.preprocessing.Preprocessing.NormalizationMode;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single, fully resolved Preprocessing operation, with primitive arguments (in pixel units).
+ *
+ * Operations are immutable values: Two operations are equal if they do the same thing, and their
+ * toString() is a canonical description, e.g. "gaussianBlur(2.0)".
+ */
+public abstract class Operation {
+
+	/** A halo() for operations whose result at a pixel depends on the whole plane. */
+	static final int WHOLE_PLANE = -1;
+
+	/** A halo() for operations whose result at a pixel depends on all processed planes. */
+	static final int ALL_PLANES = -2;
+
+	private Operation() {
+	}
+
+	/**
+	 * Runs this operation on the current image of <code>preprocessing</code>.
+	 */
+	abstract void run(Preprocessing preprocessing);
+
+	/**
+	 * The number of pixels around a pixel which this operation reads to compute it, when run by
+	 * <code>settings</code> (whose engines may read different neighborhoods), or WHOLE_PLANE or
+	 * ALL_PLANES. 0 for point-wise operations.
+	 */
+	int halo(Preprocessing settings) {
+		return 0;
+	}
+
+	/**
+	 * A region of the image computed on its own must start at a multiple of this, in x and y, to
+	 * give the same result as within the whole image.
+	 */
+	int alignment(Preprocessing settings) {
+		return 1;
+	}
+
+	/**
+	 * Whether this operation, when run by <code>settings</code>, does part of its work on threads
+	 * started by ImageJ (GaussianBlur, RankFilters) rather than on the calling thread and the
+	 * threads of the TiledExecutor.
+	 */
+	boolean startsThreads(Preprocessing settings) {
+		return false;
+	}
+
+	/**
+	 * The names of the images which this operation reads besides the one it runs on, e.g. a mask.
+	 * They are looked up with Preprocessing.getImage(String).
+	 */
+	public List<String> inputs() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * The name of this operation without its arguments, e.g. "gaussianBlur".
+	 */
+	public String getName() {
+		String s = toString();
+		return s.substring(0, s.indexOf('('));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o != null && o.getClass() == getClass() && o.toString().equals(toString());
+	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	public static final class GaussianBlur extends Operation {
+		public final float stdDev;
+
+		public GaussianBlur(float stdDev) {
+			this.stdDev = stdDev;
+		}
+
+		@Override
+		void run(Preprocessing preprocessing) {
+			preprocessing.runGaussianBlur(stdDev);
+		}
+
+		/**
+		 * Covers the FIR kernel (at ImageJ's accuracy), ImageJ's kernel for downscaled images, and
+		 * the recursive filter's response down to float precision.
+		 */
+		@Override
+		int halo(Preprocessing settings) {
+			return (int) Math.ceil(6 * stdDev) + 2;
+		}
+
+		@Override
+		boolean startsThreads(Preprocessing settings) {
+			return settings.getGaussianEngine() == GaussianEngine.IMAGEJ;
+		}
+
+		@Override
+		public String toString() {
+			return "gaussianBlur(" + stdDev + ")";
+		}
+	}
+
+	public static final class MedianFilter extends Operation {
+		public final int radius;
+
+		public MedianFilter(int radius) {
+			this.radius = radius;
+		}
+
+		@Override
+		void run(Preprocessing preprocessing) {
+			preprocessing.runMedianFilter(radius);
+		}
+
+		@Override
+		int halo(Preprocessing settings) {
+			return Preprocessing.medianHalo(radius);
+		}
+
+		@Override
+		boolean startsThreads(Preprocessing settings) {
+			return settings.usesRankFilters();
+		}
+
+		@Override
+		public String toString() {
+			return "medianFilter(" + radius + ")";
+		}
+	}
+
+	public static final class SubtractBackground extends Operation {
+		public final float radius;
+
+		public SubtractBackground(float radius) {
+			this.radius = radius;
+		}
+
+		@Override
+		void run(Preprocessing preprocessing) {
+			preprocessing.runSubtractBackground(radius);
+		}
+
+		@Override
+		int halo(Preprocessing settings) {
+			if(settings.getBackgroundEngine() == BackgroundEngine.SLIDING_PARABOLOID)
+				return WHOLE_PLANE;
+			return 2 * (int) Math.ceil(radius) + 4 * alignment(settings) + 2;
+		}
+
+		/**
+		 * The rolling ball shrinks the image; regions must be shrunk on the same grid.
+		 */
+		@Override
+		int alignment(Preprocessing settings) {
+			if(settings.getBackgroundEngine() == BackgroundEngine.ROLLING_BALL)
+				return BackgroundSubtraction.shrinkFactor(radius, settings.getBackgroundAccuracy());
+			return Preprocessing.ROLLING_BALL_MAX_SHRINK_FACTOR;
+		}
+
+		@Override
+		public String toString() {
+			return "subtractBackground(" + radius + ")";
+		}
+	}
+
+	public static final class UnsharpMask extends Operation {
+		public final float radius;
+		public final float weight;
+
+		public UnsharpMask(float radius, float weight) {
+			this.radius = radius;
+			this.weight = weight;
+		}
+
+		@Override
+		void run(Preprocessing preprocessing) {
+			preprocessing.runUnsharpMask(radius, weight);
+		}
+
+		/**
+		 * The same as for a Gaussian blur with the same standard deviation.
+		 */
+		@Override
+		int halo(Preprocessing settings) {
+			return (int) Math.ceil(6 * radius) + 2;
+		}
+
+		@Override
+		boolean startsThreads(Preprocessing settings) {
+			return settings.getGaussianEngine() == GaussianEngine.IMAGEJ;
+		}
+
+		@Override
+		public String toString() {
+			return "unsharpMask(" + radius + ", " + weight + ")";
+		}
+	}
+
+	public static final class Clahe extends Operation {
+		public final int blockSize;
+		public final int bins;
+		public final float slope;
+		/** The name of the mask image, or null. */
+		public final String mask;
+
+		public Clahe(int blockSize, int bins, float slope, String mask) {
+			this.blockSize = blockSize;
+			this.bins = bins;
+			this.slope = slope;
+			this.mask = mask;
+		}
+
+		@Override
+		void run(Preprocessing preprocessing) {
+			preprocessing.runClahe(blockSize, bins, slope, mask);
+		}
+
+		@Override
+		public List<String> inputs() {
+			return mask == null ? Collections.emptyList() : Collections.singletonList(mask);
+		}
+
+		/**
+		 * The intensity range, and the tile grid, are those of the whole plane.
+		 */
+		@Override
+		int halo(Preprocessing settings) {
+			return WHOLE_PLANE;
+		}
+
+		@Override
+		public String toString() {
+			return "clahe(" + blockSize + ", " + bins + ", " + slope + ", " + mask + ")";
+		}
+	}
+
+	public static final class ConvertToGray extends Operation {
+		@Override
+		void run(Preprocessing preprocessing) {
+			preprocessing.runConvertToGray();
+		}
+
+		@Override
+		public String toString() {
+			return "convertToGray()";
+		}
+	}
+
+	public static final class IntensityNormalization extends Operation {
+		public final NormalizationMode mode;
+		public final double saturated;
+		public final int bitDepth;
+
+		public IntensityNormalization(NormalizationMode mode) {
+			this(mode, 0, 32);
+		}
+
+		public IntensityNormalization(NormalizationMode mode, double saturated, int bitDepth) {
+			this.mode = mode;
+			this.saturated = saturated;
+			this.bitDepth = bitDepth;
+		}
+
+		@Override
+		void run(Preprocessing preprocessing) {
+			preprocessing.runIntensityNormalization(mode, saturated, bitDepth);
+		}
+
+		@Override
+		int halo(Preprocessing settings) {
+			return mode == NormalizationMode.GLOBAL ? ALL_PLANES : WHOLE_PLANE;
+		}
+
+		@Override
+		public String toString() {
+			return "intensityNormalization(" + mode + ", " + saturated + ", " + bitDepth + ")";
+		}
+	}
+
+	/**
+	 * Maps each intensity v to v * scale + offset. This isn't a sentence of the language, but what a
+	 * global intensity normalization becomes once the intensity range is known (see StreamingRunner).
+	 * With 8- or 16-bit output, [0, 1] is mapped to the full range of the output type.
+	 */
+	public static final class LinearTransform extends Operation {
+		public final double scale;
+		public final double offset;
+		public final int bitDepth;
+
+		public LinearTransform(double scale, double offset, int bitDepth) {
+			this.scale = scale;
+			this.offset = offset;
+			this.bitDepth = bitDepth;
+		}
+
+		@Override
+		void run(Preprocessing preprocessing) {
+			preprocessing.runLinearTransform(scale, offset, bitDepth);
+		}
+
+		@Override
+		public String toString() {
+			return "linearTransform(" + scale + ", " + offset + ", " + bitDepth + ")";
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import nlScript.ParseException;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a script of the preprocessing language (see PreprocessingLanguage) for every combination of
+ * values of its placeholders, to compare the results side by side. A placeholder is written in
+ * braces where a number would be, as a range <code>{1..5}</code>, a range with a step
+ * <code>{0.5..2 step 0.5}</code>, or a list <code>{1, 2, 4}</code>. E.g.
+ *
+ * <pre>
+ * Apply Gaussian blurring with a standard deviation of {1..5} pixel(s).
+ * Apply Median filtering with a window of radius {1..10} pixel(s).
+ * </pre>
+ *
+ * expands into 50 scripts (variants). Each variant is compiled into a Plan. The plans are merged
+ * into a tree, in which variants share the nodes of the operations they have in common at their
+ * start: in the example, each of the 5 Gaussian blurs is run once and its result is used by 10
+ * median filters. Siblings in the tree are run in parallel. Each node works on a CopyOnWriteImage
+ * of its parent's result, so the input and shared results are never copied as a whole.
+ *
+ * The result contains the image and the timing of each variant, and a stack of all variants
+ * (see Result.toStack()).
+ *
+ * Usage (preferably with -Djava.awt.headless=true):
+ *
+ *   ParameterSweep [--threads n] script.txt input-image output.tif
+ *
+ * prints the timing of each variant and writes the stack.
+ */
+public class ParameterSweep {
+
+	private static final Pattern PLACEHOLDER = Pattern.compile("\\{([^{}]*)\\}");
+
+	private static final Pattern RANGE = Pattern.compile("\\s*(-?[0-9.]+)\\s*\\.\\.\\s*(-?[0-9.]+)\\s*(?:step\\s*([0-9.]+)\\s*)?");
+
+	/**
+	 * One expanded script and, once run, its result.
+	 */
+	public static class Variant {
+		public final String script;
+		/** The value substituted for each placeholder, in the order they appear in the script. */
+		public final List<String> values;
+
+		private Plan plan;
+		private ImagePlus result;
+		private long nanos;
+
+		Variant(String script, List<String> values) {
+			this.script = script;
+			this.values = Collections.unmodifiableList(new ArrayList<>(values));
+		}
+
+		public Plan getPlan() {
+			return plan;
+		}
+
+		public ImagePlus getResult() {
+			return result;
+		}
+
+		/**
+		 * The time spent on this variant's operations, including those shared with other variants,
+		 * i.e. about what running it on its own would take.
+		 */
+		public long getMillis() {
+			return nanos / 1000000;
+		}
+
+		public String getLabel() {
+			return String.join(", ", values);
+		}
+
+		@Override
+		public String toString() {
+			return getLabel() + "\t" + getMillis() + " ms";
+		}
+	}
+
+	/**
+	 * The variants of a run, with timings.
+	 */
+	public static class Result {
+		public final List<Variant> variants;
+		public final long millis;
+		/** The number of operations run, and how many it would have been without sharing. */
+		public final int operationsRun;
+		public final int operationsTotal;
+
+		Result(List<Variant> variants, long millis, int operationsRun, int operationsTotal) {
+			this.variants = variants;
+			this.millis = millis;
+			this.operationsRun = operationsRun;
+			this.operationsTotal = operationsTotal;
+		}
+
+		/**
+		 * A stack with the current plane of each variant's result, labeled with its values.
+		 * Variants are converted to 32-bit if they differ in type.
+		 */
+		public ImagePlus toStack() {
+			ImagePlus first = variants.get(0).result;
+			boolean sameType = true;
+			for(Variant v : variants)
+				sameType &= v.result.getBitDepth() == first.getBitDepth();
+			ImageStack stack = new ImageStack(first.getWidth(), first.getHeight());
+			for(Variant v : variants) {
+				ImageProcessor ip = v.result.getProcessor();
+				stack.addSlice(v.getLabel(), sameType ? ip : ip.convertToFloat());
+			}
+			ImagePlus imp = new ImagePlus("Sweep of " + first.getTitle(), stack);
+			imp.setCalibration(first.getCalibration());
+			return imp;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for(Variant v : variants)
+				sb.append(v).append('\n');
+			sb.append(variants.size()).append(" variants in ").append(millis).append(" ms, ")
+					.append(operationsRun).append(" of ").append(operationsTotal).append(" operations run");
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * A node of the execution tree: the result of running <code>operation</code> on the parent's
+	 * result.
+	 */
+	private static final class Node {
+		final Operation operation;
+		final Map<Operation, Node> children = new LinkedHashMap<>();
+		// the variants whose plan ends here
+		final List<Variant> variants = new ArrayList<>();
+
+		Node(Operation operation) {
+			this.operation = operation;
+		}
+	}
+
+	private final List<Variant> variants;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	public ParameterSweep(String script) {
+		this.variants = expand(script);
+	}
+
+	public List<Variant> getVariants() {
+		return Collections.unmodifiableList(variants);
+	}
+
+	/**
+	 * Sets the number of nodes of the execution tree that are run in parallel. Each node runs with a
+	 * parallelism of 1, but ImageJ's filters may start threads of their own (see
+	 * Preprocessing.setParallelism()).
+	 */
+	public void setThreads(int threads) {
+		if(threads < 1)
+			throw new IllegalArgumentException("Need at least one thread, but got " + threads);
+		this.threads = threads;
+	}
+
+	/**
+	 * Runs all variants on (views of) <code>image</code>, which is left untouched.
+	 */
+	public Result run(ImagePlus image) throws ParseException {
+		Calibration calibration = image.getCalibration();
+		PlanCache plans = PlanCache.getDefault();
+		Node root = new Node(null);
+		int operationsTotal = 0;
+		for(Variant v : variants) {
+			v.plan = plans.get(v.script, calibration);
+			Node node = root;
+			for(Operation op : v.plan.getOperations())
+				node = node.children.computeIfAbsent(op, Node::new);
+			node.variants.add(v);
+			operationsTotal += v.plan.getOperations().size();
+		}
+
+		AtomicInteger operationsRun = new AtomicInteger();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.nanoTime();
+		try {
+			pool.invoke(new NodeTask(root, image, 0, operationsRun));
+		} finally {
+			pool.shutdown();
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		return new Result(new ArrayList<>(variants), millis, operationsRun.get(), operationsTotal);
+	}
+
+	private static final class NodeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Node node;
+		private final ImagePlus input;
+		// the time spent on the nodes above
+		private final long nanosBefore;
+		private final AtomicInteger operationsRun;
+
+		NodeTask(Node node, ImagePlus input, long nanosBefore, AtomicInteger operationsRun) {
+			this.node = node;
+			this.input = input;
+			this.nanosBefore = nanosBefore;
+			this.operationsRun = operationsRun;
+		}
+
+		@Override
+		protected void compute() {
+			ImagePlus result = input;
+			long nanos = nanosBefore;
+			if(node.operation != null) {
+				long t0 = System.nanoTime();
+				Preprocessing preprocessing = new Preprocessing();
+				// nodes are processed in parallel already
+				preprocessing.setParallelism(1);
+				preprocessing.setImage(new CopyOnWriteImage(input));
+				preprocessing.execute(node.operation);
+				result = preprocessing.getImage();
+				nanos += System.nanoTime() - t0;
+				operationsRun.incrementAndGet();
+			}
+			for(Variant v : node.variants) {
+				v.result = result;
+				v.nanos = nanos;
+			}
+			List<NodeTask> children = new ArrayList<>(node.children.size());
+			for(Node child : node.children.values())
+				children.add(new NodeTask(child, result, nanos, operationsRun));
+			invokeAll(children);
+		}
+	}
+
+	/**
+	 * The scripts for all combinations of placeholder values, the first placeholder varying slowest.
+	 */
+	static List<Variant> expand(String script) {
+		List<String> parts = new ArrayList<>();
+		List<List<String>> placeholders = new ArrayList<>();
+		Matcher m = PLACEHOLDER.matcher(script);
+		int last = 0;
+		while(m.find()) {
+			parts.add(script.substring(last, m.start()));
+			placeholders.add(values(m.group(1)));
+			last = m.end();
+		}
+		parts.add(script.substring(last));
+
+		List<Variant> variants = new ArrayList<>();
+		int[] index = new int[placeholders.size()];
+		while(true) {
+			StringBuilder sb = new StringBuilder(parts.get(0));
+			List<String> values = new ArrayList<>(index.length);
+			for(int i = 0; i < index.length; i++) {
+				String value = placeholders.get(i).get(index[i]);
+				values.add(value);
+				sb.append(value).append(parts.get(i + 1));
+			}
+			variants.add(new Variant(sb.toString(), values));
+
+			int i = index.length - 1;
+			while(i >= 0 && ++index[i] == placeholders.get(i).size())
+				index[i--] = 0;
+			if(i < 0)
+				return variants;
+		}
+	}
+
+	/**
+	 * The values of a placeholder, e.g. "1..5", "0.5..2 step 0.5" or "1, 2, 4".
+	 */
+	static List<String> values(String placeholder) {
+		List<String> values = new ArrayList<>();
+		Matcher m = RANGE.matcher(placeholder);
+		try {
+			if(m.matches()) {
+				BigDecimal from = new BigDecimal(m.group(1));
+				BigDecimal to = new BigDecimal(m.group(2));
+				BigDecimal step = m.group(3) == null ? BigDecimal.ONE : new BigDecimal(m.group(3));
+				if(step.signum() <= 0)
+					throw new IllegalArgumentException("The step of {" + placeholder + "} must be positive");
+				for(BigDecimal v = from; v.compareTo(to) <= 0; v = v.add(step))
+					values.add(v.stripTrailingZeros().toPlainString());
+			}
+			else {
+				for(String value : placeholder.split(","))
+					values.add(new BigDecimal(value.trim()).toPlainString());
+			}
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid placeholder {" + placeholder + "}", e);
+		}
+		if(values.isEmpty())
+			throw new IllegalArgumentException("Placeholder {" + placeholder + "} has no values");
+		return values;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int i = 0;
+		for(; i < args.length && args[i].startsWith("--"); i++) {
+			if(args[i].equals("--threads"))
+				threads = Integer.parseInt(args[++i]);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		if(args.length - i != 3) {
+			System.err.println("Usage: ParameterSweep [--threads n] script.txt input-image output.tif");
+			System.exit(2);
+		}
+
+		String script = new String(Files.readAllBytes(Paths.get(args[i])), StandardCharsets.UTF_8);
+		ImagePlus image = IJ.openImage(args[i + 1]);
+		if(image == null) {
+			System.err.println("Cannot open " + args[i + 1]);
+			System.exit(1);
+		}
+
+		ParameterSweep sweep = new ParameterSweep(script);
+		sweep.setThreads(threads);
+		Result result = sweep.run(image);
+		System.out.println(result);
+		if(!IJ.saveAsTiff(result.toStack(), args[i + 2])) {
+			System.err.println("Cannot write " + args[i + 2]);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import nlScript.ParseException;
+import nlScript.ParsedNode;
+import nlScript.Parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A script of the preprocessing language, compiled into an immutable list of Operations.
+ *
+ * Compiling parses the script and evaluates it once, against a Preprocessing which records the
+ * operations instead of running them. Since the 'filter-size' type converts calibrated units to
+ * pixels during evaluation, a plan is specific to the pixel calibration it was compiled for, unless
+ * the script didn't give any size in calibrated units (see dependsOnCalibration()).
+ *
+ * A plan can then be applied to any number of images, without touching the parser again, and
+ * concurrently from multiple threads (each with its own Preprocessing).
+ *
+ * Compiling is thread-safe, too. A parser isn't, since the 'units' type is re-defined whenever the
+ * calibration changes, so each thread compiles with its own parser, which it keeps for the next
+ * script. The calibration is passed explicitly with each script.
+ */
+public final class Plan {
+
+	private static final ThreadLocal<Compiler> COMPILER = ThreadLocal.withInitial(Compiler::new);
+
+	private final List<Operation> operations;
+
+	private final boolean dependsOnCalibration;
+
+	public Plan(List<Operation> operations) {
+		this(operations, false);
+	}
+
+	Plan(List<Operation> operations, boolean dependsOnCalibration) {
+		this.operations = Collections.unmodifiableList(new ArrayList<>(operations));
+		this.dependsOnCalibration = dependsOnCalibration;
+	}
+
+	public List<Operation> getOperations() {
+		return operations;
+	}
+
+	/**
+	 * Whether compiling the script converted any size from calibrated units to pixels, so that the
+	 * plan is only valid for the calibration it was compiled for. False for plans which weren't
+	 * compiled from a script.
+	 */
+	public boolean dependsOnCalibration() {
+		return dependsOnCalibration;
+	}
+
+	/**
+	 * Runs all operations on the current image of <code>preprocessing</code>.
+	 */
+	public void apply(Preprocessing preprocessing) {
+		for(Operation op : operations)
+			preprocessing.execute(op);
+	}
+
+	/**
+	 * Runs all operations on <code>image</code>, and returns the result, which is either
+	 * <code>image</code> itself, or a new image if the pixel type changed.
+	 */
+	public ImagePlus apply(ImagePlus image) {
+		Preprocessing preprocessing = new Preprocessing(image);
+		apply(preprocessing);
+		return preprocessing.getImage();
+	}
+
+	/**
+	 * Parses and compiles <code>script</code>, for images with the given calibration.
+	 */
+	public static Plan compile(String script, Calibration calibration) throws ParseException {
+		return COMPILER.get().compile(script, calibration);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof Plan && ((Plan) o).operations.equals(operations);
+	}
+
+	@Override
+	public int hashCode() {
+		return operations.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(Operation op : operations)
+			sb.append(op).append("; ");
+		return sb.toString().trim();
+	}
+
+	/**
+	 * A parser of the preprocessing language, whose sentences are recorded into a plan.
+	 */
+	private static final class Compiler {
+		private final ImagePlus calibrated = new ImagePlus("", new ByteProcessor(1, 1));
+		private final Recorder recorder = new Recorder(calibrated);
+		// whether the script being compiled gave a size in calibrated units
+		private boolean usesCalibration = false;
+		private final Parser parser = PreprocessingLanguage.create(() -> recorder, () -> usesCalibration = true);
+
+		Plan compile(String script, Calibration calibration) throws ParseException {
+			calibrated.setCalibration(calibration);
+			recorder.clear();
+			usesCalibration = false;
+			try {
+				ParsedNode root = parser.parse(script, new ArrayList<>());
+				root.evaluate();
+				return new Plan(recorder.getPlan().getOperations(), usesCalibration);
+			} finally {
+				recorder.clear();
+			}
+		}
+	}
+
+	/**
+	 * A Preprocessing which records the operations passed to execute() instead of running them. Its
+	 * image is only used for looking up the calibration while a script is evaluated.
+	 */
+	public static final class Recorder extends Preprocessing {
+		private final List<Operation> operations = new ArrayList<>();
+
+		public Recorder() {
+		}
+
+		public Recorder(ImagePlus image) {
+			super(image);
+		}
+
+		@Override
+		public void execute(Operation op) {
+			operations.add(op);
+		}
+
+		/**
+		 * The operations recorded since the last call to clear().
+		 */
+		public Plan getPlan() {
+			return new Plan(operations);
+		}
+
+		public void clear() {
+			operations.clear();
+		}
+	}
+}
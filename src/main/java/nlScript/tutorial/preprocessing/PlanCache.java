@@ -0,0 +1,101 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.measure.Calibration;
+import nlScript.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches compiled Plans, keyed by a hash of the script text and the parts of the calibration the
+ * language depends on (the unit string and the pixel width).
+ *
+ * Running the same script again, or over many images with the same calibration, compiles it
+ * only once. The cache holds at most a given number of plans, beyond which the least recently used
+ * ones are dropped (e.g. for a server which receives ever new scripts). The cache is thread-safe;
+ * scripts are compiled outside of its lock.
+ */
+public class PlanCache {
+
+	/** The number of plans held by the default cache. */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private static final PlanCache DEFAULT = new PlanCache(DEFAULT_CAPACITY);
+
+	private final int capacity;
+
+	// in access order, for dropping the least recently used
+	private final LinkedHashMap<String, Plan> plans;
+
+	public PlanCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PlanCache(int capacity) {
+		if(capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1, but is " + capacity);
+		this.capacity = capacity;
+		this.plans = new LinkedHashMap<String, Plan>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Plan> eldest) {
+				return size() > PlanCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * A cache shared by everything running in this JVM.
+	 */
+	public static PlanCache getDefault() {
+		return DEFAULT;
+	}
+
+	public Plan get(String script, Calibration calibration) throws ParseException {
+		String key = key(script, calibration);
+		synchronized(plans) {
+			Plan plan = plans.get(key);
+			if(plan != null)
+				return plan;
+		}
+		Plan plan = Plan.compile(script, calibration);
+		synchronized(plans) {
+			Plan previous = plans.putIfAbsent(key, plan);
+			return previous != null ? previous : plan;
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int size() {
+		synchronized(plans) {
+			return plans.size();
+		}
+	}
+
+	public void clear() {
+		synchronized(plans) {
+			plans.clear();
+		}
+	}
+
+	static String key(String script, Calibration calibration) {
+		String s = script + '\0' + calibration.getUnits() + '\0' + calibration.pixelWidth;
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for(byte b : hash)
+				hex.append(String.format("%02x", b & 0xff));
+			return hex.toString();
+		} catch(NoSuchAlgorithmException e) {
+			// every JVM supports SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+}
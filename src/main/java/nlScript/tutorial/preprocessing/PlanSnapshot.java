@@ -0,0 +1,220 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import nlScript.ParseException;
+import nlScript.tutorial.preprocessing.Preprocessing.NormalizationMode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled Plan in a compact binary form, so that short-lived batch jobs can run a script without
+ * setting up and running the parser, i.e. without loading nlScript at all (see BatchRunner --plan).
+ *
+ * Since the 'filter-size' type converts calibrated units to pixels, a plan may only be valid for
+ * the calibration it was compiled for. If any size in the script was given in calibrated units
+ * (see Plan.dependsOnCalibration()), the snapshot is only valid for the original calibration (same
+ * unit and pixel width), and getPlan() refuses to return it for others; otherwise it is valid for
+ * any calibration.
+ *
+ * Usage:
+ *
+ *   PlanSnapshot [--unit u] [--pixel-width w] script.txt plan.bin
+ *   PlanSnapshot --like image.tif script.txt plan.bin
+ *
+ * compiles the script for the given calibration (pixels by default), or for the calibration of a
+ * reference image.
+ */
+public final class PlanSnapshot {
+
+	// "NLPP"
+	private static final int MAGIC = 0x4e4c5050;
+
+	private static final int VERSION = 1;
+
+	private final Plan plan;
+
+	private final boolean dependsOnCalibration;
+
+	private final String unit;
+
+	private final double pixelWidth;
+
+	private PlanSnapshot(Plan plan, boolean dependsOnCalibration, String unit, double pixelWidth) {
+		this.plan = plan;
+		this.dependsOnCalibration = dependsOnCalibration;
+		this.unit = unit;
+		this.pixelWidth = pixelWidth;
+	}
+
+	/**
+	 * Compiles <code>script</code> for images with the given calibration.
+	 */
+	public static PlanSnapshot compile(String script, Calibration calibration) throws ParseException {
+		Plan plan = Plan.compile(script, calibration);
+		return new PlanSnapshot(plan, plan.dependsOnCalibration(), calibration.getUnits(), calibration.pixelWidth);
+	}
+
+	public boolean dependsOnCalibration() {
+		return dependsOnCalibration;
+	}
+
+	/**
+	 * The plan, for an image with the given calibration.
+	 *
+	 * @throws IllegalArgumentException if the plan depends on the calibration, and was compiled for
+	 *                                  a different one.
+	 */
+	public Plan getPlan(Calibration calibration) {
+		if(dependsOnCalibration && !(calibration.getUnits().equals(unit) && calibration.pixelWidth == pixelWidth))
+			throw new IllegalArgumentException("The plan was compiled for a pixel width of " + pixelWidth + " " + unit
+					+ ", but the image has " + calibration.pixelWidth + " " + calibration.getUnits());
+		return plan;
+	}
+
+	public void write(Path path) throws IOException {
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeBoolean(dependsOnCalibration);
+			out.writeUTF(unit);
+			out.writeDouble(pixelWidth);
+			List<Operation> operations = plan.getOperations();
+			out.writeInt(operations.size());
+			for(Operation op : operations)
+				write(out, op);
+		}
+	}
+
+	public static PlanSnapshot read(Path path) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if(in.readInt() != MAGIC)
+				throw new IOException(path + " is not a plan snapshot");
+			int version = in.readInt();
+			if(version != VERSION)
+				throw new IOException(path + " has version " + version + ", but only version " + VERSION + " is supported");
+			boolean dependsOnCalibration = in.readBoolean();
+			String unit = in.readUTF();
+			double pixelWidth = in.readDouble();
+			int n = in.readInt();
+			List<Operation> operations = new ArrayList<>(n);
+			for(int i = 0; i < n; i++)
+				operations.add(read(in));
+			return new PlanSnapshot(new Plan(operations, dependsOnCalibration), dependsOnCalibration, unit, pixelWidth);
+		}
+	}
+
+	/**
+	 * Writes the name of <code>op</code>, followed by its arguments.
+	 */
+	private static void write(DataOutputStream out, Operation op) throws IOException {
+		out.writeUTF(op.getName());
+		if(op instanceof Operation.GaussianBlur) {
+			out.writeFloat(((Operation.GaussianBlur) op).stdDev);
+		}
+		else if(op instanceof Operation.MedianFilter) {
+			out.writeInt(((Operation.MedianFilter) op).radius);
+		}
+		else if(op instanceof Operation.SubtractBackground) {
+			out.writeFloat(((Operation.SubtractBackground) op).radius);
+		}
+		else if(op instanceof Operation.UnsharpMask) {
+			Operation.UnsharpMask unsharpMask = (Operation.UnsharpMask) op;
+			out.writeFloat(unsharpMask.radius);
+			out.writeFloat(unsharpMask.weight);
+		}
+		else if(op instanceof Operation.Clahe) {
+			Operation.Clahe clahe = (Operation.Clahe) op;
+			out.writeInt(clahe.blockSize);
+			out.writeInt(clahe.bins);
+			out.writeFloat(clahe.slope);
+			out.writeBoolean(clahe.mask != null);
+			if(clahe.mask != null)
+				out.writeUTF(clahe.mask);
+		}
+		else if(op instanceof Operation.IntensityNormalization) {
+			Operation.IntensityNormalization normalization = (Operation.IntensityNormalization) op;
+			out.writeUTF(normalization.mode.name());
+			out.writeDouble(normalization.saturated);
+			out.writeInt(normalization.bitDepth);
+		}
+		else if(op instanceof Operation.LinearTransform) {
+			Operation.LinearTransform transform = (Operation.LinearTransform) op;
+			out.writeDouble(transform.scale);
+			out.writeDouble(transform.offset);
+			out.writeInt(transform.bitDepth);
+		}
+		else if(!(op instanceof Operation.ConvertToGray)) {
+			throw new IOException("Cannot write " + op);
+		}
+	}
+
+	private static Operation read(DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		switch(name) {
+			case "gaussianBlur":
+				return new Operation.GaussianBlur(in.readFloat());
+			case "medianFilter":
+				return new Operation.MedianFilter(in.readInt());
+			case "subtractBackground":
+				return new Operation.SubtractBackground(in.readFloat());
+			case "unsharpMask":
+				return new Operation.UnsharpMask(in.readFloat(), in.readFloat());
+			case "clahe":
+				return new Operation.Clahe(in.readInt(), in.readInt(), in.readFloat(), in.readBoolean() ? in.readUTF() : null);
+			case "convertToGray":
+				return new Operation.ConvertToGray();
+			case "intensityNormalization":
+				return new Operation.IntensityNormalization(NormalizationMode.valueOf(in.readUTF()), in.readDouble(), in.readInt());
+			case "linearTransform":
+				return new Operation.LinearTransform(in.readDouble(), in.readDouble(), in.readInt());
+			default:
+				throw new IOException("Unknown operation " + name);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Calibration calibration = new Calibration();
+		int i = 0;
+		for(; i < args.length && args[i].startsWith("--"); i++) {
+			if(args[i].equals("--unit")) {
+				calibration.setUnit(args[++i]);
+			}
+			else if(args[i].equals("--pixel-width")) {
+				calibration.pixelWidth = Double.parseDouble(args[++i]);
+				calibration.pixelHeight = calibration.pixelWidth;
+			}
+			else if(args[i].equals("--like")) {
+				ImagePlus image = IJ.openImage(args[++i]);
+				if(image == null)
+					throw new IOException("Cannot open " + args[i]);
+				calibration = image.getCalibration();
+			}
+			else {
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		if(args.length - i != 2) {
+			System.err.println("Usage: PlanSnapshot [--unit u] [--pixel-width w] [--like image] script.txt plan.bin");
+			System.exit(2);
+		}
+		String script = new String(Files.readAllBytes(Paths.get(args[i])), StandardCharsets.UTF_8);
+		PlanSnapshot snapshot = compile(script, calibration);
+		snapshot.write(Paths.get(args[i + 1]));
+		System.out.println(snapshot.plan);
+		System.out.println(snapshot.dependsOnCalibration
+				? "Valid for a pixel width of " + snapshot.pixelWidth + " " + snapshot.unit + " only"
+				: "Valid for any calibration");
+	}
+}
@@ -1,13 +1,171 @@
 package nlScript.tutorial.preprocessing;
 
-import ij.IJ;
 import ij.ImagePlus;
+import ij.WindowManager;
+import ij.ImageStack;
+import ij.plugin.filter.BackgroundSubtracter;
+import ij.plugin.filter.GaussianBlur;
+import ij.plugin.filter.RankFilters;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ij.process.StackConverter;
 
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * The processing backend used by the tutorials.
+ *
+ * Filters are applied directly to the image's ImageProcessor, instead of dispatching them via
+ * IJ.run(), which builds an options string, looks up the command by name and takes an undo
+ * snapshot of the image for every sentence.
+ *
+ * Point-wise operations (like intensity normalization) are not written to the image immediately,
+ * but accumulated into a single linear transform. The transform is applied in one pass over the
+ * pixel array when the next neighborhood filter needs the pixels, or when flush() (or getImage())
+ * is called. Consecutive point-wise sentences therefore cost a single pass. If the image is shown
+ * in a window, the transform is written at the end of each operation instead, so that what is shown
+ * is always up to date, without callers having to flush.
+ *
+ * Filters run in parallel on overlapping tiles (see TiledExecutor), using all available cores by
+ * default. The result is identical to the untiled path, which is used with a parallelism of 1
+ * (ImageJ's own filters may still use several threads; see setParallelism()).
+ *
+ * By default, every operation is applied to all planes (slices, channels and frames) of a stack or
+ * hyperstack, which are processed in parallel. Use setProcessAllPlanes(false) to only process the
+ * current plane.
+ *
+ * Each of the public operations creates an Operation and passes it to execute(), which is the
+ * single entry point for running anything on the image. If ExecutionMetrics are set, the cost of
+ * each operation is recorded there. If a Monitor is set, it is notified about the progress within
+ * each operation, and can cancel it (see AsyncRunner).
+ */
 public class Preprocessing {
 
+	/**
+	 * How intensityNormalization() determines the intensity range which is mapped to [0, 1].
+	 */
+	public enum NormalizationMode {
+		/** Use the minimum and maximum over all processed planes. */
+		GLOBAL,
+		/** Use each plane's own minimum and maximum. */
+		PER_PLANE
+	}
+
+	/**
+	 * How gaussianBlur() filters.
+	 */
+	public enum GaussianEngine {
+		/** ImageJ's GaussianBlur. */
+		IMAGEJ,
+		/**
+		 * SeparableGaussian, which switches to a recursive filter for large standard deviations, so
+		 * that its cost doesn't grow with them.
+		 */
+		SEPARABLE
+	}
+
+	/**
+	 * How medianFilter() computes the median.
+	 */
+	public enum MedianEngine {
+		/** ImageJ's RankFilters, with a circular window. */
+		RANK_FILTERS,
+		/**
+		 * ConstantTimeMedian, whose cost doesn't depend on the radius, with a square window, for 8-bit,
+		 * 16-bit and RGB images. 32-bit images use RANK_FILTERS.
+		 */
+		CONSTANT_TIME
+	}
+
+	/**
+	 * How subtractBackground() determines the background.
+	 */
+	public enum BackgroundEngine {
+		/** ImageJ's BackgroundSubtracter, with a rolling ball. */
+		IMAGEJ,
+		/**
+		 * BackgroundSubtraction's rolling ball, like ImageJ's, but shrinking the image further for
+		 * large radii, within the background accuracy (see setBackgroundAccuracy()).
+		 */
+		ROLLING_BALL,
+		/**
+		 * BackgroundSubtraction's sliding paraboloid, whose cost doesn't depend on the radius.
+		 */
+		SLIDING_PARABOLOID
+	}
+
+	/**
+	 * Observes, and may cancel, the operations run by a Preprocessing (see setMonitor()).
+	 */
+	public interface Monitor {
+		/**
+		 * Whether to stop. This is checked before each operation, plane and tile; once it returns
+		 * true, the running operation throws a CancellationException.
+		 */
+		boolean isCancelled();
+
+		/**
+		 * Called whenever another plane of the running operation is done; <code>done</code> counts
+		 * up to <code>nPlanes</code> once for each pass over the planes. May be called concurrently
+		 * from different threads.
+		 */
+		void planeDone(int done, int nPlanes);
+	}
+
 	private ImagePlus image;
 
+	// If the image is a copy-on-write view, planes are copied before they are written in place
+	private CopyOnWriteImage copyOnWrite = null;
+
+	// Pending point-wise transform v -> v * pendingScale[p] + pendingOffset[p] for each processed
+	// plane p, or null if nothing is pending. With 8- or 16-bit output (pendingBitDepth), [0, 1] is
+	// mapped to the full range of the output type, and values outside are clipped.
+	private double[] pendingScale = null;
+	private double[] pendingOffset = null;
+	private int pendingBitDepth = 32;
+
+	private TiledExecutor executor = null;
+
+	// Whether the executor was set by setExecutor(), and is not owned by this Preprocessing
+	private boolean sharedExecutor = false;
+
+	// Looks up the images which operations read besides the current one (see Operation.inputs())
+	private Function<String, ImagePlus> images = WindowManager::getImage;
+
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	private boolean processAllPlanes = true;
+
+	private GaussianEngine gaussianEngine = GaussianEngine.IMAGEJ;
+
+	private MedianEngine medianEngine = MedianEngine.RANK_FILTERS;
+
+	private BackgroundEngine backgroundEngine = BackgroundEngine.ROLLING_BALL;
+
+	private double backgroundAccuracy = BackgroundSubtraction.DEFAULT_ACCURACY;
+
+	private ExecutionMetrics metrics = null;
+
+	private ResultCache resultCache = null;
+
+	private Monitor monitor = null;
+
+	// The key of the current state of the image in the result cache, or null if not computed yet
+	private String resultKey = null;
+
+	// true while an operation is recorded, so that flush() isn't recorded a second time
+	private boolean recording = false;
+
 	public Preprocessing() {
 	}
 	public Preprocessing(ImagePlus image) {
@@ -15,38 +173,1009 @@ public class Preprocessing {
 	}
 
 	public void setImage(ImagePlus image) {
+		flush();
 		this.image = image;
+		this.copyOnWrite = null;
+		this.resultKey = null;
+	}
+
+	/**
+	 * Works on the view of a CopyOnWriteImage, leaving its original untouched. Instead of duplicating
+	 * the whole image up-front, only the planes which are actually written in place are copied.
+	 */
+	public void setImage(CopyOnWriteImage image) {
+		setImage(image.getView());
+		this.copyOnWrite = image;
 	}
 
+	/**
+	 * The current image. With a result cache, planes which are shared with cached results are
+	 * copied first, so that modifying the returned image (e.g. in its window) doesn't modify the
+	 * cache.
+	 */
 	public ImagePlus getImage() {
+		flush();
+		if(resultCache != null && image != null) {
+			ImageStack stack = image.getStack();
+			for(int s = 1; s <= stack.getSize(); s++) {
+				ImageProcessor ip = image.getStackSize() == 1 ? image.getProcessor() : stack.getProcessor(s);
+				CopyOnWriteImage.materialize(image, ip, s, resultCache::contains);
+			}
+		}
 		return image;
 	}
 
+	/**
+	 * Sets how the images which operations read besides the current one are looked up by name, e.g.
+	 * a mask. By default, these are the images open in ImageJ, by title.
+	 */
+	void setImages(Function<String, ImagePlus> images) {
+		this.images = images;
+	}
+
+	/**
+	 * The image named <code>name</code>, which an operation reads besides the current one.
+	 */
+	ImagePlus getImage(String name) {
+		ImagePlus image = images.apply(name);
+		if(image == null)
+			throw new IllegalArgumentException("There is no image named '" + name + "'");
+		return image;
+	}
+
+	/**
+	 * Sets the number of threads which tiles, bands and planes are distributed to. A parallelism of
+	 * 1 runs each filter on the whole image at once, on the calling thread.
+	 *
+	 * This does not bound the number of threads used: ImageJ's GaussianBlur and RankFilters (the
+	 * IMAGEJ Gaussian and the RANK_FILTERS median, the defaults) start up to Prefs.getThreads()
+	 * threads of their own on every call, also for each tile or band, and ImageJ offers no way to
+	 * limit that for a single call. Only the SEPARABLE Gaussian, the CONSTANT_TIME median and the
+	 * background engines run on the given threads only.
+	 */
+	public void setParallelism(int parallelism) {
+		if(parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1, but is " + parallelism);
+		shutdown();
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Stops the threads used for filtering, unless they are shared (see setExecutor()). They are
+	 * started again by the next filter.
+	 */
+	public void shutdown() {
+		if(executor != null && !sharedExecutor)
+			executor.shutdown();
+		this.executor = null;
+		this.sharedExecutor = false;
+	}
+
+	/**
+	 * Runs filters on an executor shared with other Preprocessings, instead of on one of its own.
+	 * Filters of different images then run as tasks on the same pool, and idle threads steal from
+	 * each other (see ImageGraph). The executor isn't shut down by this Preprocessing, and a Monitor
+	 * can't cancel its tasks.
+	 */
+	void setExecutor(TiledExecutor executor) {
+		setParallelism(executor.getParallelism());
+		this.executor = executor;
+		this.sharedExecutor = true;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets whether operations are applied to all planes of a stack, or only to the current one.
+	 */
+	public void setProcessAllPlanes(boolean processAllPlanes) {
+		flush();
+		this.processAllPlanes = processAllPlanes;
+	}
+
+	public boolean isProcessAllPlanes() {
+		return processAllPlanes;
+	}
+
+	/**
+	 * Sets the metrics to which the cost of each operation (and of each flush() that isn't part of an
+	 * operation) is recorded, or null to not record anything.
+	 */
+	public void setMetrics(ExecutionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public ExecutionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets a cache for intermediate results, or null to not cache them (the default).
+	 *
+	 * With a cache, the result of each operation is stored, keyed by the content of the image passed
+	 * to setImage() and the operations executed since. An operation whose result is found is not
+	 * executed again, so if a script is re-run on the same image after changing its last sentence,
+	 * only that sentence is executed. The image must not be modified other than through this
+	 * Preprocessing in the meantime.
+	 */
+	public void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+		this.resultKey = null;
+	}
+
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Sets a Monitor which is notified about progress and can cancel operations, or null to run
+	 * them without (the default). A cancelled operation leaves the image partially processed, so it
+	 * should be run on a CopyOnWriteImage.
+	 */
+	public void setMonitor(Monitor monitor) {
+		this.monitor = monitor;
+		if(executor != null && !sharedExecutor)
+			executor.setCancellation(cancellation());
+	}
+
+	public Monitor getMonitor() {
+		return monitor;
+	}
+
+	/**
+	 * Sets how the Gaussian blur is computed. The default, IMAGEJ, gives the same results as ImageJ.
+	 * SEPARABLE is much faster for large standard deviations, but its results differ slightly.
+	 */
+	public void setGaussianEngine(GaussianEngine gaussianEngine) {
+		this.gaussianEngine = gaussianEngine;
+	}
+
+	public GaussianEngine getGaussianEngine() {
+		return gaussianEngine;
+	}
+
+	/**
+	 * Sets how the median is computed. The default, RANK_FILTERS, gives the same results as ImageJ.
+	 * CONSTANT_TIME is much faster for large radii, but uses a square instead of a circular window.
+	 */
+	public void setMedianEngine(MedianEngine medianEngine) {
+		this.medianEngine = medianEngine;
+	}
+
+	public MedianEngine getMedianEngine() {
+		return medianEngine;
+	}
+
+	/**
+	 * Sets how the background is determined. The default, ROLLING_BALL, gives the same results as
+	 * ImageJ as long as ImageJ's shrink factor is within the background accuracy (with the default
+	 * accuracy, for radii up to 255 pixels), and is faster beyond.
+	 */
+	public void setBackgroundEngine(BackgroundEngine backgroundEngine) {
+		this.backgroundEngine = backgroundEngine;
+	}
+
+	public BackgroundEngine getBackgroundEngine() {
+		return backgroundEngine;
+	}
+
+	/**
+	 * Sets how coarsely the ROLLING_BALL engine may shrink the image before rolling the ball: a
+	 * pixel of the shrunk image is at most <code>accuracy * radius</code> pixels wide (but never
+	 * narrower than with ImageJ). Smaller values are more accurate and slower; 0 uses ImageJ's shrink
+	 * factors. The default is 1 / 16.
+	 */
+	public void setBackgroundAccuracy(double accuracy) {
+		if(accuracy < 0 || accuracy > 1)
+			throw new IllegalArgumentException("Background accuracy must be in [0, 1], but is " + accuracy);
+		this.backgroundAccuracy = accuracy;
+	}
+
+	public double getBackgroundAccuracy() {
+		return backgroundAccuracy;
+	}
+
+	private TiledExecutor executor() {
+		if(parallelism == 1)
+			return null;
+		if(executor == null) {
+			executor = new TiledExecutor(parallelism);
+			executor.setCancellation(cancellation());
+		}
+		return executor;
+	}
+
+	private BooleanSupplier cancellation() {
+		Monitor m = monitor;
+		return m == null ? null : m::isCancelled;
+	}
+
+	private void checkCancelled() {
+		if(monitor != null && monitor.isCancelled())
+			throw new CancellationException("Preprocessing was cancelled");
+	}
+
+	/**
+	 * Runs <code>op</code> on the current image.
+	 */
+	public void execute(Operation op) {
+		if(metrics == null || recording)
+			run(op);
+		else
+			record(op.getName(), op.toString(), op.startsThreads(this), () -> run(op));
+		// nobody calls getImage() for a displayed image, which is looked at right away
+		if(pendingScale != null && image != null && image.getWindow() != null)
+			flush();
+	}
+
+	private void run(Operation op) {
+		checkCancelled();
+		if(resultCache == null) {
+			op.run(this);
+			return;
+		}
+		if(!op.inputs().isEmpty()) {
+			// the result depends on other images, whose content isn't part of the key
+			op.run(this);
+			resultKey = null;
+			return;
+		}
+		if(resultKey == null)
+			resultKey = resultCache.key(image);
+		String key = ResultCache.key(resultKey, op + " " + settings());
+		ResultCache.State state = resultCache.get(key);
+		if(state != null) {
+			restore(state);
+		}
+		else {
+			op.run(this);
+			resultCache.put(key, new ResultCache.State(image.getWidth(), image.getHeight(), ResultCache.planes(image),
+					copy(pendingScale), copy(pendingOffset), pendingBitDepth));
+		}
+		resultKey = key;
+	}
+
+	/**
+	 * Everything besides the operation itself which the result depends on.
+	 */
+	private String settings() {
+		return "planes=" + (processAllPlanes ? "all" : Integer.toString(image.getCurrentSlice()))
+				+ " gaussian=" + gaussianEngine
+				+ " median=" + medianEngine
+				+ " background=" + backgroundEngine + "/" + backgroundAccuracy;
+	}
+
+	/**
+	 * Replaces the image's planes and the pending transform by a cached state. The planes are not
+	 * copied; they are copied before they are written to (see materialize()).
+	 */
+	private void restore(ResultCache.State state) {
+		Object[] planes = state.planes;
+		if(planes.length == 1) {
+			ImageProcessor ip = image.getProcessor();
+			if(ip.getPixels().getClass() == planes[0].getClass()) {
+				ip.setPixels(planes[0]);
+				// also in the stack, since ImagePlus re-loads its processor from it
+				ImageStack stack = image.getStack();
+				if(stack.getSize() == 1)
+					stack.setPixels(planes[0], 1);
+			}
+			else {
+				image.setProcessor(processor(state.width, state.height, planes[0]));
+			}
+		}
+		else {
+			ImageStack current = image.getStack();
+			ImageStack stack = new ImageStack(state.width, state.height);
+			for(int s = 0; s < planes.length; s++)
+				stack.addSlice(current.getSliceLabel(s + 1), planes[s]);
+			image.setStack(stack, image.getNChannels(), image.getNSlices(), image.getNFrames());
+		}
+		pendingScale = copy(state.pendingScale);
+		pendingOffset = copy(state.pendingOffset);
+		pendingBitDepth = state.pendingBitDepth;
+		imageChanged();
+	}
+
+	private static ImageProcessor processor(int width, int height, Object pixels) {
+		if(pixels instanceof byte[])
+			return new ByteProcessor(width, height, (byte[]) pixels);
+		if(pixels instanceof short[])
+			return new ShortProcessor(width, height, (short[]) pixels, null);
+		if(pixels instanceof float[])
+			return new FloatProcessor(width, height, (float[]) pixels);
+		return new ColorProcessor(width, height, (int[]) pixels);
+	}
+
+	private static double[] copy(double[] array) {
+		return array == null ? null : array.clone();
+	}
+
+	private void record(String name, String description, boolean startsThreads, Runnable task) {
+		long pixels = image == null ? 0 : (long) image.getWidth() * image.getHeight() * planeCount();
+		recording = true;
+		try {
+			// the threads of a shared executor also run other operations at the same time, and the
+			// threads started by ImageJ's filters are gone before they could be asked for their costs
+			boolean measurable = !sharedExecutor && !startsThreads;
+			metrics.record(name, description, pixels, measurable ? this::workerThreadIds : null, task);
+		} finally {
+			recording = false;
+		}
+	}
+
+	private long[] workerThreadIds() {
+		return executor == null ? new long[0] : executor.getThreadIds();
+	}
+
 	public void gaussianBlur(float stdDev) {
-		IJ.run(image, "Gaussian Blur...", "sigma=" + stdDev);
+		execute(new Operation.GaussianBlur(stdDev));
 	}
 
+	/**
+	 * Replaces each pixel by the median of its neighborhood. With the default MedianEngine, the
+	 * neighborhood is a square of (2 * radius + 1) pixels width; see setMedianEngine().
+	 */
 	public void medianFilter(int radius) {
-		IJ.run(image, "Median...", "radius=" + radius);
+		execute(new Operation.MedianFilter(radius));
 	}
 
 	public void subtractBackground(float radius) {
-		IJ.run(image, "Subtract Background...", "rolling=" + radius);
+		execute(new Operation.SubtractBackground(radius));
+	}
+
+	/**
+	 * Sharpens the image like ImageJ's "Unsharp Mask...": A Gaussian-blurred copy with standard
+	 * deviation <code>radius</code>, weighted by <code>weight</code>, is subtracted, and the result
+	 * is divided by 1 - weight. With the SEPARABLE GaussianEngine, the subtraction is fused with the
+	 * blur; see setGaussianEngine().
+	 *
+	 * @param weight  the mask weight, in [0, 1).
+	 */
+	public void unsharpMask(float radius, float weight) {
+		if(weight < 0 || weight >= 1)
+			throw new IllegalArgumentException("Mask weight must be in [0, 1), but is " + weight);
+		execute(new Operation.UnsharpMask(radius, weight));
+	}
+
+	public void clahe(int blockSize, int bins, float slope) {
+		clahe(blockSize, bins, slope, null);
+	}
+
+	/**
+	 * Enhances the local contrast with CLAHE (see Clahe), in tiles of <code>blockSize</code> x
+	 * <code>blockSize</code> pixels, with histograms of <code>bins</code> bins, limiting the slope
+	 * of the intensity mappings to <code>slope</code>.
+	 *
+	 * @param mask  the name of an image (see getImage(String)) whose intensities weight the
+	 *              enhancement at each pixel, or null to enhance all pixels.
+	 */
+	public void clahe(int blockSize, int bins, float slope, String mask) {
+		if(blockSize < 1)
+			throw new IllegalArgumentException("Block size must be at least 1, but is " + blockSize);
+		if(bins < 2)
+			throw new IllegalArgumentException("Need at least 2 histogram bins, but got " + bins);
+		if(slope < 1)
+			throw new IllegalArgumentException("Max slope must be at least 1, but is " + slope);
+		execute(new Operation.Clahe(blockSize, bins, slope, mask));
 	}
 
 	public void convertToGray() {
-		if(image.getType() == ImagePlus.COLOR_RGB)
-			IJ.run(image, "8-bit", "");
+		execute(new Operation.ConvertToGray());
 	}
 
 	public void intensityNormalization() {
-		convertToGray();
+		intensityNormalization(NormalizationMode.GLOBAL);
+	}
+
+	/**
+	 * Scales the intensities linearly, so that the minimum maps to 0 and the maximum maps to 1.
+	 * The result is a 32-bit image, which is however only written once the pixels are needed
+	 * (see flush()).
+	 */
+	public void intensityNormalization(NormalizationMode mode) {
+		intensityNormalization(mode, 0, 32);
+	}
+
+	/**
+	 * Scales the intensities linearly, so that the full range of the output type is used: [0, 1] for
+	 * 32-bit output, [0, 255] for 8-bit and [0, 65535] for 16-bit.
+	 *
+	 * With <code>saturated</code> &gt; 0, not the minimum and maximum are mapped to the ends of the
+	 * range, but the intensities below which (saturated / 2) percent and above which (saturated / 2)
+	 * percent of the pixels lie, like with ImageJ's "Enhance Contrast". These are estimated from a
+	 * histogram over the data range, which costs a second pass over the pixels. For 8- and 16-bit
+	 * output, the saturated pixels are clipped.
+	 *
+	 * The rescaled pixels are written directly in the output type once they are needed (see flush()),
+	 * without an intermediate 32-bit copy.
+	 *
+	 * @param saturated  the percentage of pixels to saturate, in [0, 100).
+	 * @param bitDepth   the bit depth of the result: 8, 16 or 32. If only the current plane of a
+	 *                   stack is processed (see setProcessAllPlanes()), it keeps its own bit depth.
+	 */
+	public void intensityNormalization(NormalizationMode mode, double saturated, int bitDepth) {
+		if(bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IllegalArgumentException("Bit depth must be 8, 16 or 32, but is " + bitDepth);
+		if(saturated < 0 || saturated >= 100)
+			throw new IllegalArgumentException("Saturated percentage must be in [0, 100), but is " + saturated);
+		execute(new Operation.IntensityNormalization(mode, saturated, bitDepth));
+	}
+
+	void runGaussianBlur(float stdDev) {
+		flush();
+		TiledExecutor te = executor();
+		forEachPlane(ip -> {
+			if(gaussianEngine == GaussianEngine.SEPARABLE)
+				SeparableGaussian.blur(ip, stdDev, gaussianAccuracy(ip), te);
+			else if(te == null)
+				new GaussianBlur().blurGaussian(ip, stdDev, stdDev, gaussianAccuracy(ip));
+			else
+				te.gaussianBlur(ip, stdDev, gaussianAccuracy(ip));
+		});
+		imageChanged();
+	}
+
+	void runUnsharpMask(float radius, float weight) {
+		flush();
+		TiledExecutor te = executor();
+		forEachPlane(ip -> {
+			if(gaussianEngine == GaussianEngine.SEPARABLE)
+				SeparableGaussian.unsharpMask(ip, radius, weight, UNSHARP_MASK_ACCURACY, te);
+			else
+				unsharpMask(ip, radius, weight, te);
+		});
+		imageChanged();
+	}
+
+	// The kernel accuracy of ImageJ's "Unsharp Mask..."
+	static final double UNSHARP_MASK_ACCURACY = 0.01;
+
+	/**
+	 * The same as ImageJ's UnsharpMask, with the blur run in bands by <code>te</code> if not null.
+	 */
+	private static void unsharpMask(ImageProcessor ip, double sigma, float weight, TiledExecutor te) {
+		FloatProcessor fp = null;
+		for(int c = 0; c < ip.getNChannels(); c++) {
+			fp = ip.toFloat(c, fp);
+			FloatProcessor blurred = (FloatProcessor) fp.duplicate();
+			if(te == null)
+				new GaussianBlur().blurGaussian(blurred, sigma, sigma, UNSHARP_MASK_ACCURACY);
+			else
+				te.gaussianBlur(blurred, sigma, UNSHARP_MASK_ACCURACY);
+			float[] pixels = (float[]) fp.getPixels();
+			float[] b = (float[]) blurred.getPixels();
+			for(int i = 0; i < pixels.length; i++)
+				pixels[i] = (pixels[i] - weight * b[i]) / (1f - weight);
+			ip.setPixels(c, fp);
+		}
+	}
+
+	void runClahe(int blockSize, int bins, float slope, String mask) {
+		flush();
+		ImagePlus maskImage = mask == null ? null : getImage(mask);
+		if(maskImage != null && (maskImage.getWidth() != image.getWidth() || maskImage.getHeight() != image.getHeight()))
+			throw new IllegalArgumentException("The mask '" + mask + "' has a size of " + maskImage.getWidth() + "x"
+					+ maskImage.getHeight() + ", but the image has " + image.getWidth() + "x" + image.getHeight());
+		TiledExecutor te = executor();
+		ImageProcessor[] planes = planes();
+		forEachPlane(planes.length, p -> {
+			materialize(planes[p], p);
+			Clahe.enhance(planes[p], blockSize, bins, slope, maskPlane(maskImage, p), te);
+		});
+		imageChanged();
+	}
+
+	/**
+	 * The plane of <code>mask</code> for the p-th processed plane: the one at the same position if
+	 * the mask has as many planes as the image, otherwise its current plane.
+	 */
+	private ImageProcessor maskPlane(ImagePlus mask, int p) {
+		if(mask == null)
+			return null;
+		if(mask.getStackSize() != image.getStackSize())
+			return mask.getProcessor();
+		int slice = planeCount() == 1 ? image.getCurrentSlice() : p + 1;
+		return mask.getStack().getProcessor(slice);
+	}
+
+	void runMedianFilter(int radius) {
+		flush();
+		TiledExecutor te = executor();
+		forEachPlane(ip -> {
+			boolean constantTime = medianEngine == MedianEngine.CONSTANT_TIME && ConstantTimeMedian.supports(ip);
+			if(te == null)
+				median(ip, radius, constantTime);
+			else
+				te.applyTiled(ip, constantTime ? radius : medianHalo(radius), 1, tile -> median(tile, radius, constantTime));
+		});
+		imageChanged();
+	}
+
+	void runSubtractBackground(float radius) {
+		flush();
+		TiledExecutor te = executor();
+		forEachPlane(ip -> {
+			if(backgroundEngine == BackgroundEngine.ROLLING_BALL)
+				BackgroundSubtraction.rollingBall(ip, radius, backgroundAccuracy, te);
+			else if(backgroundEngine == BackgroundEngine.SLIDING_PARABOLOID)
+				BackgroundSubtraction.slidingParaboloid(ip, radius, te);
+			else if(te == null)
+				rollingBall(ip, radius);
+			else
+				te.applyTiled(ip, rollingBallHalo(radius), ROLLING_BALL_MAX_SHRINK_FACTOR, tile -> rollingBall(tile, radius));
+		});
+		imageChanged();
+	}
+
+	/**
+	 * Whether runMedianFilter() uses ImageJ's RankFilters for the current image.
+	 */
+	boolean usesRankFilters() {
+		return medianEngine != MedianEngine.CONSTANT_TIME || image == null || image.getBitDepth() == 32;
+	}
+
+	private static void median(ImageProcessor ip, int radius, boolean constantTime) {
+		if(constantTime)
+			ConstantTimeMedian.filter(ip, radius);
+		else
+			new RankFilters().rank(ip, radius, RankFilters.MEDIAN);
+	}
+
+	/**
+	 * RankFilters reads (int)sqrt(radius^2 + 1) pixels around each pixel.
+	 */
+	static int medianHalo(double radius) {
+		return (int) Math.sqrt(radius * radius + 1) + 1;
+	}
+
+	private static void rollingBall(ImageProcessor ip, float radius) {
+		BackgroundSubtracter bs = new BackgroundSubtracter();
+		// same defaults as "Subtract Background..." without any further options:
+		// dark background, rolling ball, with pre-smoothing
+		if(ip instanceof ColorProcessor)
+			bs.rollingBallBrightnessBackground((ColorProcessor) ip, radius, false, false, false, true, true);
+		else
+			bs.rollingBallBackground(ip, radius, false, false, false, true, true);
+	}
+
+	// The rolling ball works on an image shrunk by up to this factor; tiles
+	// must be aligned to it so that they are shrunk on the same grid.
+	static final int ROLLING_BALL_MAX_SHRINK_FACTOR = 8;
+
+	/**
+	 * The background at a pixel depends on the (shrunk) image below the ball, for all ball
+	 * positions that touch the pixel, i.e. within twice the radius, plus the pixels used for
+	 * pre-smoothing, shrinking and interpolating the background back to full size.
+	 */
+	static int rollingBallHalo(double radius) {
+		return 2 * (int) Math.ceil(radius) + 4 * ROLLING_BALL_MAX_SHRINK_FACTOR + 2;
+	}
+
+	void runConvertToGray() {
+		if(image.getType() != ImagePlus.COLOR_RGB)
+			return;
+		if(image.getStackSize() > 1)
+			new StackConverter(image).convertToGray8();
+		else
+			new ImageConverter(image).convertToGray8();
+	}
+
+	void runIntensityNormalization(NormalizationMode mode, double saturated, int bitDepth) {
+		beginPointwise();
+		ImageProcessor[] planes = planes();
+		int n = planes.length;
+
+		double[] min = new double[n];
+		double[] max = new double[n];
+		dataRanges(planes, min, max);
+
+		if(mode == NormalizationMode.GLOBAL) {
+			double gmin = Double.POSITIVE_INFINITY;
+			double gmax = Double.NEGATIVE_INFINITY;
+			for(int p = 0; p < n; p++) {
+				gmin = Math.min(gmin, min[p]);
+				gmax = Math.max(gmax, max[p]);
+			}
+			Arrays.fill(min, gmin);
+			Arrays.fill(max, gmax);
+		}
+
+		if(saturated > 0) {
+			IntensityHistogram[] histograms = new IntensityHistogram[n];
+			forEachPlane(n, p -> histograms[p] = histogram(planes[p], p, min[p], max[p]));
+			if(mode == NormalizationMode.GLOBAL) {
+				for(int p = 1; p < n; p++)
+					histograms[0].add(histograms[p]);
+				Arrays.fill(histograms, histograms[0]);
+			}
+			for(int p = 0; p < n; p++) {
+				double lower = histograms[p].percentile(saturated / 200);
+				double upper = histograms[p].percentile(1 - saturated / 200);
+				min[p] = lower;
+				max[p] = upper;
+			}
+		}
+
+		initPending(n);
+		for(int p = 0; p < n; p++) {
+			// a constant image is mapped to 0
+			double scale = max[p] > min[p] ? 1 / (max[p] - min[p]) : 1;
+			pendingOffset[p] = (pendingOffset[p] - min[p]) * scale;
+			pendingScale[p] = pendingScale[p] * scale;
+		}
+		pendingBitDepth = bitDepth;
+	}
+
+	void runLinearTransform(double scale, double offset, int bitDepth) {
+		beginPointwise();
+		int n = planeCount();
+		initPending(n);
+		for(int p = 0; p < n; p++) {
+			pendingOffset[p] = pendingOffset[p] * scale + offset;
+			pendingScale[p] = pendingScale[p] * scale;
+		}
+		pendingBitDepth = bitDepth;
+	}
+
+	/**
+	 * Prepares for another point-wise operation. A pending transform with 8- or 16-bit output is
+	 * written first, since its rounding and clipping can't be combined with what follows.
+	 */
+	private void beginPointwise() {
+		if(pendingBitDepth != 32)
+			flush();
+		runConvertToGray();
+	}
+
+	/**
+	 * The minimum and maximum intensity over all processed planes, as they would be after converting
+	 * to gray and applying what's pending.
+	 */
+	double[] dataRange() {
+		beginPointwise();
+		ImageProcessor[] planes = planes();
+		int n = planes.length;
+		double[] min = new double[n];
+		double[] max = new double[n];
+		dataRanges(planes, min, max);
+		double[] range = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		for(int p = 0; p < n; p++) {
+			range[0] = Math.min(range[0], min[p]);
+			range[1] = Math.max(range[1], max[p]);
+		}
+		return range;
+	}
+
+	/**
+	 * The histogram over [min, max] of all processed planes, as they would be after converting to
+	 * gray and applying what's pending.
+	 */
+	IntensityHistogram histogram(double min, double max) {
+		beginPointwise();
+		ImageProcessor[] planes = planes();
+		IntensityHistogram histogram = new IntensityHistogram(min, max, IntensityHistogram.DEFAULT_BINS);
+		for(int p = 0; p < planes.length; p++)
+			histogram.add(histogram(planes[p], p, min, max));
+		return histogram;
+	}
+
+	private IntensityHistogram histogram(ImageProcessor ip, int p, double min, double max) {
+		IntensityHistogram histogram = new IntensityHistogram(min, max, IntensityHistogram.DEFAULT_BINS);
+		histogram.add(ip, pendingScale == null ? 1 : pendingScale[p], pendingScale == null ? 0 : pendingOffset[p]);
+		return histogram;
+	}
+
+	private void initPending(int nPlanes) {
+		if(pendingScale == null) {
+			pendingScale = new double[nPlanes];
+			pendingOffset = new double[nPlanes];
+			Arrays.fill(pendingScale, 1);
+		}
+	}
+
+	/**
+	 * The data range of each plane, as it would be after applying what's pending.
+	 */
+	private void dataRanges(ImageProcessor[] planes, double[] min, double[] max) {
+		forEachPlane(planes.length, p -> {
+			double[] range = dataRange(planes[p]);
+			double scale = pendingScale == null ? 1 : pendingScale[p];
+			double offset = pendingScale == null ? 0 : pendingOffset[p];
+			double a = range[0] * scale + offset;
+			double b = range[1] * scale + offset;
+			min[p] = Math.min(a, b);
+			max[p] = Math.max(a, b);
+		});
+	}
+
+	/**
+	 * Writes any pending point-wise transform to the image, in a single pass over the pixels.
+	 */
+	public void flush() {
+		if(pendingScale == null)
+			return;
+		if(metrics != null && !recording) {
+			record("flush", "flush()", false, this::applyPending);
+			return;
+		}
+		applyPending();
+	}
+
+	/**
+	 * Drops any pending point-wise transform without applying it, e.g. after a cancelled operation,
+	 * so that it isn't applied to the next image by setImage().
+	 */
+	void reset() {
+		pendingScale = null;
+		pendingOffset = null;
+		pendingBitDepth = 32;
+		resultKey = null;
+	}
+
+	private void applyPending() {
+		double[] scale = pendingScale;
+		double[] offset = pendingOffset;
+		int bitDepth = pendingBitDepth;
+		pendingScale = null;
+		pendingOffset = null;
+		pendingBitDepth = 32;
+
+		ImageProcessor[] planes = planes();
+		// a single plane of a stack can't change its type without the others; it keeps its bit
+		// depth instead, with [0, 1] mapped to the full range of its type
+		if(planes.length < image.getStackSize())
+			bitDepth = planes[0].getBitDepth();
+		int outBitDepth = bitDepth;
+		ImageProcessor[] out = new ImageProcessor[planes.length];
+		forEachPlane(planes.length, p -> {
+			// planes which already have the output type are transformed in place
+			if(planes[p].getBitDepth() == outBitDepth)
+				materialize(planes[p], p);
+			out[p] = transform(planes[p], scale[p], offset[p], outBitDepth);
+		});
+
+		if(out[0] == planes[0]) {
+			// transformed in place
+		}
+		else if(image.getStackSize() == 1) {
+			image.setProcessor(out[0]);
+		}
+		else {
+			ImageStack stack = image.getStack();
+			ImageStack result = new ImageStack(stack.getWidth(), stack.getHeight());
+			for(int p = 0; p < planes.length; p++)
+				result.addSlice(stack.getSliceLabel(p + 1), out[p]);
+			image.setStack(result, image.getNChannels(), image.getNSlices(), image.getNFrames());
+		}
+		image.resetDisplayRange();
+		imageChanged();
+	}
+
+	/**
+	 * Maps each pixel v of <code>ip</code> to v * scale + offset, with the given output bit depth.
+	 * For 8- and 16-bit input, the result for each possible value is looked up in a table.
+	 */
+	private static ImageProcessor transform(ImageProcessor ip, double scale, double offset, int bitDepth) {
+		Object pixels = ip.getPixels();
+		int w = ip.getWidth(), h = ip.getHeight(), n = w * h;
+		boolean inPlace = ip.getBitDepth() == bitDepth;
+
+		if(pixels instanceof float[]) {
+			float[] in = (float[]) pixels;
+			switch(bitDepth) {
+				case 8: {
+					byte[] out = new byte[n];
+					for(int i = 0; i < n; i++)
+						out[i] = (byte) quantize(in[i] * scale + offset, 255);
+					return new ByteProcessor(w, h, out);
+				}
+				case 16: {
+					short[] out = new short[n];
+					for(int i = 0; i < n; i++)
+						out[i] = (short) quantize(in[i] * scale + offset, 65535);
+					return new ShortProcessor(w, h, out, null);
+				}
+				default: {
+					for(int i = 0; i < n; i++)
+						in[i] = (float) (in[i] * scale + offset);
+					return ip;
+				}
+			}
+		}
+
+		int range = pixels instanceof byte[] ? 256 : 65536;
+		Object out;
+		switch(bitDepth) {
+			case 8: {
+				byte[] lut = new byte[range];
+				for(int v = 0; v < range; v++)
+					lut[v] = (byte) quantize(v * scale + offset, 255);
+				byte[] o = inPlace ? (byte[]) pixels : new byte[n];
+				if(pixels instanceof byte[]) {
+					byte[] in = (byte[]) pixels;
+					for(int i = 0; i < n; i++)
+						o[i] = lut[in[i] & 0xff];
+				}
+				else {
+					short[] in = (short[]) pixels;
+					for(int i = 0; i < n; i++)
+						o[i] = lut[in[i] & 0xffff];
+				}
+				out = o;
+				break;
+			}
+			case 16: {
+				short[] lut = new short[range];
+				for(int v = 0; v < range; v++)
+					lut[v] = (short) quantize(v * scale + offset, 65535);
+				short[] o = inPlace ? (short[]) pixels : new short[n];
+				if(pixels instanceof byte[]) {
+					byte[] in = (byte[]) pixels;
+					for(int i = 0; i < n; i++)
+						o[i] = lut[in[i] & 0xff];
+				}
+				else {
+					short[] in = (short[]) pixels;
+					for(int i = 0; i < n; i++)
+						o[i] = lut[in[i] & 0xffff];
+				}
+				out = o;
+				break;
+			}
+			default: {
+				float[] lut = new float[range];
+				for(int v = 0; v < range; v++)
+					lut[v] = (float) (v * scale + offset);
+				float[] o = new float[n];
+				if(pixels instanceof byte[]) {
+					byte[] in = (byte[]) pixels;
+					for(int i = 0; i < n; i++)
+						o[i] = lut[in[i] & 0xff];
+				}
+				else {
+					short[] in = (short[]) pixels;
+					for(int i = 0; i < n; i++)
+						o[i] = lut[in[i] & 0xffff];
+				}
+				out = o;
+				break;
+			}
+		}
+		if(inPlace)
+			return ip;
+		if(out instanceof byte[])
+			return new ByteProcessor(w, h, (byte[]) out);
+		if(out instanceof short[])
+			return new ShortProcessor(w, h, (short[]) out, null);
+		return new FloatProcessor(w, h, (float[]) out);
+	}
+
+	/**
+	 * Maps [0, 1] to [0, max], rounding and clipping.
+	 */
+	private static int quantize(double v, int max) {
+		double q = v * max + 0.5;
+		return q <= 0 ? 0 : q >= max ? max : (int) q;
+	}
+
+	/**
+	 * The planes to process: all planes of the stack, or only the current one.
+	 */
+	private ImageProcessor[] planes() {
+		int n = image.getStackSize();
+		if(!processAllPlanes || n == 1)
+			return new ImageProcessor[] { image.getProcessor() };
+		ImageStack stack = image.getStack();
+		ImageProcessor[] planes = new ImageProcessor[n];
+		for(int p = 0; p < n; p++)
+			planes[p] = stack.getProcessor(p + 1);
+		return planes;
+	}
+
+	private int planeCount() {
+		return processAllPlanes ? image.getStackSize() : 1;
+	}
+
+	/**
+	 * Runs <code>op</code>, which modifies the pixels in place, for each plane.
+	 */
+	private void forEachPlane(Consumer<ImageProcessor> op) {
+		ImageProcessor[] planes = planes();
+		forEachPlane(planes.length, p -> {
+			materialize(planes[p], p);
+			op.accept(planes[p]);
+		});
+	}
+
+	/**
+	 * Copies the pixels of the p-th processed plane if they are still shared with the original
+	 * of a copy-on-write view, or with a cached result.
+	 */
+	private void materialize(ImageProcessor ip, int p) {
+		if(copyOnWrite == null && resultCache == null)
+			return;
+		int slice = planeCount() == 1 ? image.getCurrentSlice() : p + 1;
+		if(copyOnWrite != null)
+			copyOnWrite.materialize(image, ip, slice);
+		if(resultCache != null)
+			CopyOnWriteImage.materialize(image, ip, slice, resultCache::contains);
+	}
+
+	/**
+	 * Runs <code>op</code> for each plane index, in parallel if enabled. Each plane is a separate
+	 * task on the executor's ForkJoinPool, so that idle threads steal planes from busy ones.
+	 */
+	private void forEachPlane(int nPlanes, IntConsumer op) {
+		IntConsumer task = monitor == null ? op : monitored(nPlanes, op);
+		TiledExecutor te = executor();
+		if(te == null || nPlanes == 1) {
+			for(int p = 0; p < nPlanes; p++)
+				task.accept(p);
+		}
+		else {
+			te.forEach(nPlanes, task);
+		}
+	}
+
+	private IntConsumer monitored(int nPlanes, IntConsumer op) {
+		Monitor m = monitor;
+		AtomicInteger done = new AtomicInteger();
+		return p -> {
+			checkCancelled();
+			op.accept(p);
+			m.planeDone(done.incrementAndGet(), nPlanes);
+		};
+	}
+
+	private void imageChanged() {
+		image.changes = true;
+		image.updateAndDraw();
+	}
+
+	/**
+	 * A copy of the current plane, scaled down (with averaging) to at most <code>maxSize</code>
+	 * pixels in width and height, for showing progress. A pending point-wise transform is applied to
+	 * the copy only (as a float image), so that previews don't cost an extra pass over the image.
+	 */
+	ImageProcessor preview(int maxSize) {
 		ImageProcessor ip = image.getProcessor();
-		double min = ip.getMin();
-		double max = ip.getMax();
-		ip = ip.convertToFloat();
-		ip.subtract(min);
-		ip.multiply(1 / (max - min));
-		image.setProcessor(ip);
+		int w = ip.getWidth(), h = ip.getHeight();
+		double f = Math.min(1, (double) maxSize / Math.max(w, h));
+		ImageProcessor preview = f == 1
+				? ip.duplicate()
+				: ip.resize(Math.max(1, (int) Math.round(w * f)), Math.max(1, (int) Math.round(h * f)), true);
+		if(pendingScale != null) {
+			int p = planeCount() == 1 ? 0 : image.getCurrentSlice() - 1;
+			preview = preview.convertToFloatProcessor();
+			float[] pixels = (float[]) preview.getPixels();
+			double scale = pendingScale[p], offset = pendingOffset[p];
+			for(int i = 0; i < pixels.length; i++)
+				pixels[i] = (float) (pixels[i] * scale + offset);
+			preview.resetMinAndMax();
+		}
+		return preview;
+	}
+
+	/**
+	 * The kernel accuracy used by ImageJ's "Gaussian Blur...": lower for 8-bit and RGB images,
+	 * where the result is rounded anyway.
+	 */
+	static double gaussianAccuracy(ImageProcessor ip) {
+		return ip instanceof ByteProcessor || ip instanceof ColorProcessor ? 0.002 : 0.0002;
+	}
+
+	private static double[] dataRange(ImageProcessor ip) {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		int n = ip.getPixelCount();
+		for(int i = 0; i < n; i++) {
+			float v = ip.getf(i);
+			if(v < min) min = v;
+			if(v > max) max = v;
+		}
+		return new double[] {min, max};
 	}
 }
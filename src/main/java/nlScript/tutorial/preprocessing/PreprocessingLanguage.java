@@ -0,0 +1,98 @@
+package nlScript.tutorial.preprocessing;
+
+import nlScript.Parser;
+
+import java.util.function.Supplier;
+
+/**
+ * The preprocessing language developed in Tutorial10, packaged for re-use outside the editor,
+ * e.g. by BatchRunner.
+ *
+ * Instead of a fixed Preprocessing instance, the sentences are evaluated against whatever
+ * instance the given Supplier returns at evaluation time. This way, a script which was parsed
+ * once can be evaluated concurrently by several threads, each with its own Preprocessing
+ * (and image), e.g. by using a ThreadLocal.
+ *
+ * Since scripts run in batch may consist of thousands of sentences (e.g. generated for a parameter
+ * sweep), the sentences don't evaluate their 'filter-size' variables via pn.evaluate(name), which
+ * searches the variable by name and boxes its value, but call the type's DoubleEvaluator directly
+ * on the variable's node (see NamedChild).
+ */
+public class PreprocessingLanguage {
+
+	private PreprocessingLanguage() {
+	}
+
+	public static Parser create(Preprocessing preprocessing) {
+		return create(() -> preprocessing);
+	}
+
+	public static Parser create(Supplier<Preprocessing> preprocessing) {
+		return create(preprocessing, () -> {});
+	}
+
+	/**
+	 * @param calibrated  called whenever a 'filter-size' given in calibrated units is converted to
+	 *                    pixels, i.e. whenever the result depends on the image's calibration.
+	 */
+	static Parser create(Supplier<Preprocessing> preprocessing, Runnable calibrated) {
+		Parser parser = new Parser();
+
+		// 'units' is re-defined whenever the image's units string changes
+		DynamicType.defineUnits(parser, () -> preprocessing.get().getImage().getCalibration());
+
+		NamedChild value = new NamedChild("stddev");
+		NamedChild units = new NamedChild("units");
+		DoubleEvaluator filterSize = pn -> {
+			double stddev = DoubleEvaluator.parse(value.of(pn));
+			if((Boolean) units.of(pn).evaluate()) {
+				calibrated.run();
+				stddev /= preprocessing.get().getImage().getCalibration().pixelWidth;
+			}
+			return stddev;
+		};
+		parser.defineType("filter-size", "{stddev:float} {units:units}", filterSize.boxed(), true);
+
+		// The 'filter-size' variables of the sentences, one for each sentence (see NamedChild)
+		NamedChild stddev = new NamedChild("stddev");
+		NamedChild medianWindowSize = new NamedChild("window-size");
+		NamedChild backgroundWindowSize = new NamedChild("window-size");
+
+		// Gaussian Blurring
+		parser.defineSentence(
+				"Apply Gaussian blurring with a standard deviation of {stddev:filter-size}.",
+				pn -> {
+					double stdDev = filterSize.evaluate(stddev.of(pn));
+					preprocessing.get().gaussianBlur((float)stdDev);
+					return null;
+				});
+
+		// Median filtering
+		parser.defineSentence(
+				"Apply Median filtering with a window of radius {window-size:filter-size}.",
+				pn -> {
+					double radius = filterSize.evaluate(medianWindowSize.of(pn));
+					preprocessing.get().medianFilter((int) Math.round(radius));
+					return null;
+				});
+
+		// Intensity normalization
+		parser.defineSentence(
+				"Normalize intensities.",
+				pn -> {
+					preprocessing.get().intensityNormalization();
+					return null;
+				});
+
+		// Background subtraction
+		parser.defineSentence(
+				"Subtract the background with a standard deviation of {window-size:filter-size}.",
+				pn -> {
+					double radius = filterSize.evaluate(backgroundWindowSize.of(pn));
+					preprocessing.get().subtractBackground((float)radius);
+					return null;
+				});
+
+		return parser;
+	}
+}
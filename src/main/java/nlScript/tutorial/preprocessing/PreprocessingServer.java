@@ -0,0 +1,294 @@
+package nlScript.tutorial.preprocessing;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import nlScript.ParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs scripts of the preprocessing language (see PreprocessingLanguage) for local clients over
+ * HTTP, many at a time, in a single JVM.
+ *
+ * Nothing about a request is kept in shared state: The script and the image's calibration are
+ * compiled into a Plan (cached in the shared PlanCache, and compiled with a parser per thread, see
+ * Plan), and the plan is applied by the Preprocessing of the thread handling the request.
+ *
+ * The script is POSTed to /run, with the input image (a path on the server) as query parameter.
+ * If an output path is given, the result is written there and the timings are returned as text;
+ * otherwise the result is returned as TIFF. E.g.
+ *
+ * <pre>
+ * curl -H "Authorization: Bearer $TOKEN" --data-binary @script.txt 'http://localhost:8080/run?input=raw/a.tif&amp;output=preprocessed/a.tif'
+ * curl -H "Authorization: Bearer $TOKEN" --data-binary @script.txt 'http://localhost:8080/run?input=raw/a.tif' &gt; a.tif
+ * </pre>
+ *
+ * Since requests read and write files, the server only listens on the loopback interface, and
+ * only accepts requests which carry its token (a random string, printed at startup), so that other
+ * users and processes on the same machine can't use it. Requests with an Origin header are rejected,
+ * so that web pages can't use it through the user's browser. Input and output paths are resolved
+ * against the input and output root directories, and must not lead outside of them (neither by '..'
+ * nor by symbolic links).
+ *
+ * Usage (preferably with -Djava.awt.headless=true):
+ *
+ *   PreprocessingServer --input-root dir --output-root dir [--port n] [--threads n]
+ */
+public class PreprocessingServer {
+
+	public static final int DEFAULT_PORT = 8080;
+
+	private final HttpServer server;
+
+	private final ExecutorService workers;
+
+	private final ThreadLocal<Preprocessing> preprocessing;
+
+	private final String token;
+
+	private final Path inputRoot;
+
+	private final Path outputRoot;
+
+	/**
+	 * @param port        the port to listen on, or 0 for any free port.
+	 * @param threads     the number of requests handled at the same time.
+	 * @param inputRoot   the directory which images are read from.
+	 * @param outputRoot  the directory which results are written to.
+	 */
+	public PreprocessingServer(int port, int threads, Path inputRoot, Path outputRoot) throws IOException {
+		if(threads < 1)
+			throw new IllegalArgumentException("Need at least one thread, but got " + threads);
+		this.inputRoot = inputRoot.toRealPath();
+		this.outputRoot = outputRoot.toRealPath();
+		if(!Files.isDirectory(this.inputRoot) || !Files.isDirectory(this.outputRoot))
+			throw new IllegalArgumentException("Input and output roots must be directories");
+		byte[] random = new byte[24];
+		new SecureRandom().nextBytes(random);
+		this.token = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+		// The cores not used for handling requests in parallel are used within each request. ImageJ's
+		// filters start threads of their own on top of that (see Preprocessing.setParallelism()).
+		int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / threads);
+		this.preprocessing = ThreadLocal.withInitial(() -> {
+			Preprocessing p = new Preprocessing();
+			p.setParallelism(parallelism);
+			return p;
+		});
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.setExecutor(workers);
+		server.createContext("/run", this::handleRun);
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * The token which requests must carry, as 'Authorization: Bearer &lt;token&gt;' header.
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops accepting requests, and waits at most <code>delaySeconds</code> for running ones.
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		workers.shutdownNow();
+	}
+
+	private void handleRun(HttpExchange exchange) throws IOException {
+		try {
+			// sent by browsers for cross-origin requests, which a local client doesn't need
+			if(exchange.getRequestHeaders().containsKey("Origin")) {
+				respond(exchange, 403, "Requests from web pages are not accepted");
+				return;
+			}
+			if(!isAuthorized(exchange.getRequestHeaders().getFirst("Authorization"))) {
+				respond(exchange, 401, "Missing or wrong token");
+				return;
+			}
+			if(!exchange.getRequestMethod().equals("POST")) {
+				respond(exchange, 405, "Scripts must be POSTed");
+				return;
+			}
+			Map<String, String> params = queryParameters(exchange.getRequestURI().getRawQuery());
+			if(params.get("input") == null) {
+				respond(exchange, 400, "Missing parameter 'input'");
+				return;
+			}
+			String input = resolve(inputRoot, params.get("input"));
+			String output = params.get("output") == null ? null : resolve(outputRoot, params.get("output"));
+			if(input == null || (params.get("output") != null && output == null)) {
+				respond(exchange, 403, "Paths must be within the input and output directories");
+				return;
+			}
+			String script = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+
+			long t0 = System.nanoTime();
+			ImagePlus image = IJ.openImage(input);
+			if(image == null) {
+				respond(exchange, 404, "Cannot open " + input);
+				return;
+			}
+			long t1 = System.nanoTime();
+			ImagePlus result = process(script, image);
+			long t2 = System.nanoTime();
+
+			if(output == null) {
+				byte[] tiff = new FileSaver(result).serialize();
+				exchange.getResponseHeaders().set("Content-Type", "image/tiff");
+				respond(exchange, 200, tiff);
+				return;
+			}
+			if(!IJ.saveAsTiff(result, output)) {
+				respond(exchange, 500, "Cannot write " + output);
+				return;
+			}
+			long t3 = System.nanoTime();
+			respond(exchange, 200, "OK\tread " + millis(t0, t1) + " ms\tprocess " + millis(t1, t2) + " ms\twrite " + millis(t2, t3) + " ms");
+		} catch(ParseException e) {
+			respond(exchange, 400, "Cannot parse script: " + e.getMessage());
+		} catch(Throwable e) {
+			respond(exchange, 500, "FAILED\t" + e);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private boolean isAuthorized(String authorization) {
+		String expected = "Bearer " + token;
+		return authorization != null && MessageDigest.isEqual(
+				authorization.getBytes(StandardCharsets.UTF_8),
+				expected.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * <code>path</code> resolved against <code>root</code>, or null if it leads outside of it. The
+	 * file itself need not exist, but its directory must.
+	 */
+	static String resolve(Path root, String path) throws IOException {
+		Path file;
+		try {
+			file = root.resolve(path).normalize();
+		} catch(InvalidPathException e) {
+			return null;
+		}
+		Path directory = file.getParent();
+		if(directory == null || !Files.isDirectory(directory))
+			return null;
+		// symbolic links are followed, to where they actually lead
+		Path real = Files.exists(file) ? file.toRealPath() : directory.toRealPath().resolve(file.getFileName());
+		return real.startsWith(root) && !real.equals(root) ? real.toString() : null;
+	}
+
+	private ImagePlus process(String script, ImagePlus image) throws ParseException {
+		// Compiled once per script and calibration, since 'filter-size' depends on it
+		Plan plan = PlanCache.getDefault().get(script, image.getCalibration());
+		Preprocessing p = preprocessing.get();
+		try {
+			p.setImage(image);
+			plan.apply(p);
+			return p.getImage();
+		} finally {
+			release(p);
+		}
+	}
+
+	private static void release(Preprocessing preprocessing) {
+		try {
+			preprocessing.setImage((ImagePlus) null);
+		} catch(RuntimeException e) {
+			// flushing the image of a failed request may fail again; it's dropped anyway
+		}
+	}
+
+	private static Map<String, String> queryParameters(String query) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<>();
+		if(query == null)
+			return params;
+		for(String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if(eq > 0)
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while((n = in.read(buffer)) > 0)
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+	private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		respond(exchange, status, (text + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static long millis(long from, long to) {
+		return (to - from) / 1000000;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = DEFAULT_PORT;
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		Path inputRoot = null, outputRoot = null;
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("--port"))
+				port = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--input-root"))
+				inputRoot = Paths.get(args[++i]);
+			else if(args[i].equals("--output-root"))
+				outputRoot = Paths.get(args[++i]);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		if(inputRoot == null || outputRoot == null)
+			throw new IllegalArgumentException("Usage: PreprocessingServer --input-root dir --output-root dir [--port n] [--threads n]");
+		PreprocessingServer server = new PreprocessingServer(port, threads, inputRoot, outputRoot);
+		server.start();
+		System.out.println("Listening on http://localhost:" + server.getPort() + "/run");
+		System.out.println("Token: " + server.getToken());
+	}
+}
@@ -0,0 +1,138 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * Computes the result of a Plan for one region of one plane only, e.g. the part of the image
+ * which is currently visible, for a quick preview. The whole image is only processed when the plan
+ * is applied (e.g. by AsyncRunner or BatchRunner).
+ *
+ * The plan is evaluated backwards first, to find the region each operation needs as input: the
+ * region its result is needed for, grown by its halo (see Operation.halo()). Each operation then
+ * runs on its input region only, cropped out of the previous operation's result. As with
+ * TiledExecutor's tiles, the requested region is identical to the corresponding part of the full
+ * result, because the halos cover everything an operation reads (up to float rounding for the
+ * recursive Gaussian).
+ *
+ * Operations which depend on the whole plane (e.g. a per-plane intensity normalization) need the
+ * whole plane as input, and so does everything before them. Operations which depend on all planes
+ * (a global intensity normalization of a stack) are barriers: The plan up to the last of them is
+ * applied to the whole image, and only the rest is computed lazily.
+ */
+public class RegionPreview {
+
+	private final Preprocessing settings;
+
+	/**
+	 * @param settings  the engines, accuracies and parallelism to process with, and whether all
+	 *                  planes are processed; its image isn't used.
+	 */
+	public RegionPreview(Preprocessing settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * Whether computing <code>region</code> of <code>image</code> first saves time over waiting for
+	 * the whole result: not if the region covers the whole plane, or if the plan has a barrier,
+	 * since everything up to it would be computed for the whole image twice.
+	 */
+	public boolean isWorthwhile(ImagePlus image, Rectangle region, Plan plan) {
+		if(region.contains(new Rectangle(image.getWidth(), image.getHeight())))
+			return false;
+		if(settings.isProcessAllPlanes() && image.getStackSize() > 1)
+			for(Operation op : plan.getOperations())
+				if(op.halo(settings) == Operation.ALL_PLANES)
+					return false;
+		return true;
+	}
+
+	/**
+	 * The result of <code>plan</code> within <code>region</code> of the plane with (1-based) index
+	 * <code>slice</code> of <code>image</code>, which is left untouched. The region is clipped to
+	 * the image.
+	 */
+	public ImageProcessor compute(ImagePlus image, int slice, Rectangle region, Plan plan) {
+		List<Operation> operations = plan.getOperations();
+		int n = operations.size();
+		boolean allPlanes = settings.isProcessAllPlanes() && image.getStackSize() > 1;
+
+		// Operations up to the last one that depends on all planes are applied to the whole image
+		int first = 0;
+		for(int i = n - 1; i >= 0 && first == 0; i--)
+			if(allPlanes && operations.get(i).halo(settings) == Operation.ALL_PLANES)
+				first = i + 1;
+		ImagePlus input = image;
+		if(first > 0) {
+			Preprocessing whole = processor();
+			whole.setImage(new CopyOnWriteImage(image));
+			for(int i = 0; i < first; i++)
+				whole.execute(operations.get(i));
+			input = whole.getImage();
+		}
+
+		// regions[i] is the input region of operation i, regions[n] the requested one
+		Rectangle bounds = new Rectangle(image.getWidth(), image.getHeight());
+		Rectangle[] regions = new Rectangle[n + 1];
+		regions[n] = region.intersection(bounds);
+		if(regions[n].isEmpty())
+			throw new IllegalArgumentException("Region " + region + " is outside of the image");
+		for(int i = n - 1; i >= first; i--) {
+			Operation op = operations.get(i);
+			int halo = op.halo(settings);
+			regions[i] = halo < 0 ? bounds : grow(regions[i + 1], halo, op.alignment(settings), bounds);
+		}
+
+		ImageProcessor ip = crop(input.getStack().getProcessor(slice), regions[first], 0, 0);
+		Preprocessing preprocessing = processor();
+		preprocessing.setImage(new ImagePlus(image.getTitle(), ip));
+		for(int i = first; i < n; i++) {
+			preprocessing.execute(operations.get(i));
+			// what the next operation doesn't need isn't processed any further
+			if(!regions[i + 1].equals(regions[i])) {
+				ip = crop(preprocessing.getImage().getProcessor(), regions[i + 1], regions[i].x, regions[i].y);
+				preprocessing.setImage(new ImagePlus(image.getTitle(), ip));
+			}
+		}
+		return preprocessing.getImage().getProcessor();
+	}
+
+	private Preprocessing processor() {
+		Preprocessing preprocessing = new Preprocessing();
+		preprocessing.setParallelism(settings.getParallelism());
+		preprocessing.setProcessAllPlanes(settings.isProcessAllPlanes());
+		preprocessing.setGaussianEngine(settings.getGaussianEngine());
+		preprocessing.setMedianEngine(settings.getMedianEngine());
+		preprocessing.setBackgroundEngine(settings.getBackgroundEngine());
+		preprocessing.setBackgroundAccuracy(settings.getBackgroundAccuracy());
+		// so that a preview can be cancelled, too
+		preprocessing.setMonitor(settings.getMonitor());
+		return preprocessing;
+	}
+
+	/**
+	 * <code>r</code> grown by <code>halo</code> on all sides, with its origin moved down to a
+	 * multiple of <code>align</code>, clipped to <code>bounds</code>.
+	 */
+	static Rectangle grow(Rectangle r, int halo, int align, Rectangle bounds) {
+		int x0 = Math.max(0, r.x - halo) / align * align;
+		int y0 = Math.max(0, r.y - halo) / align * align;
+		int x1 = Math.min(bounds.width, r.x + r.width + halo);
+		int y1 = Math.min(bounds.height, r.y + r.height + halo);
+		return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/**
+	 * A copy of <code>region</code> (in image coordinates) of <code>ip</code>, whose origin is at
+	 * (<code>x</code>, <code>y</code>) in image coordinates.
+	 */
+	private static ImageProcessor crop(ImageProcessor ip, Rectangle region, int x, int y) {
+		ip.setRoi(region.x - x, region.y - y, region.width, region.height);
+		ImageProcessor cropped = ip.crop();
+		ip.resetRoi();
+		return cropped;
+	}
+}
@@ -0,0 +1,453 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Caches intermediate results of Preprocessing, for re-running a script after editing it.
+ *
+ * A result is keyed by a hash of the input image's content and of all operations (with their
+ * arguments and the engine settings) executed on it so far. Hashing all pixels of the input is
+ * done once per image: the hash is remembered for its pixel arrays, together with a fingerprint
+ * (its dimensions and a sample of its pixels), and only computed again if the fingerprint changed.
+ * An in-place modification of the input which leaves all sampled pixels unchanged is therefore not
+ * noticed; clear() the cache after such a modification. If a script is run again on the same
+ * input, each operation whose key is found is not executed, but its result is taken from the cache;
+ * so if only the last sentence was changed, only that sentence is executed (see
+ * Preprocessing.setResultCache()).
+ *
+ * Results are not copied: the cache keeps the pixel arrays of the image after each operation, and
+ * Preprocessing copies an array before it writes to it in place, like for a CopyOnWriteImage. An
+ * array shared by several results (e.g. because a point-wise operation only changed the pending
+ * transform) is stored, and counted, once. Preprocessing.getImage() copies the arrays it shares with
+the cache, so that the returned image can be modified (e.g. in its window) without modifying the
+cache.
+ *
+ * The cache holds at most memoryBudget bytes of pixel arrays. Beyond that, the least recently used
+ * results are dropped, or, if a spill directory is given, written to a file there, from which they
+ * are read back when needed again. Spill files are deleted by clear(). The cache is thread-safe.
+ */
+public class ResultCache {
+
+	/**
+	 * The state of the image after an operation: its planes, and the pending point-wise transform.
+	 */
+	static final class State {
+		final int width;
+		final int height;
+		final Object[] planes;
+		final double[] pendingScale;
+		final double[] pendingOffset;
+		final int pendingBitDepth;
+
+		State(int width, int height, Object[] planes, double[] pendingScale, double[] pendingOffset, int pendingBitDepth) {
+			this.width = width;
+			this.height = height;
+			this.planes = planes;
+			this.pendingScale = pendingScale;
+			this.pendingOffset = pendingOffset;
+			this.pendingBitDepth = pendingBitDepth;
+		}
+	}
+
+	private final long memoryBudget;
+
+	private final Path spillDirectory;
+
+	// in access order, for evicting the least recently used
+	private final LinkedHashMap<String, State> states = new LinkedHashMap<>(16, 0.75f, true);
+
+	// the number of cached states which reference each pixel array, compared by identity
+	private final Map<Object, Integer> references = new IdentityHashMap<>();
+
+	private final Set<String> spilled = new HashSet<>();
+
+	// the fingerprint and hash of input images, by their first pixel array; dropped with the image
+	private final Map<Object, String[]> inputs = new WeakHashMap<>();
+
+	private long memoryUsed = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	public ResultCache(long memoryBudget) {
+		this(memoryBudget, null);
+	}
+
+	/**
+	 * @param spillDirectory  where results beyond the memory budget are written to; null to drop them.
+	 */
+	public ResultCache(long memoryBudget, Path spillDirectory) {
+		if(memoryBudget < 0)
+			throw new IllegalArgumentException("Memory budget must not be negative, but is " + memoryBudget);
+		this.memoryBudget = memoryBudget;
+		this.spillDirectory = spillDirectory;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	public synchronized long getMemoryUsed() {
+		return memoryUsed;
+	}
+
+	public synchronized int size() {
+		return states.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Removes all results, including those spilled to disk.
+	 */
+	public synchronized void clear() {
+		states.clear();
+		references.clear();
+		memoryUsed = 0;
+		for(String key : spilled) {
+			try {
+				Files.deleteIfExists(spillFile(key));
+			} catch(IOException ignored) {
+				// the file is left behind, but not used anymore
+			}
+		}
+		spilled.clear();
+		inputs.clear();
+	}
+
+	/**
+	 * Whether <code>pixels</code> belong to a cached result, so that they must not be modified.
+	 */
+	synchronized boolean contains(Object pixels) {
+		return references.containsKey(pixels);
+	}
+
+	synchronized State get(String key) {
+		State state = states.get(key);
+		if(state == null && spilled.contains(key)) {
+			try {
+				state = read(spillFile(key));
+			} catch(IOException e) {
+				throw new UncheckedIOException("Cannot read cached result " + key, e);
+			}
+			add(key, state);
+		}
+		if(state == null)
+			misses++;
+		else
+			hits++;
+		return state;
+	}
+
+	synchronized void put(String key, State state) {
+		State previous = states.remove(key);
+		if(previous != null)
+			release(previous);
+		add(key, state);
+	}
+
+	private void add(String key, State state) {
+		states.put(key, state);
+		for(Object pixels : state.planes) {
+			Integer n = references.get(pixels);
+			if(n == null)
+				memoryUsed += bytes(pixels);
+			references.put(pixels, n == null ? 1 : n + 1);
+		}
+		evict();
+	}
+
+	private void release(State state) {
+		for(Object pixels : state.planes) {
+			int n = references.get(pixels);
+			if(n == 1) {
+				references.remove(pixels);
+				memoryUsed -= bytes(pixels);
+			}
+			else {
+				references.put(pixels, n - 1);
+			}
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, State>> it = states.entrySet().iterator();
+		while(memoryUsed > memoryBudget && it.hasNext()) {
+			Map.Entry<String, State> eldest = it.next();
+			if(spillDirectory != null && !spilled.contains(eldest.getKey())) {
+				try {
+					write(eldest.getValue(), spillFile(eldest.getKey()));
+					spilled.add(eldest.getKey());
+				} catch(IOException e) {
+					// the result is dropped instead
+				}
+			}
+			it.remove();
+			release(eldest.getValue());
+		}
+	}
+
+	private Path spillFile(String key) {
+		return spillDirectory.resolve(key + ".result");
+	}
+
+	private static long bytes(Object pixels) {
+		if(pixels instanceof byte[])
+			return ((byte[]) pixels).length;
+		if(pixels instanceof short[])
+			return 2L * ((short[]) pixels).length;
+		if(pixels instanceof float[])
+			return 4L * ((float[]) pixels).length;
+		return 4L * ((int[]) pixels).length;
+	}
+
+	/**
+	 * The key for the result of running <code>operation</code> on the state with key
+	 * <code>previous</code>.
+	 */
+	static String key(String previous, String operation) {
+		MessageDigest digest = sha256();
+		digest.update((previous + '\0' + operation).getBytes(StandardCharsets.UTF_8));
+		return hex(digest.digest());
+	}
+
+	/**
+	 * The key of the unprocessed <code>image</code> (see hash(ImagePlus)), which is only computed
+	 * if the same pixel arrays weren't hashed before, or were modified since, according to their
+	 * fingerprint.
+	 */
+	synchronized String key(ImagePlus image) {
+		Object[] planes = planes(image);
+		String fingerprint = fingerprint(image, planes);
+		String[] input = inputs.get(planes[0]);
+		if(input == null || !input[0].equals(fingerprint)) {
+			input = new String[] { fingerprint, hash(image) };
+			inputs.put(planes[0], input);
+		}
+		return input[1];
+	}
+
+	// the number of pixels per plane sampled for a fingerprint
+	private static final int SAMPLES = 4096;
+
+	/**
+	 * The dimensions and type of <code>image</code>, the identities of its pixel arrays, and a sample
+	 * of evenly spaced pixels of each plane. The spacing is coprime to the width, so that the samples
+	 * spread over all columns instead of repeating the same few (e.g. for power-of-two sizes).
+	 */
+	private static String fingerprint(ImagePlus image, Object[] planes) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(image.getWidth()).append('x').append(image.getHeight()).append('x').append(planes.length).append('@').append(image.getBitDepth());
+		int n = image.getWidth() * image.getHeight();
+		int step = Math.max(1, n / SAMPLES);
+		while(gcd(step, image.getWidth()) != 1)
+			step++;
+		for(Object pixels : planes) {
+			sb.append(' ').append(System.identityHashCode(pixels)).append(':');
+			int hash = 1;
+			for(int i = 0; i < n; i += step)
+				hash = 31 * hash + sample(pixels, i);
+			sb.append(hash);
+		}
+		return sb.toString();
+	}
+
+	private static int gcd(int a, int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	private static int sample(Object pixels, int i) {
+		if(pixels instanceof byte[])
+			return ((byte[]) pixels)[i];
+		if(pixels instanceof short[])
+			return ((short[]) pixels)[i];
+		if(pixels instanceof float[])
+			return Float.floatToIntBits(((float[]) pixels)[i]);
+		return ((int[]) pixels)[i];
+	}
+
+	/**
+	 * A hash of the dimensions, type and all pixels of <code>image</code>.
+	 */
+	static String hash(ImagePlus image) {
+		MessageDigest digest = sha256();
+		String header = image.getWidth() + "x" + image.getHeight() + "x" + image.getStackSize() + "@" + image.getBitDepth();
+		digest.update(header.getBytes(StandardCharsets.UTF_8));
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		for(Object pixels : planes(image)) {
+			int length = (int) (bytes(pixels) / elementSize(pixels));
+			for(int offset = 0; offset < length; ) {
+				int n = toBytes(pixels, offset, buffer);
+				digest.update(buffer.array(), 0, buffer.position());
+				offset += n;
+			}
+		}
+		return hex(digest.digest());
+	}
+
+	/**
+	 * The pixel arrays of all planes of <code>image</code>.
+	 */
+	static Object[] planes(ImagePlus image) {
+		// for single images, getStack() may return a copy of the processor's pixels
+		if(image.getStackSize() == 1)
+			return new Object[] { image.getProcessor().getPixels() };
+		ImageStack stack = image.getStack();
+		Object[] planes = new Object[stack.getSize()];
+		for(int s = 0; s < planes.length; s++)
+			planes[s] = stack.getPixels(s + 1);
+		return planes;
+	}
+
+	private static int elementSize(Object pixels) {
+		return pixels instanceof byte[] ? 1 : pixels instanceof short[] ? 2 : 4;
+	}
+
+	/**
+	 * Copies as many elements of <code>pixels</code>, from <code>offset</code> on, into
+	 * <code>buffer</code> as fit, and returns their number.
+	 */
+	private static int toBytes(Object pixels, int offset, ByteBuffer buffer) {
+		buffer.clear();
+		int n;
+		if(pixels instanceof byte[]) {
+			n = Math.min(buffer.capacity(), ((byte[]) pixels).length - offset);
+			buffer.put((byte[]) pixels, offset, n);
+		}
+		else if(pixels instanceof short[]) {
+			n = Math.min(buffer.capacity() / 2, ((short[]) pixels).length - offset);
+			buffer.asShortBuffer().put((short[]) pixels, offset, n);
+			buffer.position(2 * n);
+		}
+		else if(pixels instanceof float[]) {
+			n = Math.min(buffer.capacity() / 4, ((float[]) pixels).length - offset);
+			buffer.asFloatBuffer().put((float[]) pixels, offset, n);
+			buffer.position(4 * n);
+		}
+		else {
+			n = Math.min(buffer.capacity() / 4, ((int[]) pixels).length - offset);
+			buffer.asIntBuffer().put((int[]) pixels, offset, n);
+			buffer.position(4 * n);
+		}
+		return n;
+	}
+
+	private static int fromBytes(ByteBuffer buffer, Object pixels, int offset, int n) {
+		buffer.clear();
+		if(pixels instanceof byte[])
+			buffer.get((byte[]) pixels, offset, n);
+		else if(pixels instanceof short[])
+			buffer.asShortBuffer().get((short[]) pixels, offset, n);
+		else if(pixels instanceof float[])
+			buffer.asFloatBuffer().get((float[]) pixels, offset, n);
+		else
+			buffer.asIntBuffer().get((int[]) pixels, offset, n);
+		return n;
+	}
+
+	private static final String TYPES = "BSFI";
+
+	private static void write(State state, Path file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(state.width);
+			out.writeInt(state.height);
+			out.writeInt(state.planes.length);
+			out.writeInt(state.pendingBitDepth);
+			out.writeBoolean(state.pendingScale != null);
+			if(state.pendingScale != null) {
+				out.writeInt(state.pendingScale.length);
+				for(int p = 0; p < state.pendingScale.length; p++) {
+					out.writeDouble(state.pendingScale[p]);
+					out.writeDouble(state.pendingOffset[p]);
+				}
+			}
+			for(Object pixels : state.planes) {
+				int length = (int) (bytes(pixels) / elementSize(pixels));
+				out.writeChar(TYPES.charAt(pixels instanceof byte[] ? 0 : pixels instanceof short[] ? 1 : pixels instanceof float[] ? 2 : 3));
+				out.writeInt(length);
+				for(int offset = 0; offset < length; ) {
+					offset += toBytes(pixels, offset, buffer);
+					out.write(buffer.array(), 0, buffer.position());
+				}
+			}
+		}
+	}
+
+	private static State read(Path file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			int width = in.readInt();
+			int height = in.readInt();
+			Object[] planes = new Object[in.readInt()];
+			int pendingBitDepth = in.readInt();
+			double[] pendingScale = null, pendingOffset = null;
+			if(in.readBoolean()) {
+				int n = in.readInt();
+				pendingScale = new double[n];
+				pendingOffset = new double[n];
+				for(int p = 0; p < n; p++) {
+					pendingScale[p] = in.readDouble();
+					pendingOffset[p] = in.readDouble();
+				}
+			}
+			for(int p = 0; p < planes.length; p++) {
+				int type = TYPES.indexOf(in.readChar());
+				int length = in.readInt();
+				Object pixels = type == 0 ? new byte[length] : type == 1 ? new short[length] : type == 2 ? new float[length] : new int[length];
+				int elementSize = elementSize(pixels);
+				for(int offset = 0; offset < length; ) {
+					int n = Math.min(buffer.capacity() / elementSize, length - offset);
+					in.readFully(buffer.array(), 0, n * elementSize);
+					offset += fromBytes(buffer, pixels, offset, n);
+				}
+				planes[p] = pixels;
+			}
+			return new State(width, height, planes, pendingScale, pendingOffset, pendingBitDepth);
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			// every JVM supports SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String hex(byte[] hash) {
+		StringBuilder hex = new StringBuilder();
+		for(byte b : hash)
+			hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+}
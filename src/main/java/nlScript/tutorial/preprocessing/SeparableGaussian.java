@@ -0,0 +1,347 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.function.IntConsumer;
+
+/**
+ * A Gaussian blur, as a horizontal followed by a vertical 1D filter, on float arrays.
+ *
+ * For small standard deviations, a symmetric FIR kernel is convolved. For large standard
+ * deviations (at least IIR_MIN_SIGMA pixels), the recursive filter of Young and van Vliet ("Recursive
+ * implementation of the Gaussian filter", Signal Processing 44, 1995) is used instead, whose cost
+ * doesn't depend on the standard deviation.
+ *
+ * The inner loops run over contiguous pixels of a row and do the same arithmetic for each, without
+ * allocating, so that the JIT compiler can vectorize them. The vertical pass therefore doesn't
+ * filter one column after the other, but all columns of a strip at once, row by row.
+ *
+ * Pixels outside the image are replaced by the nearest edge pixel, like in ImageJ. Other than with
+ * ImageJ's GaussianBlur, the kernel is neither edge-corrected nor is the image downscaled for large
+ * standard deviations, so results differ slightly.
+ *
+ * The unsharp mask is fused with the blur: The horizontal pass reads the original pixels and writes
+ * into a separate buffer, and the vertical pass combines each blurred row with the original as soon
+ * as it is done, while both are still in the cache. There is no separate pass for the subtraction.
+ */
+final class SeparableGaussian {
+
+	/** From this standard deviation on, the recursive filter is used. */
+	static final double IIR_MIN_SIGMA = 6;
+
+	// Rows per task for the horizontal pass, and columns per task for the vertical pass
+	private static final int ROWS_PER_TASK = 32;
+	private static final int COLUMNS_PER_TASK = 256;
+
+	private SeparableGaussian() {
+	}
+
+	/**
+	 * Blurs <code>ip</code> in place, channel by channel for RGB images. Results are rounded and
+	 * clipped for integer types.
+	 *
+	 * @param accuracy  the value at which the FIR kernel is truncated, relative to its center.
+	 * @param te        runs rows and column strips in parallel; null to run single-threaded.
+	 */
+	static void blur(ImageProcessor ip, double sigma, double accuracy, TiledExecutor te) {
+		FloatProcessor fp = null;
+		for(int c = 0; c < ip.getNChannels(); c++) {
+			fp = ip.toFloat(c, fp);
+			blur((float[]) fp.getPixels(), fp.getWidth(), fp.getHeight(), sigma, accuracy, te);
+			ip.setPixels(c, fp);
+		}
+	}
+
+	static void blur(float[] pixels, int w, int h, double sigma, double accuracy, TiledExecutor te) {
+		if(sigma <= 0)
+			return;
+		filter(pixels, pixels, null, 0, w, h, sigma, accuracy, te);
+	}
+
+	/**
+	 * Sharpens <code>ip</code> in place, like ImageJ's "Unsharp Mask...": A blurred copy, weighted
+	 * by <code>weight</code>, is subtracted, and the result is divided by 1 - weight. Channel by
+	 * channel for RGB images; results are rounded and clipped for integer types.
+	 */
+	static void unsharpMask(ImageProcessor ip, double sigma, float weight, double accuracy, TiledExecutor te) {
+		FloatProcessor fp = null;
+		float[] blurred = null;
+		for(int c = 0; c < ip.getNChannels(); c++) {
+			fp = ip.toFloat(c, fp);
+			float[] pixels = (float[]) fp.getPixels();
+			if(blurred == null)
+				blurred = new float[pixels.length];
+			unsharpMask(pixels, blurred, fp.getWidth(), fp.getHeight(), sigma, weight, accuracy, te);
+			ip.setPixels(c, fp);
+		}
+	}
+
+	/**
+	 * @param blurred  a buffer of the size of <code>pixels</code>, for the blurred image.
+	 */
+	static void unsharpMask(float[] pixels, float[] blurred, int w, int h, double sigma, float weight, double accuracy, TiledExecutor te) {
+		if(sigma <= 0)
+			return;
+		filter(pixels, blurred, pixels, weight, w, h, sigma, accuracy, te);
+	}
+
+	/**
+	 * Blurs <code>src</code> horizontally into <code>blurred</code> (which may be <code>src</code>
+	 * itself), and then vertically, in place. If <code>target</code> isn't null, each blurred row
+	 * is combined with it right away: target = (target - weight * blurred) / (1 - weight).
+	 */
+	private static void filter(float[] src, float[] blurred, float[] target, float weight, int w, int h, double sigma, double accuracy, TiledExecutor te) {
+		if(sigma >= IIR_MIN_SIGMA) {
+			double[] c = youngVanVliet(sigma);
+			int extension = extension(sigma);
+			forEach(te, tasks(h, ROWS_PER_TASK), t -> {
+				double[] ext = new double[extension];
+				for(int y = t * ROWS_PER_TASK; y < Math.min(h, (t + 1) * ROWS_PER_TASK); y++) {
+					if(blurred != src)
+						System.arraycopy(src, y * w, blurred, y * w, w);
+					iirRow(blurred, y * w, w, c, ext);
+				}
+			});
+			forEach(te, tasks(w, COLUMNS_PER_TASK), t ->
+					iirColumns(blurred, target, weight, w, h, t * COLUMNS_PER_TASK, Math.min(w, (t + 1) * COLUMNS_PER_TASK), c, extension));
+		}
+		else {
+			float[] kernel = kernel(sigma, accuracy);
+			forEach(te, tasks(h, ROWS_PER_TASK), t -> {
+				int kr = kernel.length - 1;
+				float[] line = new float[w + 2 * kr];
+				float[] out = new float[w];
+				for(int y = t * ROWS_PER_TASK; y < Math.min(h, (t + 1) * ROWS_PER_TASK); y++)
+					firRow(src, blurred, y * w, w, kernel, line, out);
+			});
+			forEach(te, tasks(w, COLUMNS_PER_TASK), t ->
+					firColumns(blurred, target, weight, w, h, t * COLUMNS_PER_TASK, Math.min(w, (t + 1) * COLUMNS_PER_TASK), kernel));
+		}
+	}
+
+	/**
+	 * Writes <code>n</code> values of the blurred image, starting at <code>offset</code>, into
+	 * <code>pixels</code>, or combines them with <code>target</code> if it isn't null.
+	 */
+	private static void write(float[] values, int from, float[] pixels, float[] target, float weight, int offset, int n) {
+		if(target == null) {
+			System.arraycopy(values, from, pixels, offset, n);
+			return;
+		}
+		float norm = 1f - weight;
+		for(int x = 0; x < n; x++)
+			target[offset + x] = (target[offset + x] - weight * values[from + x]) / norm;
+	}
+
+	private static int tasks(int n, int perTask) {
+		return (n + perTask - 1) / perTask;
+	}
+
+	private static void forEach(TiledExecutor te, int n, IntConsumer task) {
+		if(te == null || n == 1) {
+			for(int i = 0; i < n; i++)
+				task.accept(i);
+		}
+		else {
+			te.forEach(n, task);
+		}
+	}
+
+	/**
+	 * One half of a normalized Gaussian kernel: kernel[0] is the center, kernel[j] the weight at
+	 * distance j, up to where it drops below <code>accuracy</code> (like in ImageJ).
+	 */
+	static float[] kernel(double sigma, double accuracy) {
+		int kr = (int) Math.ceil(sigma * Math.sqrt(-2 * Math.log(accuracy))) + 1;
+		double[] k = new double[kr + 1];
+		double sum = 0;
+		for(int j = 0; j <= kr; j++) {
+			k[j] = Math.exp(-0.5 * j * j / sigma / sigma);
+			sum += j == 0 ? k[j] : 2 * k[j];
+		}
+		float[] kernel = new float[kr + 1];
+		for(int j = 0; j <= kr; j++)
+			kernel[j] = (float) (k[j] / sum);
+		return kernel;
+	}
+
+	private static void firRow(float[] src, float[] dst, int offset, int w, float[] kernel, float[] line, float[] out) {
+		int kr = kernel.length - 1;
+		System.arraycopy(src, offset, line, kr, w);
+		float first = src[offset], last = src[offset + w - 1];
+		for(int i = 0; i < kr; i++) {
+			line[i] = first;
+			line[kr + w + i] = last;
+		}
+		float k0 = kernel[0];
+		for(int x = 0; x < w; x++)
+			out[x] = k0 * line[x + kr];
+		for(int j = 1; j <= kr; j++) {
+			float kj = kernel[j];
+			int lo = kr - j, hi = kr + j;
+			for(int x = 0; x < w; x++)
+				out[x] += kj * (line[lo + x] + line[hi + x]);
+		}
+		System.arraycopy(out, 0, dst, offset, w);
+	}
+
+	/**
+	 * Convolves columns x0 to x1 - 1 vertically, in place. The original values of the rows above the
+	 * current row, which were overwritten already, are kept in a ring buffer of kernel radius + 1 rows.
+	 * The result is written with write().
+	 */
+	private static void firColumns(float[] pixels, float[] target, float weight, int w, int h, int x0, int x1, float[] kernel) {
+		int kr = kernel.length - 1;
+		int sw = x1 - x0;
+		int ringRows = kr + 1;
+		float[] ring = new float[ringRows * sw];
+		float[] out = new float[sw];
+		float k0 = kernel[0];
+		for(int y = 0; y < h; y++) {
+			System.arraycopy(pixels, y * w + x0, ring, (y % ringRows) * sw, sw);
+			for(int x = 0; x < sw; x++)
+				out[x] = k0 * ring[(y % ringRows) * sw + x];
+			for(int j = 1; j <= kr; j++) {
+				float kj = kernel[j];
+				// rows above are in the ring buffer, rows below are still unchanged
+				int above = (Math.max(0, y - j) % ringRows) * sw;
+				int below = Math.min(h - 1, y + j);
+				float[] belowArray = below == y ? ring : pixels;
+				int belowOffset = below == y ? (y % ringRows) * sw : below * w + x0;
+				for(int x = 0; x < sw; x++)
+					out[x] += kj * (ring[above + x] + belowArray[belowOffset + x]);
+			}
+			write(out, 0, pixels, target, weight, y * w + x0, sw);
+		}
+	}
+
+	/**
+	 * The number of samples by which the forward recursion is continued past the end of a line, with
+	 * the edge value as input, before the backward recursion starts there in its steady state.
+	 */
+	static int extension(double sigma) {
+		return (int) Math.ceil(6 * sigma);
+	}
+
+	/**
+	 * The coefficients B, b1 / b0, b2 / b0, b3 / b0 of Young and van Vliet's recursive filter.
+	 */
+	static double[] youngVanVliet(double sigma) {
+		double q = sigma >= 2.5
+				? 0.98711 * sigma - 0.96330
+				: 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+		double q2 = q * q, q3 = q2 * q;
+		double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+		double b1 = 2.44413 * q + 2.85619 * q2 + 1.26661 * q3;
+		double b2 = -(1.4281 * q2 + 1.26661 * q3);
+		double b3 = 0.422205 * q3;
+		double B = 1 - (b1 + b2 + b3) / b0;
+		return new double[] {B, b1 / b0, b2 / b0, b3 / b0};
+	}
+
+	/**
+	 * Forward and backward recursion over one row, in place. Outside the row, the signal continues
+	 * with the edge value. On the left, the forward recursion starts in its steady state for the edge
+	 * value. On the right, the forward recursion is continued into <code>ext</code>, and the backward
+	 * recursion starts in its steady state at the end of <code>ext</code>.
+	 */
+	private static void iirRow(float[] pixels, int offset, int w, double[] c, double[] ext) {
+		double B = c[0], a1 = c[1], a2 = c[2], a3 = c[3];
+		double edge = pixels[offset + w - 1];
+		double p1 = pixels[offset], p2 = p1, p3 = p1;
+		for(int x = 0; x < w; x++) {
+			double v = B * pixels[offset + x] + a1 * p1 + a2 * p2 + a3 * p3;
+			pixels[offset + x] = (float) v;
+			p3 = p2;
+			p2 = p1;
+			p1 = v;
+		}
+		for(int x = 0; x < ext.length; x++) {
+			double v = B * edge + a1 * p1 + a2 * p2 + a3 * p3;
+			ext[x] = v;
+			p3 = p2;
+			p2 = p1;
+			p1 = v;
+		}
+
+		p1 = p2 = p3 = edge;
+		for(int x = ext.length - 1; x >= 0; x--) {
+			double v = B * ext[x] + a1 * p1 + a2 * p2 + a3 * p3;
+			p3 = p2;
+			p2 = p1;
+			p1 = v;
+		}
+		for(int x = w - 1; x >= 0; x--) {
+			double v = B * pixels[offset + x] + a1 * p1 + a2 * p2 + a3 * p3;
+			pixels[offset + x] = (float) v;
+			p3 = p2;
+			p2 = p1;
+			p1 = v;
+		}
+	}
+
+	/**
+	 * Forward and backward recursion over columns x0 to x1 - 1, in place, row by row, with the same
+	 * edge handling as iirRow(). The previous three results of each column are kept in one array each,
+	 * the rows of the extension below the image in <code>ext</code>. If <code>target</code> isn't
+	 * null, the result is combined with it (see write()).
+	 */
+	private static void iirColumns(float[] pixels, float[] target, float weight, int w, int h, int x0, int x1, double[] c, int extension) {
+		double B = c[0], a1 = c[1], a2 = c[2], a3 = c[3];
+		int sw = x1 - x0;
+		double[] p1 = new double[sw], p2 = new double[sw], p3 = new double[sw];
+		double[] edge = new double[sw];
+		double[] ext = new double[extension * sw];
+
+		for(int x = 0; x < sw; x++) {
+			edge[x] = pixels[(h - 1) * w + x0 + x];
+			p1[x] = p2[x] = p3[x] = pixels[x0 + x];
+		}
+		for(int y = 0; y < h; y++) {
+			int row = y * w + x0;
+			for(int x = 0; x < sw; x++) {
+				double v = B * pixels[row + x] + a1 * p1[x] + a2 * p2[x] + a3 * p3[x];
+				pixels[row + x] = (float) v;
+				p3[x] = p2[x];
+				p2[x] = p1[x];
+				p1[x] = v;
+			}
+		}
+		for(int y = 0; y < extension; y++) {
+			int row = y * sw;
+			for(int x = 0; x < sw; x++) {
+				double v = B * edge[x] + a1 * p1[x] + a2 * p2[x] + a3 * p3[x];
+				ext[row + x] = v;
+				p3[x] = p2[x];
+				p2[x] = p1[x];
+				p1[x] = v;
+			}
+		}
+
+		System.arraycopy(edge, 0, p1, 0, sw);
+		System.arraycopy(edge, 0, p2, 0, sw);
+		System.arraycopy(edge, 0, p3, 0, sw);
+		for(int y = extension - 1; y >= 0; y--) {
+			int row = y * sw;
+			for(int x = 0; x < sw; x++) {
+				double v = B * ext[row + x] + a1 * p1[x] + a2 * p2[x] + a3 * p3[x];
+				p3[x] = p2[x];
+				p2[x] = p1[x];
+				p1[x] = v;
+			}
+		}
+		for(int y = h - 1; y >= 0; y--) {
+			int row = y * w + x0;
+			for(int x = 0; x < sw; x++) {
+				double v = B * pixels[row + x] + a1 * p1[x] + a2 * p2[x] + a3 * p3[x];
+				pixels[row + x] = (float) v;
+				p3[x] = p2[x];
+				p2[x] = p1[x];
+				p1[x] = v;
+			}
+			if(target != null)
+				write(pixels, row, pixels, target, weight, row, sw);
+		}
+	}
+}
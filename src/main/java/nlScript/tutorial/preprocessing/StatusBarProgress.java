@@ -0,0 +1,112 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.process.ImageProcessor;
+
+import javax.swing.SwingUtilities;
+import java.awt.Rectangle;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shows the progress of a plan run by an AsyncRunner in ImageJ's status and progress bar, its
+ * previews in a small 'Preview' window, and the result once it is done. Like ImageJ's own
+ * commands, the plan is cancelled by pressing Esc.
+ *
+ * If created for the image the plan is run on, the part of it visible on screen is computed first
+ * and shown as the first preview (see RegionPreview).
+ *
+ * Previews are handed over to the event dispatch thread without waiting. If previews arrive
+ * faster than they are drawn, only the latest one is shown.
+ */
+public class StatusBarProgress implements AsyncRunner.ProgressListener {
+
+	// The preview waiting to be shown, or null if it was shown already
+	private final AtomicReference<ImageProcessor> nextPreview = new AtomicReference<>();
+
+	// Only accessed on the event dispatch thread
+	private ImagePlus previewImage = null;
+
+	private volatile int operation = 0;
+
+	private volatile int nOperations = 1;
+
+	private final Rectangle previewRegion;
+
+	public StatusBarProgress() {
+		this(null);
+	}
+
+	/**
+	 * @param input  the (displayed) image the plan runs on, whose visible region is previewed
+	 *               first; or null.
+	 */
+	public StatusBarProgress(ImagePlus input) {
+		ImageCanvas canvas = input == null ? null : input.getCanvas();
+		this.previewRegion = canvas == null ? null : new Rectangle(canvas.getSrcRect());
+		IJ.resetEscape();
+	}
+
+	@Override
+	public void operationStarted(int index, int nOperations, Operation operation) {
+		this.operation = index;
+		this.nOperations = nOperations;
+		IJ.showStatus("Sentence " + (index + 1) + "/" + nOperations + ": " + operation);
+		IJ.showProgress(index, nOperations);
+	}
+
+	@Override
+	public void planeDone(int done, int nPlanes) {
+		IJ.showProgress((operation + (double) done / nPlanes) / nOperations);
+	}
+
+	@Override
+	public void preview(ImageProcessor preview) {
+		if(nextPreview.getAndSet(preview) == null)
+			SwingUtilities.invokeLater(this::showPreview);
+	}
+
+	@Override
+	public void finished(ImagePlus result, Throwable error) {
+		IJ.showProgress(1.0);
+		if(error instanceof CancellationException)
+			IJ.showStatus("Cancelled");
+		else if(error != null)
+			IJ.log("Preprocessing failed: " + error);
+		else
+			IJ.showStatus("Done");
+		SwingUtilities.invokeLater(() -> {
+			nextPreview.set(null);
+			if(previewImage != null)
+				previewImage.close();
+			previewImage = null;
+			if(result != null)
+				result.show();
+		});
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return IJ.escapePressed();
+	}
+
+	@Override
+	public Rectangle getPreviewRegion() {
+		return previewRegion;
+	}
+
+	private void showPreview() {
+		ImageProcessor preview = nextPreview.getAndSet(null);
+		if(preview == null)
+			return;
+		if(previewImage == null || previewImage.getWindow() == null) {
+			previewImage = new ImagePlus("Preview", preview);
+			previewImage.show();
+		}
+		else {
+			previewImage.setProcessor(preview);
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import nlScript.ParseException;
+import nlScript.tutorial.preprocessing.Preprocessing.NormalizationMode;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Runs a script written in the preprocessing language on an image which doesn't fit into memory,
+ * plane by plane.
+ *
+ * Planes are read from an uncompressed TIFF file through memory-mapped I/O (see MappedPlaneReader),
+ * processed by a fixed number of threads, and written to the output TIFF in order. At most a fixed
+ * number of planes is read ahead, so the heap needed is about (threads + read-ahead) planes,
+ * independent of the number of planes.
+ *
+ * All operations work on single planes, except a global intensity normalization, which needs the
+ * intensity range over all planes. For each global normalization in the script, an extra pass over
+ * all planes computes that range (by running the script up to that sentence), and the normalization
+ * is then applied as a fixed linear transform. The result is the same as processing the whole image
+ * in memory. If pixels are to be saturated, the same pass also computes a histogram, from which the
+ * percentiles are taken. Since the range isn't known before the pass, the histogram is merged from
+ * histograms over aligned ranges (see IntensityHistogram), and the percentiles may differ slightly
+ * from those in memory.
+ *
+ * Usage (preferably with -Djava.awt.headless=true):
+ *
+ *   StreamingRunner [--threads n] [--read-ahead n] script.txt input.tif output.tif
+ */
+public class StreamingRunner {
+
+	private final int threads;
+
+	private final int readAhead;
+
+	public StreamingRunner(int threads, int readAhead) {
+		if(threads < 1 || readAhead < 1)
+			throw new IllegalArgumentException("Need at least one thread and one plane read ahead");
+		this.threads = threads;
+		this.readAhead = readAhead;
+	}
+
+	/**
+	 * Runs <code>script</code> on each plane of <code>input</code>, writing the result to <code>output</code>.
+	 */
+	public void run(String script, Path input, Path output) throws IOException, ParseException {
+		Calibration calibration;
+		try(MappedPlaneReader reader = new MappedPlaneReader(input)) {
+			calibration = reader.getCalibration();
+		}
+		run(PlanCache.getDefault().get(script, calibration), input, output);
+	}
+
+	/**
+	 * Runs <code>plan</code>, compiled for the calibration of <code>input</code>, on each of its
+	 * planes, writing the result to <code>output</code>.
+	 */
+	public void run(Plan plan, Path input, Path output) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try(MappedPlaneReader reader = new MappedPlaneReader(input)) {
+			Calibration calibration = reader.getCalibration();
+			List<Operation> ops = resolveGlobalOperations(plan.getOperations(), reader, pool);
+
+			ProcessedStack stack = new ProcessedStack(reader, ops, pool);
+			ImagePlus result = new ImagePlus(output.getFileName().toString(), stack);
+			int[] dims = reader.getDimensions();
+			if(dims != null)
+				result.setDimensions(dims[0], dims[1], dims[2]);
+			result.setCalibration(calibration);
+			if(!new FileSaver(result).saveAsTiffStack(output.toString()))
+				throw new IOException("Cannot write " + output);
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Replaces each global intensity normalization by a linear transform, using the intensity range
+	 * over all planes.
+	 */
+	private List<Operation> resolveGlobalOperations(List<Operation> operations, MappedPlaneReader reader, ExecutorService pool) throws IOException {
+		List<Operation> ops = new ArrayList<>(operations);
+		for(int i = 0; i < ops.size(); i++) {
+			Operation op = ops.get(i);
+			if(!(op instanceof Operation.IntensityNormalization))
+				continue;
+			Operation.IntensityNormalization normalization = (Operation.IntensityNormalization) op;
+			if(normalization.mode != NormalizationMode.GLOBAL)
+				continue;
+			List<Operation> prefix = new ArrayList<>(ops.subList(0, i));
+			boolean saturate = normalization.saturated > 0;
+			Statistics statistics = new Statistics();
+			forEachPlane(reader, pool, plane -> statistics(reader, plane, prefix, saturate), statistics::add);
+			double[] range = statistics.range;
+			if(saturate) {
+				range = new double[] {
+						statistics.histogram.percentile(normalization.saturated / 200),
+						statistics.histogram.percentile(1 - normalization.saturated / 200) };
+			}
+			// like in memory, a constant image is mapped to 0
+			double scale = range[1] > range[0] ? 1 / (range[1] - range[0]) : 1;
+			ops.set(i, new Operation.LinearTransform(scale, -range[0] * scale, normalization.bitDepth));
+		}
+		return ops;
+	}
+
+	/**
+	 * The intensity range of one or more planes, and their histogram, if needed.
+	 */
+	private static final class Statistics {
+		final double[] range = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		IntensityHistogram histogram = null;
+
+		void add(Statistics other) {
+			range[0] = Math.min(range[0], other.range[0]);
+			range[1] = Math.max(range[1], other.range[1]);
+			histogram = IntensityHistogram.merge(histogram, other.histogram);
+		}
+	}
+
+	/**
+	 * Runs <code>ops</code> on <code>plane</code> once, and takes its range, and its histogram over
+	 * an aligned range if <code>histogram</code> is true.
+	 */
+	private static Statistics statistics(MappedPlaneReader reader, int plane, List<Operation> ops, boolean histogram) throws IOException {
+		Preprocessing preprocessing = preprocess(reader, plane, ops);
+		Statistics statistics = new Statistics();
+		double[] range = preprocessing.dataRange();
+		statistics.range[0] = range[0];
+		statistics.range[1] = range[1];
+		if(histogram) {
+			double[] aligned = IntensityHistogram.alignedRange(range[0], range[1], IntensityHistogram.DEFAULT_BINS);
+			statistics.histogram = preprocessing.histogram(aligned[0], aligned[1]);
+		}
+		return statistics;
+	}
+
+	private interface PlaneTask<T> {
+		T run(int plane) throws IOException;
+	}
+
+	/**
+	 * Runs <code>task</code> for each plane on <code>pool</code>, with at most readAhead planes in
+	 * flight, and passes each result to <code>merge</code> as soon as it is done, on the calling
+	 * thread, in no particular order.
+	 */
+	private <T> void forEachPlane(MappedPlaneReader reader, ExecutorService pool, PlaneTask<T> task, Consumer<T> merge) throws IOException {
+		CompletionService<T> done = new ExecutorCompletionService<>(pool);
+		int submitted = 0;
+		try {
+			for(int p = 0; p < reader.getSize(); p++) {
+				int plane = p;
+				if(submitted == readAhead) {
+					merge.accept(get(done.take()));
+					submitted--;
+				}
+				done.submit(() -> task.run(plane));
+				submitted++;
+			}
+			for(; submitted > 0; submitted--)
+				merge.accept(get(done.take()));
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+	}
+
+	private static Preprocessing preprocess(MappedPlaneReader reader, int plane, List<Operation> ops) throws IOException {
+		Preprocessing preprocessing = new Preprocessing(new ImagePlus("", reader.read(plane)));
+		// planes are processed in parallel already
+		preprocessing.setParallelism(1);
+		for(Operation op : ops)
+			preprocessing.execute(op);
+		return preprocessing;
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * The processed planes, computed on demand. ImageJ's TIFF writer requests the planes of a virtual
+	 * stack in order, so when plane n is requested, planes n+1 to n+readAhead-1 are computed in the
+	 * background, and planes before n are dropped.
+	 */
+	private class ProcessedStack extends VirtualStack {
+
+		private final MappedPlaneReader reader;
+
+		private final List<Operation> ops;
+
+		private final ExecutorService pool;
+
+		private final Map<Integer, Future<ImageProcessor>> window = new HashMap<>();
+
+		// The plane returned last, since ImagePlus asks for the first plane before the TIFF writer does
+		private int lastPlane = -1;
+		private ImageProcessor lastProcessor = null;
+
+		ProcessedStack(MappedPlaneReader reader, List<Operation> ops, ExecutorService pool) {
+			super(reader.getWidth(), reader.getHeight());
+			this.reader = reader;
+			this.ops = ops;
+			this.pool = pool;
+		}
+
+		@Override
+		public synchronized ImageProcessor getProcessor(int n) {
+			if(n == lastPlane)
+				return lastProcessor;
+			for(Iterator<Map.Entry<Integer, Future<ImageProcessor>>> it = window.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<Integer, Future<ImageProcessor>> e = it.next();
+				if(e.getKey() < n) {
+					e.getValue().cancel(true);
+					it.remove();
+				}
+			}
+			int last = Math.min(getSize(), n + readAhead - 1);
+			for(int s = n; s <= last; s++) {
+				int plane = s - 1;
+				window.computeIfAbsent(s, k -> pool.submit(() -> preprocess(reader, plane, ops).getImage().getProcessor()));
+			}
+			try {
+				ImageProcessor ip = get(window.remove(n));
+				setBitDepth(ip.getBitDepth());
+				lastPlane = n;
+				lastProcessor = ip;
+				return ip;
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public Object getPixels(int n) {
+			return getProcessor(n).getPixels();
+		}
+
+		@Override
+		public int getSize() {
+			return reader.getSize();
+		}
+
+		@Override
+		public String getSliceLabel(int n) {
+			return null;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int readAhead = -1;
+		int i = 0;
+		for(; i < args.length && args[i].startsWith("--"); i++) {
+			if(args[i].equals("--threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--read-ahead"))
+				readAhead = Integer.parseInt(args[++i]);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		if(args.length - i != 3) {
+			System.err.println("Usage: StreamingRunner [--threads n] [--read-ahead n] script.txt input.tif output.tif");
+			System.exit(2);
+		}
+		if(readAhead < 0)
+			readAhead = 2 * threads;
+
+		String script = new String(Files.readAllBytes(Paths.get(args[i])), StandardCharsets.UTF_8);
+		long start = System.nanoTime();
+		new StreamingRunner(threads, readAhead).run(script, Paths.get(args[i + 1]), Paths.get(args[i + 2]));
+		System.out.println("Processed " + args[i + 1] + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+}
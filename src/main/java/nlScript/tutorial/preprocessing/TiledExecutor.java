@@ -0,0 +1,225 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs filters on an ImageProcessor in parallel, on a ForkJoinPool.
+ *
+ * Neighborhood filters are run on overlapping tiles: Each tile is copied together with a halo
+ * of surrounding pixels, filtered, and only its interior is written back. As long as the halo
+ * covers everything the filter reads for a pixel, the result is bit-identical to filtering
+ * the whole image at once.
+ *
+ * Separable filters (i.e. Gaussian blurring) don't need halos at all: They are run line by
+ * line, first in bands of rows, then in bands of columns.
+ *
+ * Filters from ImageJ (GaussianBlur, RankFilters) start up to Prefs.getThreads() threads of their
+ * own for each tile or band, in addition to the pool's threads.
+ */
+public class TiledExecutor {
+
+	public static final int DEFAULT_TILE_SIZE = 512;
+
+	private final ForkJoinPool pool;
+
+	// The threads the pool started, for attributing their CPU time (see ExecutionMetrics)
+	private final Set<Thread> workers = ConcurrentHashMap.newKeySet();
+
+	private final int tileSize;
+
+	private volatile BooleanSupplier cancelled = null;
+
+	public TiledExecutor() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public TiledExecutor(int parallelism) {
+		this(parallelism, DEFAULT_TILE_SIZE);
+	}
+
+	public TiledExecutor(int parallelism, int tileSize) {
+		this.pool = new ForkJoinPool(parallelism, p -> {
+			ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			workers.add(worker);
+			return worker;
+		}, null, false);
+		this.tileSize = tileSize;
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * The ids of the pool's threads which are still alive.
+	 */
+	long[] getThreadIds() {
+		workers.removeIf(t -> !t.isAlive());
+		return workers.stream().mapToLong(Thread::getId).toArray();
+	}
+
+	/**
+	 * Runs <code>task</code> asynchronously on the pool, e.g. one of several independent jobs which
+	 * run their filters on this executor, too (see ImageGraph).
+	 */
+	void execute(Runnable task) {
+		if(ForkJoinTask.getPool() == pool)
+			ForkJoinTask.adapt(task).fork();
+		else
+			pool.execute(task);
+	}
+
+	/**
+	 * Sets a condition which is checked before each tile, band or other task is started. Once it is
+	 * true, the remaining tasks are skipped and a CancellationException is thrown.
+	 */
+	public void setCancellation(BooleanSupplier cancelled) {
+		this.cancelled = cancelled;
+	}
+
+	/**
+	 * Applies <code>filter</code> tile-wise to <code>ip</code>.
+	 *
+	 * @param halo    the number of pixels around a pixel which the filter reads to compute it.
+	 * @param align   tiles (including their halo) start at multiples of <code>align</code>, for filters
+	 *                that work on a down-scaled grid.
+	 * @param filter  the filter, which processes its argument in place.
+	 */
+	public void applyTiled(ImageProcessor ip, int halo, int align, Consumer<ImageProcessor> filter) {
+		int w = ip.getWidth();
+		int h = ip.getHeight();
+		int ts = roundUp(Math.max(tileSize, align), align);
+		int border = roundUp(halo, align);
+		if(w <= ts && h <= ts) {
+			filter.accept(ip);
+			return;
+		}
+
+		List<int[]> tiles = new ArrayList<>();
+		for(int y = 0; y < h; y += ts)
+			for(int x = 0; x < w; x += ts)
+				tiles.add(new int[] {x, y, Math.min(ts, w - x), Math.min(ts, h - y)});
+
+		// Tiles read their halo from the unmodified input, and write into a separate output
+		Object in = ip.getPixels();
+		Object out = ip.createProcessor(w, h).getPixels();
+		forEach(tiles.size(), t -> {
+			int[] tile = tiles.get(t);
+			int x0 = Math.max(0, tile[0] - border);
+			int y0 = Math.max(0, tile[1] - border);
+			int x1 = Math.min(w, tile[0] + tile[2] + border);
+			int y1 = Math.min(h, tile[1] + tile[3] + border);
+			ImageProcessor sub = ip.createProcessor(x1 - x0, y1 - y0);
+			copy(in, w, x0, y0, sub.getPixels(), x1 - x0, 0, 0, x1 - x0, y1 - y0);
+			filter.accept(sub);
+			copy(sub.getPixels(), x1 - x0, tile[0] - x0, tile[1] - y0, out, w, tile[0], tile[1], tile[2], tile[3]);
+		});
+		System.arraycopy(out, 0, in, 0, w * h);
+	}
+
+	/**
+	 * Gaussian blurring, identical to <code>GaussianBlur.blurGaussian(ip, sigma, sigma, accuracy)</code>,
+	 * but run in bands of rows and columns.
+	 */
+	public void gaussianBlur(ImageProcessor ip, double sigma, double accuracy) {
+		int w = ip.getWidth();
+		int h = ip.getHeight();
+		FloatProcessor fp = null;
+		for(int c = 0; c < ip.getNChannels(); c++) {
+			fp = ip.toFloat(c, fp);
+			float[] pixels = (float[]) fp.getPixels();
+			forEachBand(h, (y, bh) -> blur1Direction(pixels, w, h, 0, y, w, bh, sigma, accuracy, true));
+			forEachBand(w, (x, bw) -> blur1Direction(pixels, w, h, x, 0, bw, h, sigma, accuracy, false));
+			ip.setPixels(c, fp);
+		}
+	}
+
+	private static void blur1Direction(float[] pixels, int w, int h, int x, int y, int bw, int bh, double sigma, double accuracy, boolean xDirection) {
+		// A view on the shared pixel array, with its own roi
+		FloatProcessor band = new FloatProcessor(w, h, pixels);
+		band.setRoi(x, y, bw, bh);
+		GaussianBlur gb = new GaussianBlur();
+		gb.showProgress(false);
+		gb.blur1Direction(band, sigma, accuracy, xDirection, 0);
+	}
+
+	private interface BandConsumer {
+		void accept(int start, int length);
+	}
+
+	private void forEachBand(int length, BandConsumer band) {
+		int nBands = Math.min(length, 4 * getParallelism());
+		forEach(nBands, b -> {
+			int from = (int) ((long) b * length / nBands);
+			int to = (int) ((long) (b + 1) * length / nBands);
+			band.accept(from, to - from);
+		});
+	}
+
+	/**
+	 * Runs <code>task</code> for 0, ..., n-1 on the pool, and waits for all of them to finish.
+	 */
+	public void forEach(int n, IntConsumer task) {
+		RecursiveAction action = new RecursiveAction() {
+			@Override
+			protected void compute() {
+				List<ForkJoinTask<?>> tasks = new ArrayList<>(n);
+				for(int i = 0; i < n; i++) {
+					final int idx = i;
+					tasks.add(ForkJoinTask.adapt(() -> {
+						checkCancelled();
+						task.accept(idx);
+					}));
+				}
+				invokeAll(tasks);
+			}
+		};
+		// Nested calls (e.g. tiles within a plane, while planes are processed
+		// in parallel) fork their tasks into the current worker's queue
+		if(ForkJoinTask.getPool() == pool)
+			action.invoke();
+		else
+			pool.invoke(action);
+	}
+
+	private void checkCancelled() {
+		BooleanSupplier c = cancelled;
+		if(c != null && c.getAsBoolean())
+			throw new CancellationException("Cancelled");
+	}
+
+	/**
+	 * Copies a rectangle between two pixel arrays of the same type.
+	 */
+	static void copy(Object src, int srcWidth, int srcX, int srcY, Object dst, int dstWidth, int dstX, int dstY, int w, int h) {
+		for(int y = 0; y < h; y++)
+			System.arraycopy(src, (srcY + y) * srcWidth + srcX, dst, (dstY + y) * dstWidth + dstX, w);
+	}
+
+	private static int roundUp(int v, int multiple) {
+		return (v + multiple - 1) / multiple * multiple;
+	}
+}
@@ -42,8 +42,12 @@ public class Tutorial07 {
 
 		StringBuilder imageUnits = new StringBuilder();
 		parser.addParseStartListener(() -> {
-			imageUnits.setLength(0);
-			imageUnits.append(image.getCalibration().getUnits());
+			// Parsing starts at every key stroke, but the units hardly ever change
+			String units = image.getCalibration().getUnits();
+			if(!units.contentEquals(imageUnits)) {
+				imageUnits.setLength(0);
+				imageUnits.append(units);
+			}
 		});
 
 		parser.defineType("units", "{unitstring:[a-zA-Z()]:+}",
@@ -24,6 +24,9 @@ import ij.measure.Calibration;
  * The result will be similar to that of Tutorial05, but instead of the general 'calibrated units'
  * autocompletion option, the actual units string will be shown as an option.
  *
+ * The following tutorials use the DynamicType class, which wraps this pattern: it re-defines a type
+ * only if a version key (here, the units string) changed since the type was last defined.
+ *
  * For details, see
  * https://nlScript.github.io/nlScript-java/#dynamically-re-defining-types
  */
@@ -41,9 +44,18 @@ public class Tutorial08 {
 
 		Parser parser = new Parser();
 
+		StringBuilder definedUnits = new StringBuilder();
 		parser.addParseStartListener(() -> {
 			String unitsString = image.getCalibration().getUnits();
 
+			// Re-defining a type makes the parser rebuild its grammar. Since parsing is done on every
+			// key stroke, but the units string hardly ever changes, only re-define 'units' if it
+			// actually changed since the last time:
+			if(unitsString.contentEquals(definedUnits))
+				return;
+			definedUnits.setLength(0);
+			definedUnits.append(unitsString);
+
 			// At the start of parsing (remember this is done whenever auto-completion
 			// needs to be performed), the 'units' type is undefined and then
 			// re-defined, according to the pixel calibration unit string of the current image:
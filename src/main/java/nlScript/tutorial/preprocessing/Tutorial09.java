@@ -26,16 +26,8 @@ public class Tutorial09 {
 
 		Parser parser = new Parser();
 
-		parser.addParseStartListener(() -> {
-			String unitsString = image.getCalibration().getUnits();
-
-			parser.undefineType("units");
-
-			parser.defineType("units", "pixel(s)", pn -> false);
-			parser.defineType("units", unitsString, pn -> true);
-		});
-
-		parser.defineType("units", "pixel(s)", pn -> false);
+		// 'units' is re-defined whenever the image's units string changes
+		DynamicType.defineUnits(parser, () -> image.getCalibration());
 
 		parser.defineType("filter-size", "{stddev:float} {units:units}", pn -> {
 			double stddev = (Double) pn.evaluate("stddev");
@@ -76,7 +68,7 @@ public class Tutorial09 {
 				"Subtract the background with a standard deviation of {window-size:filter-size}.",
 				pn -> {
 					double windowSize = (double)pn.evaluate("window-size");
-					preprocessing.subtractBackground((int) Math.round(windowSize));
+					preprocessing.subtractBackground((float)windowSize);
 					return null;
 				});
 
@@ -3,7 +3,6 @@ package nlScript.tutorial.preprocessing;
 import nlScript.Parser;
 import nlScript.ui.ACEditor;
 import ij.IJ;
-import ij.ImagePlus;
 
 /**
  * This tutorial uses the editor's 'beforeRun' hook to
@@ -12,31 +11,38 @@ import ij.ImagePlus;
  *   in ImageJ before clicking on the 'Run' button.
  *
  *  - make a copy of the input image before it is processed, to keep it for further runs.
+ *    The copy is a CopyOnWriteImage, which only copies the planes that are actually modified.
+ *
+ *  - cache intermediate results (see ResultCache), so that when the script is run again after
+ *    changing a sentence, only that sentence and the ones after it are executed.
+ *
+ * The sentences are not executed while the script is evaluated, but recorded into a Plan, which
+ * the editor's 'afterRun' hook hands over to an AsyncRunner. The editor stays responsive while the
+ * image is processed, a preview is shown after every sentence, and clicking 'Run' again (or
+ * pressing Esc) cancels the running script. Before the whole image, only the region which is
+ * visible in the image's window is computed, for a first preview (see RegionPreview).
  */
 public class Tutorial10 {
 
 	public static void main(String[] args) {
 
 		Preprocessing preprocessing = new Preprocessing();
+		preprocessing.setResultCache(new ResultCache(Runtime.getRuntime().maxMemory() / 4));
+		AsyncRunner runner = new AsyncRunner(preprocessing);
 
-		Parser parser = new Parser();
-
-		parser.addParseStartListener(() -> {
-			String unitsString = preprocessing.getImage().getCalibration().getUnits();
+		// Records the sentences while the script is evaluated
+		Plan.Recorder recorder = new Plan.Recorder();
 
-			parser.undefineType("units");
-
-			parser.defineType("units", "pixel(s)", pn -> false);
-			parser.defineType("units", unitsString, pn -> true);
-		});
+		Parser parser = new Parser();
 
-		parser.defineType("units", "pixel(s)", pn -> false);
+		// 'units' is re-defined whenever the image's units string changes
+		DynamicType.defineUnits(parser, () -> recorder.getImage().getCalibration());
 
 		parser.defineType("filter-size", "{stddev:float} {units:units}", pn -> {
 			double stddev = (Double) pn.evaluate("stddev");
 			boolean units = (Boolean) pn.evaluate("units");
 			if(units)
-				stddev /= preprocessing.getImage().getCalibration().pixelWidth;
+				stddev /= recorder.getImage().getCalibration().pixelWidth;
 			return stddev;
 		}, true);
 
@@ -45,7 +51,7 @@ public class Tutorial10 {
 				"Apply Gaussian blurring with a standard deviation of {stddev:filter-size}.",
 				pn -> {
 					double stdDev = (double)pn.evaluate("stddev");
-					preprocessing.gaussianBlur((float)stdDev);
+					recorder.gaussianBlur((float)stdDev);
 					return null;
 				});
 
@@ -54,7 +60,7 @@ public class Tutorial10 {
 				"Apply Median filtering with a window of radius {window-size:filter-size}.",
 				pn -> {
 					double windowSize = (double)pn.evaluate("window-size");
-					preprocessing.medianFilter((int) Math.round(windowSize));
+					recorder.medianFilter((int) Math.round(windowSize));
 					return null;
 				});
 
@@ -62,7 +68,7 @@ public class Tutorial10 {
 		parser.defineSentence(
 				"Normalize intensities.",
 				pn -> {
-					preprocessing.intensityNormalization();
+					recorder.intensityNormalization();
 					return null;
 				});
 
@@ -71,15 +77,18 @@ public class Tutorial10 {
 				"Subtract the background with a standard deviation of {window-size:filter-size}.",
 				pn -> {
 					double windowSize = (double)pn.evaluate("window-size");
-					preprocessing.subtractBackground((int) Math.round(windowSize));
+					recorder.subtractBackground((float)windowSize);
 					return null;
 				});
 
 		ACEditor editor = new ACEditor(parser);
 		editor.setBeforeRun(() -> {
-			ImagePlus output = IJ.getImage().duplicate();
-			preprocessing.setImage(output);
-			output.show();
+			recorder.clear();
+			recorder.setImage(IJ.getImage());
+		});
+		editor.setAfterRun(() -> {
+			CopyOnWriteImage input = new CopyOnWriteImage(recorder.getImage());
+			runner.submit(input, recorder.getPlan(), new StatusBarProgress(recorder.getImage()));
 		});
 		editor.setVisible(true);
 	}
@@ -5,13 +5,28 @@ import ij.ImagePlus;
 import nlScript.Parser;
 import nlScript.ui.ACEditor;
 
+import javax.swing.SwingUtilities;
+import java.util.Map;
+
 /**
  * This tutorial uses the editor's 'beforeRun' hook to
  *
  * - work on the currently open image. This gives you the possibility to open your own image
  *   in ImageJ before clicking on the 'Run' button.
  *
- *  - make a copy of the input image before it is processed, to keep it for further runs.
+ *  - keep the input image for further runs. It is processed as a CopyOnWriteImage, which only
+ *    copies the planes that are actually modified.
+ *
+ * Scripts can also work on more than one image: 'Duplicate input as mask.' continues with a copy
+ * named 'mask', 'Continue with input.' switches back, and sentences like the CLAHE one read other
+ * images by name. Instead of running the sentences one after the other, they are recorded into an
+ * ImageGraph, which the 'afterRun' hook hands over to an AsyncRunner, like Tutorial10 does with a
+ * Plan: The editor stays responsive, and clicking 'Run' again (or pressing Esc) cancels the
+ * running graph. The graph processes independent images (e.g. blurring the mask while the input is
+ * filtered) in parallel, and drops intermediate results as soon as they aren't needed anymore.
+ *
+ * The 'units' type is a DynamicType, like in Tutorial09, which only accepts 'pixel(s)' and the
+ * image's units, and a LiteralCompleter suggests those of them that match what was typed.
  */
 public class Tutorial11 {
 
@@ -19,38 +34,72 @@ public class Tutorial11 {
 		ImagePlus image = IJ.openImage("http://imagej.net/images/clown.jpg");
 		image.show();
 
-		Preprocessing preprocessing = new Preprocessing(image);
-
-		Parser parser = new Parser();
+		ImageGraph.Builder graph = new ImageGraph.Builder(image);
 
-		parser.addParseStartListener(() -> {
-			String unitsString = preprocessing.getImage().getCalibration().getUnits();
+		AsyncRunner runner = new AsyncRunner(new Preprocessing());
 
-			parser.undefineType("units");
-
-			parser.defineType("units", "pixel(s)", pn -> false);
-			parser.defineType("units", unitsString, pn -> true);
-		});
+		Parser parser = new Parser();
 
-		parser.defineType("units", "pixel(s)", pn -> false);
+		// The units are exact literals, like in Tutorial09, and are only re-indexed for
+		// autocompletion if the image's units string changed
+		DynamicType.defineUnits(parser, () -> graph.getImage().getCalibration(), new LiteralCompleter("pixel(s)"));
 
 		parser.defineType("filter-size", "{stddev:float} {units:units}", pn -> {
 			double stddev = (Double) pn.evaluate("stddev");
 			boolean units = (Boolean) pn.evaluate("units");
 			if(units)
-				stddev /= preprocessing.getImage().getCalibration().pixelWidth;
+				stddev /= graph.getImage().getCalibration().pixelWidth;
 			return stddev;
 		}, true);
 
-		parser.defineSentence("Apply a Median filter with radius of {radius:filter-size}.", null);
-		parser.defineSentence("Apply an Unsharp Mask with radius of {radius:filter-size} and mask weight of {weight:float}.", null);
-		parser.defineSentence("Enhance local contrast via CLAHE with a blocksize of {block-size:int}, {bins:int} histogram bins and a max slope of {slope:int}, using {image:[a-z-]:+} as a mask.", null);
+		parser.defineSentence("Duplicate {image:[a-z-]:+} as {name:[a-z-]:+}.", pn -> {
+			graph.select((String) pn.evaluate("image"));
+			graph.duplicate((String) pn.evaluate("name"));
+			return null;
+		});
+
+		parser.defineSentence("Continue with {image:[a-z-]:+}.", pn -> {
+			graph.select((String) pn.evaluate("image"));
+			return null;
+		});
+
+		parser.defineSentence("Apply a Median filter with radius of {radius:filter-size}.", pn -> {
+			double radius = (double) pn.evaluate("radius");
+			graph.medianFilter((int) Math.round(radius));
+			return null;
+		});
+
+		parser.defineSentence("Apply an Unsharp Mask with radius of {radius:filter-size} and mask weight of {weight:float}.", pn -> {
+			double radius = (double) pn.evaluate("radius");
+			double weight = (double) pn.evaluate("weight");
+			graph.unsharpMask((float) radius, (float) weight);
+			return null;
+		});
+
+		parser.defineSentence("Enhance local contrast via CLAHE with a blocksize of {block-size:int}, {bins:int} histogram bins and a max slope of {slope:int}, using {image:[a-z-]:+} as a mask.", pn -> {
+			int blockSize = (int) pn.evaluate("block-size");
+			int bins = (int) pn.evaluate("bins");
+			int slope = (int) pn.evaluate("slope");
+			graph.clahe(blockSize, bins, slope, (String) pn.evaluate("image"));
+			return null;
+		});
 
 		ACEditor editor = new ACEditor(parser);
 		editor.setBeforeRun(() -> {
-			ImagePlus output = IJ.getImage().duplicate();
-			preprocessing.setImage(output);
-			output.show();
+			graph.clear();
+			graph.setImage(IJ.getImage());
+		});
+		editor.setAfterRun(() -> {
+			// The input image is left untouched, all other images are shown
+			ImagePlus input = graph.getImage();
+			runner.submit(input, graph.getGraph(), new StatusBarProgress(), results -> SwingUtilities.invokeLater(() -> {
+				for(Map.Entry<String, ImagePlus> e : results.entrySet()) {
+					if(e.getValue() != input) {
+						e.getValue().setTitle(e.getKey());
+						e.getValue().show();
+					}
+				}
+			}));
 		});
 		editor.setVisible(true);
 	}
@@ -0,0 +1,143 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.plugin.filter.BackgroundSubtracter;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import nlScript.tutorial.preprocessing.Preprocessing.BackgroundEngine;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The background engines compared to ImageJ's BackgroundSubtracter, on blobs on a smooth
+ * background.
+ */
+public class BackgroundSubtractionTest {
+
+	@Test
+	public void testImageJEngineSameAsBackgroundSubtracter() {
+		for(ImageProcessor ip : images())
+			for(double radius : new double[] {5, 50})
+				TiledExecutorTest.assertPixelsEqual(ip.getBitDepth() + "-bit, radius " + radius,
+						backgroundSubtracter(ip, radius, false),
+						subtractBackground(ip, radius, BackgroundEngine.IMAGEJ));
+	}
+
+	@Test
+	public void testRollingBallSameAsBackgroundSubtracter() {
+		// ImageJ's shrink factors, within the default accuracy
+		for(ImageProcessor ip : images())
+			for(double radius : new double[] {5, 20, 50, 120})
+				TiledExecutorTest.assertPixelsEqual(ip.getBitDepth() + "-bit, radius " + radius,
+						backgroundSubtracter(ip, radius, false),
+						subtractBackground(ip, radius, BackgroundEngine.ROLLING_BALL));
+	}
+
+	@Test
+	public void testRollingBallCloseToBackgroundSubtracter() {
+		// shrunk further than ImageJ
+		for(ImageProcessor ip : images()) {
+			double radius = 400;
+			assertClose(ip.getBitDepth() + "-bit, radius " + radius, ip,
+					backgroundSubtracter(ip, radius, false),
+					subtractBackground(ip, radius, BackgroundEngine.ROLLING_BALL),
+					0.005, 0.02);
+		}
+	}
+
+	@Test
+	public void testSlidingParaboloidCloseToBackgroundSubtracter() {
+		// an exact opening, while ImageJ slides the paraboloid in 4 directions
+		for(ImageProcessor ip : images()) {
+			for(double radius : new double[] {5, 50, 400}) {
+				assertClose(ip.getBitDepth() + "-bit, radius " + radius, ip,
+						backgroundSubtracter(ip, radius, true),
+						subtractBackground(ip, radius, BackgroundEngine.SLIDING_PARABOLOID),
+						0.05, 0.25);
+			}
+		}
+	}
+
+	private static ImageProcessor backgroundSubtracter(ImageProcessor ip, double radius, boolean paraboloid) {
+		ImageProcessor result = ip.duplicate();
+		BackgroundSubtracter bs = new BackgroundSubtracter();
+		// dark background, with pre-smoothing and corner correction
+		if(result instanceof ColorProcessor)
+			bs.rollingBallBrightnessBackground((ColorProcessor) result, radius, false, false, paraboloid, true, true);
+		else
+			bs.rollingBallBackground(result, radius, false, false, paraboloid, true, true);
+		return result;
+	}
+
+	private static ImageProcessor subtractBackground(ImageProcessor ip, double radius, BackgroundEngine engine) {
+		ImagePlus image = new ImagePlus("", ip.duplicate());
+		Preprocessing preprocessing = new Preprocessing(image);
+		preprocessing.setBackgroundEngine(engine);
+		preprocessing.subtractBackground((float) radius);
+		return preprocessing.getImage().getProcessor();
+	}
+
+	/**
+	 * Requires the mean and the maximum absolute difference, channel by channel, to be at most
+	 * <code>meanTolerance</code> and <code>maxTolerance</code> times the intensity range of
+	 * <code>original</code>, plus 1 for rounding to integer types.
+	 */
+	private static void assertClose(String message, ImageProcessor original, ImageProcessor expected, ImageProcessor actual,
+			double meanTolerance, double maxTolerance) {
+		double rounding = original instanceof FloatProcessor ? 0 : 1;
+		for(int c = 0; c < original.getNChannels(); c++) {
+			FloatProcessor o = original.toFloat(c, null);
+			FloatProcessor e = expected.toFloat(c, null);
+			FloatProcessor a = actual.toFloat(c, null);
+			o.resetMinAndMax();
+			double range = o.getMax() - o.getMin();
+			double sum = 0, max = 0;
+			for(int i = 0; i < e.getPixelCount(); i++) {
+				double d = Math.abs(e.getf(i) - a.getf(i));
+				sum += d;
+				max = Math.max(max, d);
+			}
+			double mean = sum / e.getPixelCount();
+			assertTrue(message + ": mean difference " + mean, mean <= meanTolerance * range + rounding);
+			assertTrue(message + ": max difference " + max, max <= maxTolerance * range + rounding);
+		}
+	}
+
+	/**
+	 * Gaussian blobs on a sloped, slightly curved background with some noise, as 8-, 16-, 32-bit and
+	 * RGB images.
+	 */
+	static ImageProcessor[] images() {
+		Random random = new Random(3);
+		int w = 300, h = 220;
+		double[][] blobs = new double[40][];
+		for(int b = 0; b < blobs.length; b++)
+			blobs[b] = new double[] {random.nextDouble() * w, random.nextDouble() * h, 2 + 3 * random.nextDouble(), 50 + 100 * random.nextDouble()};
+		FloatProcessor fp = new FloatProcessor(w, h);
+		for(int y = 0; y < h; y++) {
+			for(int x = 0; x < w; x++) {
+				double v = 40 + 0.1 * x + 0.05 * y + 20 * Math.sin(x / 90.0) * Math.cos(y / 70.0);
+				for(double[] b : blobs) {
+					double dx = x - b[0], dy = y - b[1];
+					v += b[3] * Math.exp(-(dx * dx + dy * dy) / (2 * b[2] * b[2]));
+				}
+				fp.setf(x, y, (float) (v + 2 * random.nextGaussian()));
+			}
+		}
+		ShortProcessor sp = new ShortProcessor(w, h);
+		ColorProcessor cp = new ColorProcessor(w, h);
+		for(int i = 0; i < fp.getPixelCount(); i++) {
+			sp.set(i, (int) (100 * fp.getf(i)));
+			int v = Math.min(255, Math.max(0, (int) fp.getf(i)));
+			cp.set(i, (v << 16) | ((v / 2) << 8) | ((255 - v) / 3));
+		}
+		ImageProcessor bp = fp.duplicate();
+		bp.setMinAndMax(0, 255);
+		return new ImageProcessor[] {bp.convertToByte(true), sp, fp, cp};
+	}
+}
@@ -0,0 +1,184 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A straightforward implementation of CLAHE (Zuiderveld, Graphics Gems IV), which ClaheTest
+ * compares Clahe to: per pixel, in double precision, with the tile centers and interpolation
+ * weights computed directly instead of from lookup tables.
+ *
+ * main() writes the test resources of ClaheTest, i.e. the inputs and the expected results:
+ * <pre>
+ * java nlScript.tutorial.preprocessing.ClaheReference src/test/resources/nlScript/tutorial/preprocessing
+ * </pre>
+ */
+public class ClaheReference {
+
+	static final int BLOCK_SIZE = 32, BINS = 64;
+
+	static final float SLOPE = 3;
+
+	// Redistributing the clipped counts can push bins above the limit again
+	private static final int MAX_CLIP_ROUNDS = 100;
+
+	/**
+	 * Enhances each channel of <code>ip</code> in place.
+	 */
+	static void enhance(ImageProcessor ip, int blockSize, int bins, double slope) {
+		FloatProcessor fp = null;
+		for(int c = 0; c < ip.getNChannels(); c++) {
+			fp = ip.toFloat(c, fp);
+			enhance((float[]) fp.getPixels(), fp.getWidth(), fp.getHeight(), blockSize, bins, slope);
+			ip.setPixels(c, fp);
+		}
+	}
+
+	static void enhance(float[] pixels, int w, int h, int blockSize, int bins, double slope) {
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		for(float v : pixels) {
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		if(!(max > min))
+			return;
+
+		int nx = (w + blockSize - 1) / blockSize;
+		double[][] maps = maps(pixels, w, h, blockSize, bins, slope, min, max);
+		double[] cx = centers(w, blockSize);
+		double[] cy = centers(h, blockSize);
+		float[] enhanced = new float[pixels.length];
+		for(int y = 0; y < h; y++) {
+			int t0 = before(y + 0.5, cy);
+			int t1 = Math.min(cy.length - 1, t0 + 1);
+			double fy = weight(y + 0.5, cy, t0);
+			for(int x = 0; x < w; x++) {
+				int s0 = before(x + 0.5, cx);
+				int s1 = Math.min(cx.length - 1, s0 + 1);
+				double fx = weight(x + 0.5, cx, s0);
+				int b = bin(pixels[y * w + x], min, max, bins);
+				double m = (1 - fy) * ((1 - fx) * maps[t0 * nx + s0][b] + fx * maps[t0 * nx + s1][b])
+						+ fy * ((1 - fx) * maps[t1 * nx + s0][b] + fx * maps[t1 * nx + s1][b]);
+				enhanced[y * w + x] = (float) (min + m * (max - min));
+			}
+		}
+		System.arraycopy(enhanced, 0, pixels, 0, pixels.length);
+	}
+
+	/**
+	 * The clipped and normalized cumulative histogram of each tile.
+	 */
+	private static double[][] maps(float[] pixels, int w, int h, int blockSize, int bins, double slope, float min, float max) {
+		int nx = (w + blockSize - 1) / blockSize;
+		int ny = (h + blockSize - 1) / blockSize;
+		double[][] maps = new double[nx * ny][];
+		for(int ty = 0; ty < ny; ty++) {
+			for(int tx = 0; tx < nx; tx++) {
+				int[] histogram = new int[bins];
+				int n = 0;
+				for(int y = ty * blockSize; y < Math.min(h, ty * blockSize + blockSize); y++) {
+					for(int x = tx * blockSize; x < Math.min(w, tx * blockSize + blockSize); x++) {
+						histogram[bin(pixels[y * w + x], min, max, bins)]++;
+						n++;
+					}
+				}
+				clip(histogram, Math.max((int) Math.round(slope * n / bins), (int) Math.ceil((double) n / bins)));
+				double[] cdf = new double[bins];
+				double sum = 0;
+				for(int b = 0; b < bins; b++) {
+					sum += histogram[b];
+					cdf[b] = sum / n;
+				}
+				maps[ty * nx + tx] = cdf;
+			}
+		}
+		return maps;
+	}
+
+	/**
+	 * Clips the histogram at <code>limit</code> and redistributes the excess evenly, the remainder
+	 * spread out over the whole range.
+	 */
+	private static void clip(int[] histogram, int limit) {
+		int bins = histogram.length;
+		for(int round = 0; round < MAX_CLIP_ROUNDS; round++) {
+			int excess = 0;
+			for(int b = 0; b < bins; b++) {
+				if(histogram[b] > limit) {
+					excess += histogram[b] - limit;
+					histogram[b] = limit;
+				}
+			}
+			if(excess == 0)
+				return;
+			for(int b = 0; b < bins; b++)
+				histogram[b] += excess / bins;
+			int rest = excess % bins;
+			for(int r = 0; r < rest; r++)
+				histogram[(int) ((long) r * bins / rest)]++;
+		}
+	}
+
+	private static int bin(float v, float min, float max, int bins) {
+		int b = (int) ((v - min) * (bins / (max - min)));
+		return Math.min(bins - 1, b);
+	}
+
+	/**
+	 * The centers of the tiles along an axis of the given length.
+	 */
+	private static double[] centers(int length, int blockSize) {
+		int n = (length + blockSize - 1) / blockSize;
+		double[] centers = new double[n];
+		for(int t = 0; t < n; t++)
+			centers[t] = (t * blockSize + Math.min(length, t * blockSize + blockSize)) / 2.0;
+		return centers;
+	}
+
+	/**
+	 * The index of the last tile whose center is at or before <code>p</code>, or 0.
+	 */
+	private static int before(double p, double[] centers) {
+		if(p <= centers[0])
+			return 0;
+		if(p >= centers[centers.length - 1])
+			return centers.length - 1;
+		int t = 0;
+		while(centers[t + 1] <= p)
+			t++;
+		return t;
+	}
+
+	/**
+	 * The weight of the tile after <code>t</code> at <code>p</code>.
+	 */
+	private static double weight(double p, double[] centers, int t) {
+		if(p <= centers[0] || p >= centers[centers.length - 1])
+			return 0;
+		return (p - centers[t]) / (centers[t + 1] - centers[t]);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length != 1)
+			throw new IllegalArgumentException("Usage: ClaheReference <output directory>");
+		File dir = new File(args[0]);
+		ImageProcessor[] images = TiledExecutorTest.images();
+		for(ImageProcessor ip : new ImageProcessor[] { images[0], images[1] }) {
+			String type = ip.getBitDepth() + "bit";
+			save(ip.duplicate(), new File(dir, "clahe-input-" + type + ".tif"));
+			ImageProcessor expected = ip.duplicate();
+			enhance(expected, BLOCK_SIZE, BINS, SLOPE);
+			save(expected, new File(dir, "clahe-expected-" + type + ".tif"));
+		}
+	}
+
+	private static void save(ImageProcessor ip, File file) throws IOException {
+		if(!new FileSaver(new ImagePlus(file.getName(), ip)).saveAsTiff(file.getPath()))
+			throw new IOException("Could not write " + file);
+	}
+}
@@ -0,0 +1,102 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * CLAHE compared to reference results in the test resources, which were computed by
+ * ClaheReference, and with masks.
+ */
+public class ClaheTest {
+
+	private static final int BLOCK_SIZE = ClaheReference.BLOCK_SIZE, BINS = ClaheReference.BINS;
+
+	private static final float SLOPE = ClaheReference.SLOPE;
+
+	@Test
+	public void testSameAsReference() throws IOException {
+		for(String type : new String[] { "8bit", "16bit" }) {
+			ImagePlus image = open("clahe-input-" + type + ".tif");
+			ImageProcessor expected = open("clahe-expected-" + type + ".tif").getProcessor();
+			new Preprocessing(image).clahe(BLOCK_SIZE, BINS, SLOPE);
+			ImageProcessor actual = image.getProcessor();
+			// up to rounding of float vs. double
+			for(int i = 0; i < expected.getPixelCount(); i++)
+				assertEquals(type + ", pixel " + i, expected.get(i), actual.get(i), 1);
+		}
+	}
+
+	@Test
+	public void testZeroMaskKeepsInput() {
+		for(ImageProcessor ip : TiledExecutorTest.images()) {
+			String type = ip.getBitDepth() + "-bit";
+			ImageProcessor actual = clahe(ip, new ByteProcessor(ip.getWidth(), ip.getHeight()));
+			TiledExecutorTest.assertPixelsEqual(type, ip, actual);
+		}
+	}
+
+	@Test
+	public void testFullMaskSameAsNoMask() {
+		for(ImageProcessor ip : TiledExecutorTest.images()) {
+			String type = ip.getBitDepth() + "-bit";
+			ByteProcessor mask = new ByteProcessor(ip.getWidth(), ip.getHeight());
+			mask.setValue(255);
+			mask.fill();
+			TiledExecutorTest.assertPixelsEqual(type, clahe(ip, null), clahe(ip, mask));
+		}
+	}
+
+	@Test
+	public void testPartialMaskBlends() {
+		for(ImageProcessor ip : TiledExecutorTest.images()) {
+			if(ip.getNChannels() > 1)
+				continue;
+			String type = ip.getBitDepth() + "-bit";
+			// a ramp from 0 on the left to 255 on the right, and nothing in the top rows
+			ByteProcessor mask = new ByteProcessor(ip.getWidth(), ip.getHeight());
+			for(int y = BLOCK_SIZE; y < ip.getHeight(); y++)
+				for(int x = 0; x < ip.getWidth(); x++)
+					mask.set(x, y, x * 255 / (ip.getWidth() - 1));
+
+			FloatProcessor enhanced = ip.convertToFloatProcessor();
+			ClaheReference.enhance(enhanced, BLOCK_SIZE, BINS, SLOPE);
+			ImageProcessor actual = clahe(ip, mask);
+			for(int i = 0; i < ip.getPixelCount(); i++) {
+				float v = ip.getf(i);
+				double w = mask.get(i) / 255.0;
+				double expected = (1 - w) * v + w * enhanced.getf(i);
+				assertEquals(type + ", pixel " + i, expected, actual.getf(i), ip.getBitDepth() == 32 ? 1e-3 : 1);
+			}
+		}
+	}
+
+	/**
+	 * A copy of <code>ip</code> enhanced with the given mask (or none).
+	 */
+	private static ImageProcessor clahe(ImageProcessor ip, ImageProcessor mask) {
+		ImagePlus image = new ImagePlus("image", ip.duplicate());
+		Preprocessing preprocessing = new Preprocessing(image);
+		preprocessing.setImages(name -> name.equals("mask") ? new ImagePlus("mask", mask) : null);
+		preprocessing.clahe(BLOCK_SIZE, BINS, SLOPE, mask == null ? null : "mask");
+		ImageProcessor result = preprocessing.getImage().getProcessor();
+		preprocessing.shutdown();
+		return result;
+	}
+
+	private static ImagePlus open(String name) throws IOException {
+		try(InputStream in = ClaheTest.class.getResourceAsStream(name)) {
+			assertNotNull("Missing test resource " + name, in);
+			return new Opener().openTiff(in, name);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.plugin.filter.RankFilters;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * The median engines compared to ImageJ's RankFilters.
+ */
+public class ConstantTimeMedianTest {
+
+	@Test
+	public void testDefaultEngineSameAsRankFilters() {
+		for(ImageProcessor ip : TiledExecutorTest.images()) {
+			for(int radius : new int[] {1, 3, 6}) {
+				ImageProcessor expected = ip.duplicate();
+				new RankFilters().rank(expected, radius, RankFilters.MEDIAN);
+
+				ImagePlus image = new ImagePlus("", ip.duplicate());
+				new Preprocessing(image).medianFilter(radius);
+
+				TiledExecutorTest.assertPixelsEqual(ip.getBitDepth() + "-bit, radius " + radius,
+						expected, image.getProcessor());
+			}
+		}
+	}
+
+	@Test
+	public void testSameAsRankFiltersForRadius1() {
+		// ImageJ's circular kernel of radius 1 is the full 3 x 3 square
+		for(ImageProcessor ip : TiledExecutorTest.images()) {
+			if(!ConstantTimeMedian.supports(ip))
+				continue;
+			ImageProcessor expected = ip.duplicate();
+			new RankFilters().rank(expected, 1, RankFilters.MEDIAN);
+			ImageProcessor actual = ip.duplicate();
+			ConstantTimeMedian.filter(actual, 1);
+			TiledExecutorTest.assertPixelsEqual(ip.getBitDepth() + "-bit", expected, actual);
+		}
+	}
+
+	@Test
+	public void testStripsSameAsSquareMedian() {
+		// 16-bit noise, with (almost) all pixel values distinct
+		Random random = new Random(7);
+		ShortProcessor ip = new ShortProcessor(97, 61);
+		for(int i = 0; i < ip.getPixelCount(); i++)
+			ip.set(i, random.nextInt(65536));
+		for(int radius : new int[] {1, 4, 9}) {
+			short[] expected = squareMedian(ip, radius);
+			// whole width at once, and in strips of a few columns
+			for(long size : new long[] {ConstantTimeMedian.MAX_COLUMN_HISTOGRAM_SIZE, 1 << 16}) {
+				ImageProcessor actual = ip.duplicate();
+				ConstantTimeMedian.filter(actual, radius, size);
+				assertArrayEquals("radius " + radius + ", size " + size, expected, (short[]) actual.getPixels());
+			}
+		}
+	}
+
+	/**
+	 * The median over (2 * radius + 1) x (2 * radius + 1) pixels, with the nearest edge pixel
+	 * outside the image.
+	 */
+	private static short[] squareMedian(ShortProcessor ip, int radius) {
+		int w = ip.getWidth(), h = ip.getHeight(), size = 2 * radius + 1;
+		short[] out = new short[w * h];
+		int[] window = new int[size * size];
+		for(int y = 0; y < h; y++) {
+			for(int x = 0; x < w; x++) {
+				int i = 0;
+				for(int dy = -radius; dy <= radius; dy++)
+					for(int dx = -radius; dx <= radius; dx++)
+						window[i++] = ip.get(clamp(x + dx, w - 1), clamp(y + dy, h - 1));
+				Arrays.sort(window);
+				out[y * w + x] = (short) window[window.length / 2];
+			}
+		}
+		return out;
+	}
+
+	private static int clamp(int v, int max) {
+		return v < 0 ? 0 : v > max ? max : v;
+	}
+}
@@ -0,0 +1,110 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Running an ImageGraph must give the same images as running the operations of each variable one
+ * after the other, without modifying the input.
+ */
+public class ImageGraphTest {
+
+	@Test
+	public void testInputUnchanged() {
+		for(ImageProcessor ip : TiledExecutorTest.images()) {
+			String type = ip.getBitDepth() + "-bit";
+			ImagePlus input = new ImagePlus("input", ip.duplicate());
+			graph(input).run(input);
+			TiledExecutorTest.assertPixelsEqual(type, ip, input.getProcessor());
+		}
+	}
+
+	@Test
+	public void testSameAsSequential() {
+		for(ImageProcessor ip : TiledExecutorTest.images()) {
+			String type = ip.getBitDepth() + "-bit";
+			ImagePlus input = new ImagePlus("input", ip.duplicate());
+			Map<String, ImagePlus> results = graph(input).run(input);
+			assertEquals(type, 3, results.size());
+
+			Preprocessing mask = new Preprocessing(input.duplicate());
+			mask.convertToGray();
+			mask.gaussianBlur(4);
+
+			Preprocessing enhanced = new Preprocessing(input.duplicate());
+			enhanced.setImages(name -> name.equals("mask") ? mask.getImage() : null);
+			enhanced.convertToGray();
+			enhanced.medianFilter(2);
+			enhanced.clahe(16, 64, 3, "mask");
+
+			Preprocessing sharpened = new Preprocessing(enhanced.getImage().duplicate());
+			sharpened.unsharpMask(2, 0.6f);
+
+			TiledExecutorTest.assertPixelsEqual(type + ", mask",
+					mask.getImage().getProcessor(), results.get("mask").getProcessor());
+			TiledExecutorTest.assertPixelsEqual(type + ", input",
+					enhanced.getImage().getProcessor(), results.get(ImageGraph.INPUT).getProcessor());
+			TiledExecutorTest.assertPixelsEqual(type + ", sharpened",
+					sharpened.getImage().getProcessor(), results.get("sharpened").getProcessor());
+		}
+	}
+
+	@Test
+	public void testErrorInBranchIsThrown() {
+		ImagePlus input = new ImagePlus("input", TiledExecutorTest.images()[0]);
+		ImageGraph graph = graph(input);
+
+		// fails the first operation to finish a plane, in whichever branch that is
+		AtomicBoolean failed = new AtomicBoolean();
+		Preprocessing settings = new Preprocessing();
+		settings.setMonitor(new Preprocessing.Monitor() {
+			@Override
+			public boolean isCancelled() {
+				return false;
+			}
+
+			@Override
+			public void planeDone(int done, int nPlanes) {
+				if(failed.compareAndSet(false, true))
+					throw new IllegalStateException("Failing branch");
+			}
+		});
+		try {
+			graph.run(input, settings);
+			fail("The error of a branch was not thrown");
+		} catch(IllegalStateException e) {
+			assertEquals("Failing branch", e.getMessage());
+		}
+	}
+
+	/**
+	 * <pre>
+	 * Duplicate input as mask.
+	 * (convert to gray, blur)
+	 * Continue with input.
+	 * (convert to gray, median, CLAHE using mask as a mask)
+	 * Duplicate input as sharpened.
+	 * (unsharp mask)
+	 * </pre>
+	 */
+	private static ImageGraph graph(ImagePlus input) {
+		ImageGraph.Builder builder = new ImageGraph.Builder(input);
+		builder.duplicate("mask");
+		builder.convertToGray();
+		builder.gaussianBlur(4);
+		builder.select(ImageGraph.INPUT);
+		builder.convertToGray();
+		builder.medianFilter(2);
+		builder.clahe(16, 64, 3, "mask");
+		builder.duplicate("sharpened");
+		builder.unsharpMask(2, 0.6f);
+		return builder.getGraph();
+	}
+}
@@ -0,0 +1,128 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import nlScript.tutorial.preprocessing.Preprocessing.NormalizationMode;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Results taken from a ResultCache must be identical to computing them again.
+ */
+public class ResultCacheTest {
+
+	private static final int CHANNELS = 2, SLICES = 3, FRAMES = 2;
+
+	@Test
+	public void testHitRestoresIdenticalPixels() {
+		for(ImageProcessor ip : TiledExecutorTest.images()) {
+			String type = ip.getBitDepth() + "-bit";
+			ImagePlus input = hyperstack(ip);
+			ImagePlus expected = process(input.duplicate(), null);
+
+			ResultCache cache = new ResultCache(Long.MAX_VALUE);
+			process(input.duplicate(), cache);
+			long misses = cache.getMisses();
+			ImagePlus actual = process(input.duplicate(), cache);
+			assertEquals(type + ", misses", misses, cache.getMisses());
+			assertEquals(type + ", hits", 3, cache.getHits());
+
+			assertEquals(type + ", channels", CHANNELS, actual.getNChannels());
+			assertEquals(type + ", slices", SLICES, actual.getNSlices());
+			assertEquals(type + ", frames", FRAMES, actual.getNFrames());
+			for(int p = 1; p <= expected.getStackSize(); p++)
+				TiledExecutorTest.assertPixelsEqual(type + ", plane " + p,
+						expected.getStack().getProcessor(p),
+						actual.getStack().getProcessor(p));
+		}
+	}
+
+	@Test
+	public void testModifiedInputMisses() {
+		ImageProcessor ip = TiledExecutorTest.images()[0];
+		ImagePlus input = hyperstack(ip);
+		ResultCache cache = new ResultCache(Long.MAX_VALUE);
+		process(input.duplicate(), cache);
+		ImagePlus image = input.duplicate();
+		ImageProcessor first = image.getStack().getProcessor(1);
+		first.set(0, first.get(0) + 1);
+		process(image, cache);
+		assertEquals(0, cache.getHits());
+		assertEquals(6, cache.getMisses());
+	}
+
+	@Test
+	public void testHitOnCopyOnWriteImage() {
+		for(ImageProcessor ip : TiledExecutorTest.images()) {
+			String type = ip.getBitDepth() + "-bit";
+			ImagePlus input = new ImagePlus("input", ip.duplicate());
+			ImageProcessor original = ip.duplicate();
+			ImagePlus expected = process(input.duplicate(), null);
+
+			ResultCache cache = new ResultCache(Long.MAX_VALUE);
+			process(new CopyOnWriteImage(input), cache);
+			ImagePlus actual = process(new CopyOnWriteImage(input), cache);
+			assertEquals(type + ", hits", 3, cache.getHits());
+			TiledExecutorTest.assertPixelsEqual(type, expected.getProcessor(), actual.getProcessor());
+			TiledExecutorTest.assertPixelsEqual(type + ", input", original, input.getProcessor());
+
+			// the result can be modified without modifying the cache or the input
+			actual.getProcessor().invert();
+			ImagePlus again = process(new CopyOnWriteImage(input), cache);
+			TiledExecutorTest.assertPixelsEqual(type + ", again", expected.getProcessor(), again.getProcessor());
+			TiledExecutorTest.assertPixelsEqual(type + ", input", original, input.getProcessor());
+		}
+	}
+
+	@Test
+	public void testModificationAwayFromFirstColumnMisses() {
+		ImagePlus input = new ImagePlus("input", new ByteProcessor(2048, 2048));
+		ResultCache cache = new ResultCache(Long.MAX_VALUE);
+		String key = cache.key(input);
+		input.getProcessor().setColor(255);
+		input.getProcessor().fillRect(1000, 1000, 200, 200);
+		assertNotEquals(key, cache.key(input));
+		assertEquals(ResultCache.hash(input), cache.key(input));
+	}
+
+	private static ImagePlus process(CopyOnWriteImage image, ResultCache cache) {
+		Preprocessing preprocessing = new Preprocessing();
+		preprocessing.setImage(image);
+		return process(preprocessing, cache);
+	}
+
+	private static ImagePlus process(ImagePlus image, ResultCache cache) {
+		return process(new Preprocessing(image), cache);
+	}
+
+	private static ImagePlus process(Preprocessing preprocessing, ResultCache cache) {
+		preprocessing.setProcessAllPlanes(true);
+		preprocessing.setResultCache(cache);
+		preprocessing.gaussianBlur(1.5f);
+		preprocessing.medianFilter(2);
+		preprocessing.intensityNormalization(NormalizationMode.GLOBAL, 0, 16);
+		ImagePlus result = preprocessing.getImage();
+		preprocessing.shutdown();
+		return result;
+	}
+
+	private static ImagePlus hyperstack(ImageProcessor ip) {
+		ImageStack stack = new ImageStack(ip.getWidth(), ip.getHeight());
+		for(int p = 0; p < CHANNELS * SLICES * FRAMES; p++) {
+			ImageProcessor plane = ip.duplicate();
+			plane.flipHorizontal();
+			if(p % 2 == 1)
+				plane.flipVertical();
+			plane.add(p);
+			stack.addSlice(plane);
+		}
+		ImagePlus image = new ImagePlus("hyperstack", stack);
+		image.setDimensions(CHANNELS, SLICES, FRAMES);
+		image.setOpenAsHyperStack(true);
+		return image;
+	}
+}
@@ -0,0 +1,68 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The SEPARABLE Gaussian engine compared to ImageJ's GaussianBlur, which the default engine uses.
+ */
+public class SeparableGaussianTest {
+
+	// the largest difference, relative to the intensity range of the image
+	private static final double FIR_TOLERANCE = 0.001;
+	private static final double IIR_TOLERANCE = 0.01;
+
+	@Test
+	public void testDefaultEngineSameAsGaussianBlur() {
+		for(ImageProcessor ip : TiledExecutorTest.images()) {
+			ImageProcessor expected = ip.duplicate();
+			new GaussianBlur().blurGaussian(expected, 3, 3, Preprocessing.gaussianAccuracy(ip));
+
+			ImagePlus image = new ImagePlus("", ip.duplicate());
+			new Preprocessing(image).gaussianBlur(3);
+
+			TiledExecutorTest.assertPixelsEqual(ip.getBitDepth() + "-bit", expected, image.getProcessor());
+		}
+	}
+
+	@Test
+	public void testCloseToGaussianBlur() {
+		// below and above SeparableGaussian.IIR_MIN_SIGMA
+		for(double sigma : new double[] {1, 2.5, 5, 6, 8, 15, 30}) {
+			double tolerance = sigma < SeparableGaussian.IIR_MIN_SIGMA ? FIR_TOLERANCE : IIR_TOLERANCE;
+			for(ImageProcessor ip : TiledExecutorTest.images()) {
+				ImageProcessor expected = ip.duplicate();
+				new GaussianBlur().blurGaussian(expected, sigma, sigma, Preprocessing.gaussianAccuracy(ip));
+
+				ImagePlus image = new ImagePlus("", ip.duplicate());
+				Preprocessing preprocessing = new Preprocessing(image);
+				preprocessing.setGaussianEngine(Preprocessing.GaussianEngine.SEPARABLE);
+				preprocessing.gaussianBlur((float) sigma);
+
+				assertClose(ip.getBitDepth() + "-bit, sigma " + sigma, ip, expected, image.getProcessor(), tolerance);
+			}
+		}
+	}
+
+	/**
+	 * Compares channel by channel, allowing <code>tolerance</code> times the intensity range of
+	 * <code>original</code>, plus 1 for rounding to integer types.
+	 */
+	static void assertClose(String message, ImageProcessor original, ImageProcessor expected, ImageProcessor actual, double tolerance) {
+		boolean integer = !(original instanceof FloatProcessor);
+		for(int c = 0; c < original.getNChannels(); c++) {
+			FloatProcessor o = original.toFloat(c, null);
+			FloatProcessor e = expected.toFloat(c, null);
+			FloatProcessor a = actual.toFloat(c, null);
+			o.resetMinAndMax();
+			double delta = tolerance * (o.getMax() - o.getMin()) + (integer ? 1 : 0);
+			for(int i = 0; i < e.getPixelCount(); i++)
+				assertEquals(message + ", channel " + c + ", pixel " + i, e.getf(i), a.getf(i), delta);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import nlScript.tutorial.preprocessing.Preprocessing.NormalizationMode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streaming a stack plane by plane must give the same result as processing it in memory.
+ */
+public class StreamingRunnerTest {
+
+	private static final int PLANES = 5;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSameAsInMemory() throws IOException {
+		Plan plan = new Plan(Arrays.asList(
+				new Operation.GaussianBlur(1.5f),
+				new Operation.IntensityNormalization(NormalizationMode.GLOBAL, 0, 32),
+				new Operation.MedianFilter(2),
+				new Operation.IntensityNormalization(NormalizationMode.GLOBAL, 0, 16)));
+		for(ImagePlus image : stacks()) {
+			String type = image.getBitDepth() + "-bit";
+			ImagePlus expected = plan.apply(image.duplicate());
+			ImagePlus actual = stream(plan, image);
+			assertEquals(type, PLANES, actual.getStackSize());
+			for(int p = 1; p <= PLANES; p++)
+				TiledExecutorTest.assertPixelsEqual(type + ", plane " + p,
+						expected.getStack().getProcessor(p),
+						actual.getStack().getProcessor(p));
+		}
+	}
+
+	@Test
+	public void testSaturatedCloseToInMemory() throws IOException {
+		Plan plan = new Plan(Arrays.asList(
+				new Operation.GaussianBlur(1.5f),
+				new Operation.IntensityNormalization(NormalizationMode.GLOBAL, 1, 8)));
+		for(ImagePlus image : stacks()) {
+			String type = image.getBitDepth() + "-bit";
+			ImagePlus expected = plan.apply(image.duplicate());
+			ImagePlus actual = stream(plan, image);
+			for(int p = 1; p <= PLANES; p++) {
+				ImageProcessor e = expected.getStack().getProcessor(p);
+				ImageProcessor a = actual.getStack().getProcessor(p);
+				for(int i = 0; i < e.getPixelCount(); i++)
+					assertEquals(type + ", plane " + p, e.get(i), a.get(i), 2);
+			}
+		}
+	}
+
+	@Test
+	public void testConstantImage() throws IOException {
+		Plan plan = new Plan(Arrays.asList(new Operation.IntensityNormalization(NormalizationMode.GLOBAL, 0, 32)));
+		ImageStack stack = new ImageStack(32, 24);
+		for(int p = 0; p < PLANES; p++) {
+			ImageProcessor ip = new FloatProcessor(32, 24);
+			ip.set(7);
+			stack.addSlice(ip);
+		}
+		ImagePlus image = new ImagePlus("constant", stack);
+		ImagePlus expected = plan.apply(image.duplicate());
+		ImagePlus actual = stream(plan, image);
+		for(int p = 1; p <= PLANES; p++) {
+			TiledExecutorTest.assertPixelsEqual("plane " + p, expected.getStack().getProcessor(p), actual.getStack().getProcessor(p));
+			assertEquals(0, actual.getStack().getProcessor(p).getf(0), 0);
+		}
+	}
+
+	private ImagePlus stream(Plan plan, ImagePlus image) throws IOException {
+		Path input = folder.newFile("input.tif").toPath();
+		Path output = folder.getRoot().toPath().resolve("output.tif");
+		try {
+			assertTrue(IJ.saveAsTiff(image, input.toString()));
+			new StreamingRunner(2, 2).run(plan, input, output);
+			return IJ.openImage(output.toString());
+		} finally {
+			input.toFile().delete();
+			output.toFile().delete();
+		}
+	}
+
+	/**
+	 * Stacks of each type, made of the test images of TiledExecutorTest, with planes of different
+	 * intensity ranges.
+	 */
+	private static ImagePlus[] stacks() {
+		ImageProcessor[] images = TiledExecutorTest.images();
+		ImagePlus[] stacks = new ImagePlus[images.length];
+		for(int i = 0; i < images.length; i++) {
+			ImageStack stack = new ImageStack(images[i].getWidth(), images[i].getHeight());
+			for(int p = 0; p < PLANES; p++) {
+				ImageProcessor ip = images[i].duplicate();
+				ip.multiply(1 - p * 0.15);
+				stack.addSlice(ip);
+			}
+			stacks[i] = new ImagePlus("stack", stack);
+		}
+		return stacks;
+	}
+}
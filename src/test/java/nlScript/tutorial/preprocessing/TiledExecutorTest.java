@@ -0,0 +1,132 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Filters run tile-wise in parallel must give the same result as run on the whole image at once,
+ * in particular at the tile boundaries.
+ */
+public class TiledExecutorTest {
+
+	// small tiles, so that the test images are cut into several tiles in both directions, with
+	// partial tiles at the right and bottom
+	private static final int TILE_SIZE = 64;
+
+	private static final int WIDTH = 203;
+	private static final int HEIGHT = 157;
+
+	@Test
+	public void testGaussianBlur() {
+		for(Preprocessing.GaussianEngine engine : Preprocessing.GaussianEngine.values())
+			assertTiledEqualsUntiled("Gaussian " + engine, p -> {
+				p.setGaussianEngine(engine);
+				p.gaussianBlur(3.5f);
+			});
+	}
+
+	@Test
+	public void testMedianFilter() {
+		for(Preprocessing.MedianEngine engine : Preprocessing.MedianEngine.values())
+			assertTiledEqualsUntiled("Median " + engine, p -> {
+				p.setMedianEngine(engine);
+				p.medianFilter(5);
+			});
+	}
+
+	@Test
+	public void testSubtractBackground() {
+		for(Preprocessing.BackgroundEngine engine : Preprocessing.BackgroundEngine.values())
+			assertTiledEqualsUntiled("Background " + engine, p -> {
+				p.setBackgroundEngine(engine);
+				p.subtractBackground(20);
+			});
+	}
+
+	@Test
+	public void testApplyTiledCopiesEachTileOnce() {
+		TiledExecutor te = new TiledExecutor(2, TILE_SIZE);
+		try {
+			ImageProcessor ip = new FloatProcessor(WIDTH, HEIGHT);
+			te.applyTiled(ip, 3, 1, tile -> tile.add(1));
+			for(int i = 0; i < ip.getPixelCount(); i++)
+				assertEquals(1, ip.getf(i), 0);
+		} finally {
+			te.shutdown();
+		}
+	}
+
+	private static void assertTiledEqualsUntiled(String message, Consumer<Preprocessing> filter) {
+		for(ImageProcessor ip : images()) {
+			String type = message + ", " + ip.getBitDepth() + "-bit";
+
+			ImagePlus untiled = new ImagePlus("untiled", ip.duplicate());
+			Preprocessing single = new Preprocessing(untiled);
+			single.setParallelism(1);
+			filter.accept(single);
+
+			ImagePlus tiled = new ImagePlus("tiled", ip.duplicate());
+			Preprocessing parallel = new Preprocessing(tiled);
+			TiledExecutor te = new TiledExecutor(3, TILE_SIZE);
+			try {
+				parallel.setExecutor(te);
+				filter.accept(parallel);
+			} finally {
+				te.shutdown();
+			}
+
+			assertPixelsEqual(type, single.getImage().getProcessor(), parallel.getImage().getProcessor());
+		}
+	}
+
+	static void assertPixelsEqual(String message, ImageProcessor expected, ImageProcessor actual) {
+		assertEquals(message, expected.getBitDepth(), actual.getBitDepth());
+		Object e = expected.getPixels(), a = actual.getPixels();
+		if(e instanceof byte[])
+			assertArrayEquals(message, (byte[]) e, (byte[]) a);
+		else if(e instanceof short[])
+			assertArrayEquals(message, (short[]) e, (short[]) a);
+		else if(e instanceof int[])
+			assertArrayEquals(message, (int[]) e, (int[]) a);
+		else
+			assertArrayEquals(message, (float[]) e, (float[]) a, 0);
+	}
+
+	/**
+	 * Random test images of each type, with some structure, so that the filters have something to
+	 * do across tile boundaries.
+	 */
+	static ImageProcessor[] images() {
+		Random random = new Random(42);
+		FloatProcessor fp = new FloatProcessor(WIDTH, HEIGHT);
+		for(int y = 0; y < HEIGHT; y++)
+			for(int x = 0; x < WIDTH; x++)
+				fp.setf(x, y, (float) (100 + 80 * Math.sin(x / 9.0) * Math.cos(y / 13.0) + 40 * random.nextGaussian()));
+		ImageProcessor rgb = new ColorProcessor(WIDTH, HEIGHT);
+		for(int i = 0; i < rgb.getPixelCount(); i++)
+			rgb.set(i, random.nextInt(0x1000000));
+		return new ImageProcessor[] {
+				fp.convertToByteProcessor(true),
+				scaled(fp, 200),
+				fp,
+				rgb
+		};
+	}
+
+	private static ShortProcessor scaled(FloatProcessor fp, double factor) {
+		ShortProcessor sp = new ShortProcessor(fp.getWidth(), fp.getHeight());
+		for(int i = 0; i < sp.getPixelCount(); i++)
+			sp.set(i, (int) Math.max(0, Math.min(65535, fp.getf(i) * factor)));
+		return sp;
+	}
+}
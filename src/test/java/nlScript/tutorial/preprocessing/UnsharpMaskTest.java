@@ -0,0 +1,63 @@
+package nlScript.tutorial.preprocessing;
+
+import ij.ImagePlus;
+import ij.plugin.filter.UnsharpMask;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import org.junit.Test;
+
+/**
+ * The unsharp mask compared to ImageJ's UnsharpMask: identical with the default Gaussian engine,
+ * close with the SEPARABLE one.
+ */
+public class UnsharpMaskTest {
+
+	private static final float WEIGHT = 0.6f;
+
+	// the largest difference of the blur, relative to the intensity range (see SeparableGaussianTest);
+	// the recursive one differs a little more from ImageJ's kernel at the unsharp mask's accuracy
+	private static final double FIR_TOLERANCE = 0.001;
+	private static final double IIR_TOLERANCE = 0.015;
+
+	@Test
+	public void testDefaultEngineSameAsUnsharpMask() {
+		for(float sigma : new float[] {1, 2.5f, 8}) {
+			for(ImageProcessor ip : TiledExecutorTest.images()) {
+				ImagePlus image = new ImagePlus("", ip.duplicate());
+				new Preprocessing(image).unsharpMask(sigma, WEIGHT);
+				TiledExecutorTest.assertPixelsEqual(ip.getBitDepth() + "-bit, sigma " + sigma,
+						unsharpMask(ip, sigma, WEIGHT), image.getProcessor());
+			}
+		}
+	}
+
+	@Test
+	public void testSeparableCloseToUnsharpMask() {
+		for(float sigma : new float[] {1, 2.5f, 8}) {
+			// the error of the blur is amplified by weight / (1 - weight)
+			double tolerance = (sigma < SeparableGaussian.IIR_MIN_SIGMA ? FIR_TOLERANCE : IIR_TOLERANCE) * WEIGHT / (1 - WEIGHT);
+			for(ImageProcessor ip : TiledExecutorTest.images()) {
+				ImagePlus image = new ImagePlus("", ip.duplicate());
+				Preprocessing preprocessing = new Preprocessing(image);
+				preprocessing.setGaussianEngine(Preprocessing.GaussianEngine.SEPARABLE);
+				preprocessing.unsharpMask(sigma, WEIGHT);
+				SeparableGaussianTest.assertClose(ip.getBitDepth() + "-bit, sigma " + sigma, ip,
+						unsharpMask(ip, sigma, WEIGHT), image.getProcessor(), tolerance);
+			}
+		}
+	}
+
+	/**
+	 * A copy of <code>ip</code> sharpened like ImageJ's "Unsharp Mask..." does it, channel by channel.
+	 */
+	private static ImageProcessor unsharpMask(ImageProcessor ip, double sigma, float weight) {
+		ImageProcessor result = ip.duplicate();
+		for(int c = 0; c < result.getNChannels(); c++) {
+			FloatProcessor fp = result.toFloat(c, null);
+			fp.snapshot();
+			new UnsharpMask().sharpenFloat(fp, sigma, weight);
+			result.setPixels(c, fp);
+		}
+		return result;
+	}
+}